@@ -0,0 +1,232 @@
+package agh.sm.falldetector;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.SystemClock;
+import android.util.Log;
+import agh.sm.falldetector.core.AccelerometerDataWindow;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.io.EventStore;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Writes potential-fall events on a background thread. Every event is appended to the
+ * {@link EventStore} in {@code events/}; optionally it is also written to {@code windowNNN.csv} and
+ * {@code featureNNN.csv}. The caller only copies the window into a pooled buffer; file names come
+ * from a sequence counter initialised once from the existing dumps, and the files written in one
+ * burst are handed to the media scanner together.
+ */
+public class EventDumpWriter {
+
+    private static final String TAG = EventDumpWriter.class.getSimpleName();
+    private static final String WINDOW_FILE_FORMAT = "window%03d.csv";
+    private static final String FEATURE_FILE_FORMAT = "feature%03d.csv";
+    private static final Pattern DUMP_FILE = Pattern.compile("(?:window|feature)(\\d+)\\.csv");
+    private static final int POOLED_DUMPS = 4;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final String EVENT_STORE_DIRECTORY = "events";
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static final EventDump SHUTDOWN = new EventDump(0);
+
+    private final Context context;
+    private final File directory;
+    private final boolean writeCsv;
+    private EventStore eventStore;
+    private final BlockingQueue<EventDump> free = new ArrayBlockingQueue<EventDump>(POOLED_DUMPS);
+    private final BlockingQueue<EventDump> pending = new ArrayBlockingQueue<EventDump>(POOLED_DUMPS + 1);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    // reused for every file, grown to the largest window
+    private final StringBuilder text = new StringBuilder(WRITE_BUFFER_SIZE);
+    private byte[] bytes = new byte[WRITE_BUFFER_SIZE];
+    private final List<String> unscanned = new ArrayList<String>();
+    private int nextSequence = -1;
+
+    /**
+     * A copy of the window and features, reused once written.
+     */
+    private static class EventDump {
+        long[] timestamps;
+        double[] values;
+        int size;
+        ExtractedAccelerometerData features;
+
+        EventDump(int capacity) {
+            this.timestamps = new long[capacity];
+            this.values = new double[capacity];
+        }
+    }
+
+    /**
+     * @param writeCsv also write each event as CSV files, next to the event store
+     */
+    public EventDumpWriter(Context context, File directory, int windowCapacity, boolean writeCsv) {
+        this.context = context;
+        this.directory = directory;
+        this.writeCsv = writeCsv;
+        for (int i = 0; i < POOLED_DUMPS; i++) free.add(new EventDump(windowCapacity));
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeDumps();
+            }
+        }, "EventDumpWriter");
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+
+    /**
+     * Copies the event for writing and returns. Drops the event if the writer is that far
+     * behind, see {@link #getDroppedCount()}.
+     */
+    public void submit(AccelerometerDataWindow window, ExtractedAccelerometerData features) {
+        EventDump dump = free.poll();
+        if (dump == null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int size = window.size();
+        if (dump.timestamps.length < size) {
+            dump.timestamps = new long[size];
+            dump.values = new double[size];
+        }
+        for (int i = 0; i < size; i++) {
+            dump.timestamps[i] = window.getTimestamp(i);
+            dump.values[i] = window.getValue(i);
+        }
+        dump.size = size;
+        dump.features = features;
+        pending.add(dump);
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the events already submitted, then stops the writer thread.
+     */
+    public void close() {
+        pending.add(SHUTDOWN);
+    }
+
+    private void writeDumps() {
+        nextSequence = findNextSequence();
+        try {
+            // window times come from sensor timestamps, which count from boot
+            long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtimeNanos() / NANOS_PER_MILLI;
+            eventStore = EventStore.open(new File(directory, EVENT_STORE_DIRECTORY), bootTime);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot open the event store", e);
+        }
+        try {
+            while (true) {
+                EventDump dump = pending.take();
+                if (dump == SHUTDOWN) break;
+                store(dump);
+                if (writeCsv) write(dump);
+                dump.features = null;
+                free.add(dump);
+                // one flush and one scan for a burst of events
+                if (pending.isEmpty()) {
+                    if (eventStore != null) eventStore.force();
+                    scanWrittenFiles();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeEventStore();
+        scanWrittenFiles();
+    }
+
+    private void store(EventDump dump) {
+        if (eventStore == null) return;
+        try {
+            eventStore.append(dump.timestamps, dump.values, dump.size, dump.features);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot store event", e);
+        }
+    }
+
+    private void closeEventStore() {
+        if (eventStore == null) return;
+        try {
+            eventStore.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close the event store", e);
+        }
+    }
+
+    /**
+     * @return one past the highest sequence number among the existing dumps
+     */
+    private int findNextSequence() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + directory);
+        }
+        int next = 0;
+        String[] names = directory.list();
+        if (names == null) return next;
+        for (String name : names) {
+            Matcher matcher = DUMP_FILE.matcher(name);
+            if (matcher.matches()) next = Math.max(next, Integer.parseInt(matcher.group(1)) + 1);
+        }
+        return next;
+    }
+
+    private void write(EventDump dump) {
+        int sequence = nextSequence++;
+        File windowFile = new File(directory, format(WINDOW_FILE_FORMAT, sequence));
+        File featureFile = new File(directory, format(FEATURE_FILE_FORMAT, sequence));
+        try {
+            text.setLength(0);
+            for (int i = 0; i < dump.size; i++) {
+                text.append(dump.timestamps[i]).append(',').append(dump.values[i]).append('\n');
+            }
+            writeText(windowFile);
+
+            text.setLength(0);
+            ExtractedAccelerometerData features = dump.features;
+            text.append(features.impactDuration).append(',').append(features.impactViolence)
+                    .append(',').append(features.impactAverage).append(',').append(features.postImpactAverage)
+                    .append('\n');
+            writeText(featureFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write event " + sequence, e);
+        }
+    }
+
+    /**
+     * Writes the text, which is plain ASCII, to the file with a single write.
+     */
+    private void writeText(File file) throws IOException {
+        int length = text.length();
+        if (bytes.length < length) bytes = new byte[Math.max(length, 2 * bytes.length)];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) text.charAt(i);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            out.close();
+        }
+        unscanned.add(file.toString());
+    }
+
+    private void scanWrittenFiles() {
+        if (unscanned.isEmpty()) return;
+        MediaScannerConnection.scanFile(context, unscanned.toArray(new String[unscanned.size()]), null, null);
+        unscanned.clear();
+    }
+}
@@ -205,8 +205,8 @@ public class Patient extends AppCompatActivity {
      *
      */
     public void setClassificationServerCallback(View view) {
-        PotentialFallDetectorService.thisInstance.classificationServerAddress =
-                classificationIpAddr.getText().toString();
+        PotentialFallDetectorService.thisInstance.setClassificationServerAddress(
+                classificationIpAddr.getText().toString());
         view.clearFocus();
     }
 
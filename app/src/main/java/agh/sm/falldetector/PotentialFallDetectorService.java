@@ -14,15 +14,27 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
 import android.util.Log;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.*;
-import java.net.ConnectException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.concurrent.LinkedBlockingQueue;
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.OverloadPolicy;
+import agh.sm.falldetector.core.PotentialFallDetector;
+import agh.sm.falldetector.core.SensorSampleRing;
+import agh.sm.falldetector.core.WaitStrategy;
+import agh.sm.falldetector.core.classification.ClassificationCallback;
+import agh.sm.falldetector.core.classification.CachingClassifier;
+import agh.sm.falldetector.core.classification.ClassificationStage;
+import agh.sm.falldetector.core.classification.DnnClassifier;
+import agh.sm.falldetector.core.classification.RemoteClassificationClient;
+import agh.sm.falldetector.core.classification.TieredClassifier;
+import agh.sm.falldetector.core.io.FlightRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 
 public class PotentialFallDetectorService extends Service implements SensorEventListener {
@@ -38,11 +50,51 @@ public class PotentialFallDetectorService extends Service implements SensorEvent
     private final String baseDir = android.os.Environment.getExternalStorageDirectory().getAbsolutePath();
     private final String dirname = "AGH_IM_DATA";
     final String filepath = baseDir + File.separator + dirname;
-    public String classificationServerAddress = "172.20.10.2";
+    private String classificationServerAddress = "172.20.10.2";
+    // the processing thread parks while idle, sensor bursts are short
+    private static final WaitStrategy SENSOR_WAIT_STRATEGY = WaitStrategy.PARK;
+    // never stall the sensor thread; under load keep the peaks the FSM triggers on
+    private static final OverloadPolicy SENSOR_OVERLOAD_POLICY = OverloadPolicy.DECIMATE;
+    private static final int CLASSIFICATION_SERVER_PORT = 4011;
+    // an alert must not wait on a slow network, the on-device model answers in microseconds
+    private static final int REMOTE_CLASSIFIER_BUDGET_MS = 500;
+    // the client gives up with the tier, an abandoned attempt does not hold a tier thread for long
+    private static final int CLASSIFICATION_SERVER_TIMEOUT_MS = REMOTE_CLASSIFIER_BUDGET_MS;
+    private static final long LOCAL_CLASSIFIER_BUDGET_MS = 50;
+    // tiers bound the classification themselves, this only covers waiting in the queue
+    private static final long CLASSIFICATION_TIMEOUT_MS = 2000;
+    private static final int CLASSIFICATION_QUEUE_CAPACITY = 16;
+    // classifications in flight on the server connection at the same time
+    private static final int CLASSIFICATION_PIPELINE_DEPTH = 4;
+    // other answers are only reused for a near-exact repeat seconds later, e.g. the phone bumped
+    // against the same desk again; a fall landing in so small a cell that soon is not a concern
+    private static final int NON_FALL_CACHE_SUBDIVISIONS = 10;
+    private static final long NON_FALL_CACHE_TTL_MS = 30000;
+    // room for the requests in flight plus as many abandoned ones still winding down
+    private static final int REMOTE_CLASSIFIER_THREADS = 2 * CLASSIFICATION_PIPELINE_DEPTH;
+    // events always go to the binary event store; the replay tools and scripts still read the CSV dumps
+    private static final boolean DUMP_EVENTS_AS_CSV = true;
+    // raw x, y, z kept around each event; about a minute of readings at the fastest sensor rate
+    private static final int FLIGHT_RECORDER_CAPACITY = 32768;
+    private static final long FLIGHT_RECORDER_PRE_TRIGGER_S = 10;
+    private static final long FLIGHT_RECORDER_POST_TRIGGER_S = 5;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // joining the processing thread on destroy, it only waits for its current batch
+    private static final long DATA_PROCESSOR_JOIN_TIMEOUT_MS = 1000;
+    private SensorManager sensorManager;
     private Sensor accelerometer;
+    private HandlerThread sensorHandlerThread;
     private SensorDataProcessor dataProcessor;
+    private Thread dataProcessingThread;
+    private volatile boolean shuttingDown;
+    private RemoteClassificationClient classificationClient;
+    private CachingClassifier remoteClassificationCache;
+    private TieredClassifier tieredClassifier;
+    private ClassificationStage classificationStage;
+    private FlightRecorder flightRecorder;
 
     private PotentialFallDetector fallLikeFSMDetect;
+    private PotentialFallEventHandler eventHandler;
     private File testdata;
 
 
@@ -50,27 +102,85 @@ public class PotentialFallDetectorService extends Service implements SensorEvent
     public void onCreate() {
         super.onCreate();
         thisInstance = this;
-        SensorManager sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        this.sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
 
         getAccelerometer(sensorManager);
 
         Handler sensorHandler = createThreadForSensorCallbacks();
 
+        createClassificationStage();
+
+        this.flightRecorder = new FlightRecorder(FLIGHT_RECORDER_CAPACITY, FLIGHT_RECORDER_PRE_TRIGGER_S,
+                FLIGHT_RECORDER_POST_TRIGGER_S, TimeUnit.SECONDS, new File(filepath, "flight"));
+
         createThreadProcessingSensorValues();
 
-        this.fallLikeFSMDetect = new PotentialFallDetector(this);
+        this.eventHandler = new PotentialFallEventHandler(this, DetectorConfig.DEFAULT.getWindowCapacity(),
+                DUMP_EVENTS_AS_CSV);
+        this.fallLikeFSMDetect = new PotentialFallDetector(DetectorConfig.DEFAULT, eventHandler);
         sensorManager.registerListener(this, this.accelerometer, SensorManager.SENSOR_DELAY_FASTEST, sensorHandler);
     }
 
+    private void createClassificationStage() {
+        // binary frames where the server supports them, JSON otherwise
+        this.classificationClient = new RemoteClassificationClient(classificationServerAddress,
+                CLASSIFICATION_SERVER_PORT, RemoteClassificationClient.WireFormat.BINARY,
+                CLASSIFICATION_SERVER_TIMEOUT_MS, CLASSIFICATION_SERVER_TIMEOUT_MS);
+
+        // repeated near-identical falls skip the round trip; other answers only in much finer cells
+        // and briefly, a cached walk must not hide a real fall that lands in the same cell
+        this.remoteClassificationCache = CachingClassifier.builder(classificationClient)
+                .onlyCache(FALL_CLASS)
+                .cacheOthers(NON_FALL_CACHE_SUBDIVISIONS, NON_FALL_CACHE_TTL_MS)
+                .build();
+
+        TieredClassifier.Builder tiers = TieredClassifier.builder()
+                .tier("remote", remoteClassificationCache, REMOTE_CLASSIFIER_BUDGET_MS, REMOTE_CLASSIFIER_THREADS);
+        DnnClassifier localClassifier = loadLocalClassifier();
+        if (localClassifier != null) tiers.tier("local", localClassifier, LOCAL_CLASSIFIER_BUDGET_MS);
+        // with no classifier answering, alert rather than miss a fall
+        this.tieredClassifier = tiers.failSafeClass(FALL_CLASS).build();
+
+        this.classificationStage = new ClassificationStage(tieredClassifier, CLASSIFICATION_PIPELINE_DEPTH,
+                CLASSIFICATION_QUEUE_CAPACITY, CLASSIFICATION_TIMEOUT_MS);
+    }
+
+    /**
+     * @return the on-device model packaged from machine_learning/trained/variables, null if it cannot be loaded
+     */
+    private DnnClassifier loadLocalClassifier() {
+        try {
+            InputStream index = getAssets().open("variables.index");
+            try {
+                InputStream data = getAssets().open("variables.data-00000-of-00001");
+                try {
+                    return DnnClassifier.load(index, data);
+                } finally {
+                    data.close();
+                }
+            } finally {
+                index.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "On-device classifier unavailable", e);
+            return null;
+        }
+    }
+
+    public void setClassificationServerAddress(String address) {
+        this.classificationServerAddress = address;
+        classificationClient.setServerAddress(address, CLASSIFICATION_SERVER_PORT);
+    }
+
     private void createThreadProcessingSensorValues() {
-        this.dataProcessor = new SensorDataProcessor();
-        Thread dataProcessingThread = new Thread(this.dataProcessor);
+        this.dataProcessor = new SensorDataProcessor(SENSOR_WAIT_STRATEGY, SENSOR_OVERLOAD_POLICY);
+        this.dataProcessingThread = new Thread(this.dataProcessor, "SensorDataProcessor");
         dataProcessingThread.start();
     }
 
     @NonNull
     private Handler createThreadForSensorCallbacks() {
-        HandlerThread sensorHandlerThread = new HandlerThread("SensorThread", Thread.NORM_PRIORITY);
+        this.sensorHandlerThread = new HandlerThread("SensorThread", Thread.NORM_PRIORITY);
         sensorHandlerThread.start();
         return new Handler(sensorHandlerThread.getLooper());
     }
@@ -83,6 +193,27 @@ public class PotentialFallDetectorService extends Service implements SensorEvent
     @Override
     public void onDestroy() {
         super.onDestroy();
+        // stop the readings and the detector first, so no new event reaches the stages shut down below
+        shuttingDown = true;
+        sensorManager.unregisterListener(this);
+        sensorHandlerThread.quitSafely();
+        dataProcessingThread.interrupt();
+        try {
+            dataProcessingThread.join(DATA_PROCESSOR_JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        classificationStage.shutdown();
+        tieredClassifier.shutdown();
+        classificationClient.close();
+        eventHandler.close();
+        flightRecorder.close();
+        Log.d(TAG, "Event dumps dropped: " + eventHandler.getDroppedDumpCount());
+        Log.d(TAG, "Flight recorder: " + flightRecorder);
+        Log.d(TAG, "Classification tiers: " + tieredClassifier);
+        Log.d(TAG, "Remote classification cache: " + remoteClassificationCache);
+        Log.d(TAG, "Sensor readings dropped: " + dataProcessor.getDroppedCount()
+                + ", decimated: " + dataProcessor.getDecimatedCount());
     }
 
     @Override
@@ -116,102 +247,25 @@ public class PotentialFallDetectorService extends Service implements SensorEvent
 
     @Override
     public void onSensorChanged(SensorEvent event) {
+        if (event.sensor.equals(accelerometer)) dataProcessor.offer(event);
     }
 
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
     }
 
-    private int classifyFallViaRemoteTCPServer(PotentialFallDetector.ExtractedAccelerometerData features) {
-        Socket socket;
-        String response;
-        Integer classification = null;
-
-        try {
-            socket = new Socket();
-            int classificationSeverPort = 4011;
-            socket.connect(new InetSocketAddress(classificationServerAddress,
-                    classificationSeverPort), 2000);
-
-            OutputStream outSockStream = socket.getOutputStream();
-            PrintWriter outFile = new PrintWriter(outSockStream);
-
-            InputStream inSockStream = socket.getInputStream();
-            BufferedReader inFile = new BufferedReader(new InputStreamReader(inSockStream));
-
-            String jsonString = null;
-            try {
-                jsonString = getJsonToSend(features);
-            } catch (org.json.JSONException e) {
-                e.printStackTrace();
-            }
-
-            //Send
-            outFile.print(jsonString);
-            outFile.flush();
-
-            //Read
-            response = inFile.readLine();
-            classification = Integer.parseInt(response);
-
-            socket.close();
-        } catch (SocketTimeoutException e) {
-            Log.d(TAG, "Classification server timeout");
-            e.printStackTrace();
-        } catch (ConnectException e) {
-            Log.d(TAG, "Cannot connect, check if server is running");
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        if (classification == null) {
-            return -1;
-        }
-        return classification;
-
-    }
-
-    private String getJsonToSend(PotentialFallDetector.ExtractedAccelerometerData features) throws JSONException {
-        return new JSONObject()
-                .put("impact_duration", features.impactDuration)
-                .put("impact_violence", features.impactViolence)
-                .put("impact_average", features.impactAverage)
-                .put("post_impact_average", features.postImpactAverage).toString();
-    }
-
-    private class SensorDataProcessor implements Runnable {
-        private LinkedBlockingQueue<SensorEvent> sensorEventQueue;
-
-        SensorDataProcessor() {
-            this.sensorEventQueue = new LinkedBlockingQueue<SensorEvent>(10000000);
-        }
-
+    /**
+     * Reacts to classification results, called on a classification thread.
+     */
+    private class ClassificationResultHandler implements ClassificationCallback {
         @Override
-        public void run() {
-            while (true) {
-                SensorEvent event = waitForSensorReading();
-                if (event.sensor.equals(accelerometer)) processAccelerometerEvent(event);
-            }
-        }
-
-        private void processAccelerometerEvent(SensorEvent event) {
-            float x = event.values[0];
-            float y = event.values[1];
-            float z = event.values[2];
-
-            double accelerationMagnitude = Math.sqrt(x * x + y * y + z * z);
-
-            PotentialFallDetector.ExtractedAccelerometerData features = fallLikeFSMDetect.run
-                    (event.timestamp, accelerationMagnitude);
-            if (features != null) classifyResults(features);
-        }
-
-        private void classifyResults(PotentialFallDetector.ExtractedAccelerometerData features) {
-            int classification = classifyFallViaRemoteTCPServer(features);
+        public void onClassified(ExtractedAccelerometerData features, int classification) {
             switch (classification) {
                 case FALL_CLASS:
                     Log.d(TAG, "Detected Fall");
-                    Patient.ThisInstance.runOnUiThread(new Runnable() {
+                    Patient patient = Patient.ThisInstance;
+                    if (patient == null) break;
+                    patient.runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
                             if (Patient.ThisInstance != null) {
@@ -230,19 +284,77 @@ public class PotentialFallDetectorService extends Service implements SensorEvent
                     Log.d(TAG, "Detected bump");
                     break;
                 default:
+                    Log.w(TAG, "Unknown class " + classification);
                     break;
             }
         }
 
-        private SensorEvent waitForSensorReading() {
-            SensorEvent event;
+        @Override
+        public void onClassificationFailed(ExtractedAccelerometerData features, Exception cause) {
+            // the service is shutting down, the stage no longer takes events; otherwise a timeout,
+            // also an InterruptedIOException, is a failure like any other
+            if (shuttingDown && cause instanceof InterruptedIOException) return;
+            if (shuttingDown && cause instanceof RejectedExecutionException) return;
+            // the stage was full or stalled, alert rather than miss a fall
+            Log.w(TAG, "Classification failed, treating event as fall", cause);
+            onClassified(features, FALL_CLASS);
+        }
+    }
+
+    private class SensorDataProcessor implements Runnable {
+        private static final int MAX_BATCH_SIZE = 256;
+        private static final int SENSOR_RING_CAPACITY = 8192;
+
+        private final SensorSampleRing sensorSamples;
+        private final long[] batchTimestamps = new long[MAX_BATCH_SIZE];
+        private final float[] batchXyz = new float[MAX_BATCH_SIZE * 3];
+        private final ClassificationResultHandler classificationResultHandler = new ClassificationResultHandler();
+
+        SensorDataProcessor(WaitStrategy waitStrategy, OverloadPolicy overloadPolicy) {
+            this.sensorSamples = new SensorSampleRing(SENSOR_RING_CAPACITY, waitStrategy, overloadPolicy);
+        }
+
+        /**
+         * Called on the sensor thread. Copies the reading, as Android reuses SensorEvent objects.
+         */
+        void offer(SensorEvent event) {
+            sensorSamples.publish(event.timestamp, event.values[0], event.values[1], event.values[2]);
+        }
+
+        long getDroppedCount() {
+            return sensorSamples.getDroppedCount();
+        }
+
+        long getDecimatedCount() {
+            return sensorSamples.getDecimatedCount();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int count = waitForSensorReadings();
+                if (count < 0) return;
+                flightRecorder.record(batchTimestamps, batchXyz, count);
+                List<ExtractedAccelerometerData> events = fallLikeFSMDetect.runBatch(batchTimestamps, batchXyz, 0, count);
+                for (ExtractedAccelerometerData features : events) {
+                    // event times are in ms, the recorder keeps the sensor's ns
+                    flightRecorder.trigger(features.triggerPeakTime * NANOS_PER_MILLI);
+                    classificationStage.submit(features, classificationResultHandler);
+                }
+            }
+        }
+
+        /**
+         * Blocks for the next reading, then takes whatever else is already queued behind it.
+         *
+         * @return number of readings, -1 once the thread is interrupted by {@link #onDestroy()}
+         */
+        private int waitForSensorReadings() {
             try {
-                event = this.sensorEventQueue.take();
+                return sensorSamples.take(batchTimestamps, batchXyz, MAX_BATCH_SIZE);
             } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException(e);
+                return -1;
             }
-            return event;
         }
     }
 
@@ -0,0 +1,62 @@
+package agh.sm.falldetector;
+
+import android.content.Context;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Vibrator;
+import agh.sm.falldetector.core.AccelerometerDataWindow;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.PotentialFallListener;
+
+import java.io.File;
+
+/**
+ * Device side effects of a potential fall: vibration, notification sound and event dump.
+ * The dump is written by an {@link EventDumpWriter} in the background.
+ */
+public class PotentialFallEventHandler implements PotentialFallListener {
+
+    private final PotentialFallDetectorService potentialFallDetectorService;
+    private final EventDumpWriter eventDumpWriter;
+
+    public PotentialFallEventHandler(PotentialFallDetectorService potentialFallDetectorService, int windowCapacity,
+                                     boolean dumpEventsAsCsv) {
+        this.potentialFallDetectorService = potentialFallDetectorService;
+        this.eventDumpWriter = new EventDumpWriter(potentialFallDetectorService,
+                new File(potentialFallDetectorService.filepath), windowCapacity, dumpEventsAsCsv);
+    }
+
+    @Override
+    public void onPotentialFall(AccelerometerDataWindow window, ExtractedAccelerometerData features) {
+        alert();
+        eventDumpWriter.submit(window, features);
+    }
+
+    /**
+     * Writes the events still queued and stops the event dump writer.
+     */
+    public void close() {
+        eventDumpWriter.close();
+    }
+
+    public long getDroppedDumpCount() {
+        return eventDumpWriter.getDroppedCount();
+    }
+
+    private void alert() {
+        Vibrator v = (Vibrator) potentialFallDetectorService.getApplicationContext().
+                getSystemService(Context.VIBRATOR_SERVICE);
+        v.vibrate(1000);
+
+        try {
+            Uri notification = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
+            Ringtone r = RingtoneManager.getRingtone(
+                    this.potentialFallDetectorService.getApplicationContext(),
+                    notification);
+            r.play();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
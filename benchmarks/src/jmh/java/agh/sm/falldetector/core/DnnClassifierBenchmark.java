@@ -0,0 +1,70 @@
+package agh.sm.falldetector.core;
+
+import agh.sm.falldetector.core.classification.DnnClassifier;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one on-device classification, single and in a batch of requests. The network has the
+ * layer sizes of the trained model (4, 10, 20, 10, 4) with random weights; the forward pass does
+ * the same work whatever the weights are.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DnnClassifierBenchmark {
+
+    private static final int[] LAYER_SIZES = {DnnClassifier.FEATURES, 10, 20, 10, 4};
+    private static final int ROWS = 64;
+
+    private DnnClassifier classifier;
+    private final float[] features = new float[ROWS * DnnClassifier.FEATURES];
+    private final float[] row = new float[DnnClassifier.FEATURES];
+    private final float[] probabilities = new float[LAYER_SIZES[LAYER_SIZES.length - 1]];
+    private final int[] classes = new int[ROWS];
+    private final float[] confidences = new float[ROWS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1234);
+        List<float[]> weights = new ArrayList<float[]>();
+        List<float[]> biases = new ArrayList<float[]>();
+        for (int i = 0; i + 1 < LAYER_SIZES.length; i++) {
+            weights.add(gaussian(random, LAYER_SIZES[i] * LAYER_SIZES[i + 1]));
+            biases.add(gaussian(random, LAYER_SIZES[i + 1]));
+        }
+        classifier = new DnnClassifier(weights, biases);
+        // features in the ranges of test.csv: duration (ms), violence, average, post-impact average
+        for (int r = 0; r < ROWS; r++) {
+            features[r * 4] = 300 + random.nextInt(900);
+            features[r * 4 + 1] = random.nextFloat();
+            features[r * 4 + 2] = 10 + 14 * random.nextFloat();
+            features[r * 4 + 3] = 9 + 2 * random.nextFloat();
+        }
+    }
+
+    @Benchmark
+    public int classify() {
+        System.arraycopy(features, next * DnnClassifier.FEATURES, row, 0, DnnClassifier.FEATURES);
+        next = (next + 1) % ROWS;
+        return classifier.classify(row, probabilities);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int[] classifyBatch() {
+        classifier.classifyBatch(features, ROWS, classes, confidences);
+        return classes;
+    }
+
+    private static float[] gaussian(Random random, int count) {
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) values[i] = (float) (random.nextGaussian() * 0.5);
+        return values;
+    }
+}
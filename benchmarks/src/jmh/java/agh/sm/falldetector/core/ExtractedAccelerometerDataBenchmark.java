@@ -0,0 +1,54 @@
+package agh.sm.falldetector.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of extracting the features of one finished event from a full window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ExtractedAccelerometerDataBenchmark {
+
+    private final FeatureCapture capture = new FeatureCapture();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticTraces trace = SyntheticTraces.generate(SyntheticTraces.Scenario.FALL_SEQUENCE,
+                6 * SyntheticTraces.SAMPLE_RATE_HZ * 2);
+        PotentialFallDetector detector = new PotentialFallDetector(capture);
+        for (int i = 0; i < trace.timestamps.length && capture.window == null; i++) {
+            detector.run(trace.timestamps[i], trace.magnitudes[i]);
+        }
+        if (capture.window == null) throw new IllegalStateException("fall sequence did not produce an event");
+    }
+
+    @Benchmark
+    public ExtractedAccelerometerData extract() {
+        return new ExtractedAccelerometerData(capture.window, capture.triggerPeakTime, capture.impactEnd);
+    }
+
+    /**
+     * Keeps a copy of the first event window, since the detector reuses its own after the callback.
+     */
+    private static class FeatureCapture implements PotentialFallListener {
+        AccelerometerDataWindow window;
+        long triggerPeakTime;
+        long impactEnd;
+
+        @Override
+        public void onPotentialFall(AccelerometerDataWindow eventWindow, ExtractedAccelerometerData features) {
+            if (window != null) return;
+            DetectorConfig config = DetectorConfig.DEFAULT;
+            window = new AccelerometerDataWindow(config.getWindowCapacity(),
+                    config.getStillBandLower(), config.getStillBandUpper());
+            for (int i = 0; i < eventWindow.size(); i++) {
+                window.put(eventWindow.getTimestamp(i), eventWindow.getValue(i));
+            }
+            triggerPeakTime = features.triggerPeakTime;
+            impactEnd = features.impactEnd;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package agh.sm.falldetector.core;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link PotentialFallDetector#run(long, double)} per sample. Each invocation feeds a whole
+ * trace, timestamps keep increasing across invocations so the FSM never sees time going back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PotentialFallDetectorBenchmark {
+
+    private static final int SAMPLES = 60 * SyntheticTraces.SAMPLE_RATE_HZ;
+    private static final int BATCH_SIZE = 64;
+
+    @Param({"IDLE_WALKING", "PEAK_BURST", "FALL_SEQUENCE", "RETRIGGER"})
+    public SyntheticTraces.Scenario scenario;
+
+    private SyntheticTraces trace;
+    private PotentialFallDetector detector;
+    private long timeOffset;
+    private long[] batchTimestamps;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trace = SyntheticTraces.generate(scenario, SAMPLES);
+        detector = new PotentialFallDetector(null);
+        timeOffset = 0;
+        batchTimestamps = new long[SAMPLES];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void runPerSample(Blackhole blackhole) {
+        long[] timestamps = trace.timestamps;
+        double[] magnitudes = trace.magnitudes;
+        for (int i = 0; i < SAMPLES; i++) {
+            blackhole.consume(detector.run(timeOffset + timestamps[i], magnitudes[i]));
+        }
+        timeOffset += trace.spanNs;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void runBatchPerSample(Blackhole blackhole) {
+        long[] timestamps = batchTimestamps;
+        for (int offset = 0; offset < SAMPLES; offset += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, SAMPLES - offset);
+            for (int i = 0; i < count; i++) timestamps[offset + i] = timeOffset + trace.timestamps[offset + i];
+            blackhole.consume(detector.runBatch(timestamps, trace.xyz, offset, count));
+        }
+        timeOffset += trace.spanNs;
+    }
+}
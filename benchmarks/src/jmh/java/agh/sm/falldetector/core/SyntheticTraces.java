@@ -0,0 +1,75 @@
+package agh.sm.falldetector.core;
+
+import java.util.Random;
+
+import static agh.sm.falldetector.core.DetectorConfig.GRAVITY_EARTH;
+
+/**
+ * Deterministic accelerometer magnitude traces for the benchmarks, sampled at a fixed rate.
+ */
+public final class SyntheticTraces {
+
+    static final int SAMPLE_RATE_HZ = 200;
+    static final long SAMPLE_PERIOD_NS = 1000000000L / SAMPLE_RATE_HZ;
+
+    public enum Scenario {
+        /** Walking, never reaches the detection threshold. */
+        IDLE_WALKING,
+        /** Walking with a short 3.5g spike every 5 s, each one runs the FSM through a full event. */
+        PEAK_BURST,
+        /** Free fall, impact and lying still, repeated every 6 s. */
+        FALL_SEQUENCE,
+        /** A peak every 500 ms, so the window is trimmed constantly and no event ever finishes. */
+        RETRIGGER
+    }
+
+    final long[] timestamps;
+    final double[] magnitudes;
+    // the same magnitudes as raw readings, all along z
+    final float[] xyz;
+    final long spanNs;
+
+    private SyntheticTraces(int samples) {
+        this.timestamps = new long[samples];
+        this.magnitudes = new double[samples];
+        this.xyz = new float[samples * 3];
+        this.spanNs = samples * SAMPLE_PERIOD_NS;
+        for (int i = 0; i < samples; i++) timestamps[i] = i * SAMPLE_PERIOD_NS;
+    }
+
+    static SyntheticTraces generate(Scenario scenario, int samples) {
+        SyntheticTraces trace = new SyntheticTraces(samples);
+        Random random = new Random(1234);
+        for (int i = 0; i < samples; i++) {
+            double seconds = i / (double) SAMPLE_RATE_HZ;
+            double walking = GRAVITY_EARTH * (1.0 + 0.3 * Math.sin(2 * Math.PI * 2.0 * seconds))
+                    + 0.2 * random.nextGaussian();
+            switch (scenario) {
+                case IDLE_WALKING:
+                    trace.magnitudes[i] = walking;
+                    break;
+                case PEAK_BURST:
+                    trace.magnitudes[i] = i % (5 * SAMPLE_RATE_HZ) < 4 ? 3.5 * GRAVITY_EARTH : walking;
+                    break;
+                case FALL_SEQUENCE:
+                    trace.magnitudes[i] = fall(i % (6 * SAMPLE_RATE_HZ), walking, random);
+                    break;
+                case RETRIGGER:
+                    trace.magnitudes[i] = i % (SAMPLE_RATE_HZ / 2) == 0 ? 4.0 * GRAVITY_EARTH : walking;
+                    break;
+            }
+            trace.xyz[i * 3 + 2] = (float) trace.magnitudes[i];
+        }
+        return trace;
+    }
+
+    private static double fall(int sampleInCycle, double walking, Random random) {
+        int freeFallStart = SAMPLE_RATE_HZ;
+        int impactStart = freeFallStart + SAMPLE_RATE_HZ * 3 / 10;
+        int impactEnd = impactStart + SAMPLE_RATE_HZ / 10;
+        if (sampleInCycle < freeFallStart) return walking;
+        if (sampleInCycle < impactStart) return 0.3 * GRAVITY_EARTH + 0.1 * random.nextGaussian();
+        if (sampleInCycle < impactEnd) return 5.0 * GRAVITY_EARTH + random.nextGaussian();
+        return GRAVITY_EARTH + 0.05 * random.nextGaussian();
+    }
+}
@@ -0,0 +1,133 @@
+package agh.sm.falldetector.core;
+
+import agh.sm.falldetector.core.io.TraceDecoder;
+import agh.sm.falldetector.core.io.TraceEncoder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per reading of writing and reading a recording as {@code timestamp,value} CSV lines, the
+ * way the event dumps are written, against the {@link TraceEncoder} format. Magnitude traces use the
+ * synthetic scenarios at millisecond timestamps; the raw x, y, z trace has nanosecond timestamps
+ * with sensor jitter. Sizes per reading and the compression ratio are printed after each trial.
+ * MB/s of CSV equivalent = CSV bytes per reading / ns per reading * 1000.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceCodecBenchmark {
+
+    private static final int SAMPLES = 60 * SyntheticTraces.SAMPLE_RATE_HZ;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    @Param({"IDLE_WALKING", "FALL_SEQUENCE"})
+    public SyntheticTraces.Scenario scenario;
+
+    private long[] millis;
+    private double[] magnitudes;
+    private long[] nanos;
+    private float[] xyz;
+    private byte[] csv;
+    private byte[] encodedMagnitudes;
+    private byte[] encodedAxes;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(SAMPLES * 32);
+    private final StringBuilder line = new StringBuilder(64);
+    private long[] timestampsOut;
+    private double[] magnitudesOut;
+    private float[] xyzOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticTraces trace = SyntheticTraces.generate(scenario, SAMPLES);
+        millis = new long[SAMPLES];
+        magnitudes = trace.magnitudes;
+        nanos = new long[SAMPLES];
+        xyz = new float[SAMPLES * 3];
+        Random random = new Random(1234);
+        for (int i = 0; i < SAMPLES; i++) {
+            millis[i] = trace.timestamps[i] / NANOS_PER_MILLI;
+            nanos[i] = trace.timestamps[i] + random.nextInt(200000);
+            // the magnitude spread over the axes of a phone held at an angle
+            xyz[i * 3] = (float) (0.3 * magnitudes[i] + 0.05 * random.nextGaussian());
+            xyz[i * 3 + 1] = (float) (0.5 * magnitudes[i] + 0.05 * random.nextGaussian());
+            xyz[i * 3 + 2] = (float) (0.81 * magnitudes[i] + 0.05 * random.nextGaussian());
+        }
+        csv = writeCsv();
+        encodedMagnitudes = encodeMagnitudes();
+        encodedAxes = encodeAxes();
+        timestampsOut = new long[SAMPLES];
+        magnitudesOut = new double[SAMPLES];
+        xyzOut = new float[SAMPLES * 3];
+    }
+
+    @TearDown(Level.Trial)
+    public void printSizes() {
+        System.out.printf("%ncsv %.1f B/reading, magnitudes %.2f B/reading (%.1fx), x/y/z %.2f B/reading%n",
+                csv.length / (double) SAMPLES, encodedMagnitudes.length / (double) SAMPLES,
+                csv.length / (double) encodedMagnitudes.length, encodedAxes.length / (double) SAMPLES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public byte[] writeCsv() {
+        out.reset();
+        for (int i = 0; i < SAMPLES; i++) {
+            line.setLength(0);
+            line.append(millis[i]).append(',').append(magnitudes[i]).append('\n');
+            for (int c = 0; c < line.length(); c++) out.write(line.charAt(c));
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void readCsv(Blackhole blackhole) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv),
+                StandardCharsets.US_ASCII));
+        String text;
+        while ((text = reader.readLine()) != null) {
+            int comma = text.indexOf(',');
+            blackhole.consume(Long.parseLong(text.substring(0, comma)));
+            blackhole.consume(Double.parseDouble(text.substring(comma + 1)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public byte[] encodeMagnitudes() throws IOException {
+        out.reset();
+        TraceEncoder encoder = TraceEncoder.magnitudes(out, TraceEncoder.DEFAULT_RESOLUTION);
+        encoder.write(millis, magnitudes, 0, SAMPLES);
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int decodeMagnitudes() throws IOException {
+        TraceDecoder decoder = new TraceDecoder(new ByteArrayInputStream(encodedMagnitudes));
+        return decoder.read(timestampsOut, magnitudesOut, 0, SAMPLES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public byte[] encodeAxes() throws IOException {
+        out.reset();
+        TraceEncoder encoder = TraceEncoder.axes(out, TraceEncoder.DEFAULT_RESOLUTION);
+        encoder.write(nanos, xyz, 0, SAMPLES);
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int decodeAxes() throws IOException {
+        TraceDecoder decoder = new TraceDecoder(new ByteArrayInputStream(encodedAxes));
+        return decoder.read(timestampsOut, xyzOut, 0, SAMPLES);
+    }
+}
@@ -0,0 +1,201 @@
+package agh.sm.falldetector.core;
+
+/**
+ * Fixed-capacity circular buffer of accelerometer readings kept in parallel primitive arrays.
+ * Readings arrive with non-decreasing timestamps, so range trimming is a binary search and
+ * adding a reading allocates nothing. When full, the oldest reading is overwritten.
+ * <p>
+ * Alongside each reading the window keeps the running sum of all earlier values and the
+ * running count of earlier values inside the band given at construction, so range sums and
+ * in-band counts are answered in O(1).
+ */
+public class AccelerometerDataWindow {
+    private final long[] timestamps;
+    private final double[] values;
+    private final double[] sumsBefore;
+    private final int[] inBandCountsBefore;
+    private final double bandLower;
+    private final double bandUpper;
+    private int head;
+    private int size;
+    // running totals up to and including the newest reading; rebased to 0 on clear()
+    private double totalSum;
+    private int totalInBandCount;
+
+    public AccelerometerDataWindow(int capacity, double bandLower, double bandUpper) {
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+        this.sumsBefore = new double[capacity];
+        this.inBandCountsBefore = new int[capacity];
+        this.bandLower = bandLower;
+        this.bandUpper = bandUpper;
+    }
+
+    void put(long timestamp, double value) {
+        if (size > 0 && timestamps[physicalIndex(size - 1)] == timestamp) {
+            // same key as the newest reading - replace it, as the map-backed window did
+            int newest = physicalIndex(size - 1);
+            totalSum = totalSum - values[newest] + value;
+            totalInBandCount = totalInBandCount - (isInBand(values[newest]) ? 1 : 0) + (isInBand(value) ? 1 : 0);
+            values[newest] = value;
+            return;
+        }
+        if (size == timestamps.length) {
+            head = physicalIndex(1);
+            size--;
+        }
+        int index = physicalIndex(size);
+        timestamps[index] = timestamp;
+        values[index] = value;
+        sumsBefore[index] = totalSum;
+        inBandCountsBefore[index] = totalInBandCount;
+        totalSum = totalSum + value;
+        if (isInBand(value)) totalInBandCount++;
+        size++;
+    }
+
+    void removeOlderThanBy(long timestampReference, long maxAge) {
+        int first = lowerBound(timestampReference - maxAge);
+        head = physicalIndex(first);
+        size -= first;
+    }
+
+    void removeOlderThan(long timestampReference) {
+        removeOlderThanBy(timestampReference, 0);
+    }
+
+    void removeNewerThan(long timestampReference) {
+        int newSize = upperBound(timestampReference);
+        totalSum = sumBefore(newSize);
+        totalInBandCount = inBandCountBefore(newSize);
+        size = newSize;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+        totalSum = 0;
+        totalInBandCount = 0;
+    }
+
+    /**
+     * Replaces the readings, e.g. with a window read back from an event store. Only the newest
+     * readings are kept if there are more than the capacity.
+     */
+    public void load(long[] timestamps, float[] values, int count) {
+        clear();
+        for (int i = 0; i < count; i++) put(timestamps[i], values[i]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[physicalIndex(index)];
+    }
+
+    public double getValue(int index) {
+        return values[physicalIndex(index)];
+    }
+
+    int getNumEntriesInRange(double lower, double upper) {
+        return getNumEntriesInRange(lower, upper, 0, size);
+    }
+
+    /**
+     * Counts readings with value in [lower, upper] among indices [from, to).
+     */
+    int getNumEntriesInRange(double lower, double upper, int from, int to) {
+
+        if (lower == -1 * Double.MIN_VALUE && upper == Double.MAX_VALUE) return to - from;
+        // counts wrap around together, so the difference stays exact
+        if (lower == bandLower && upper == bandUpper) return inBandCountBefore(to) - inBandCountBefore(from);
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            double value = getValue(i);
+            if (value >= lower && value <= upper) count++;
+        }
+        return count;
+    }
+
+    int getFirstEntryGt(double threshold) {
+        return getFirstEntryGt(threshold, 0, size);
+    }
+
+    /**
+     * @return index of the first reading in [from, to) above the threshold, or -1 if there is none
+     */
+    int getFirstEntryGt(double threshold, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (getValue(i) > threshold) return i;
+        }
+        return -1;
+    }
+
+    int getFirstEntryLt(double threshold) {
+        return getFirstEntryLt(threshold, 0, size);
+    }
+
+    /**
+     * @return index of the first reading in [from, to) below the threshold, or -1 if there is none
+     */
+    int getFirstEntryLt(double threshold, int from, int to) {
+        for (int i = from; i < to; i++)
+            if (getValue(i) < threshold) return i;
+        return -1;
+    }
+
+    /**
+     * @return sum of the readings at indices [from, to)
+     */
+    double sum(int from, int to) {
+        return sumBefore(to) - sumBefore(from);
+    }
+
+    /**
+     * @return index of the first reading with timestamp >= the given one, or size if there is none
+     */
+    int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTimestamp(mid) < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return index of the first reading with timestamp > the given one, or size if there is none
+     */
+    int upperBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTimestamp(mid) <= timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private double sumBefore(int index) {
+        return index == size ? totalSum : sumsBefore[physicalIndex(index)];
+    }
+
+    private int inBandCountBefore(int index) {
+        return index == size ? totalInBandCount : inBandCountsBefore[physicalIndex(index)];
+    }
+
+    private boolean isInBand(double value) {
+        return value >= bandLower && value <= bandUpper;
+    }
+
+    private int physicalIndex(int index) {
+        int physical = head + index;
+        return physical < timestamps.length ? physical : physical - timestamps.length;
+    }
+
+}
@@ -0,0 +1,186 @@
+package agh.sm.falldetector.core;
+
+/**
+ * Immutable thresholds and timeouts of {@link PotentialFallDetector}. Accelerations are in m/s^2,
+ * times in milliseconds. {@link #DEFAULT} holds the values the detector was tuned with.
+ */
+public final class DetectorConfig {
+
+    // android.hardware.SensorManager.GRAVITY_EARTH, widened from float like on the device
+    public static final double GRAVITY_EARTH = 9.80665f;
+
+    public static final DetectorConfig DEFAULT = builder().build();
+
+    private final double detectionThreshold;
+    private final long postPeakTimeoutMs;
+    private final long postFallTimeoutMs;
+    private final long preImpactJustBeforeMs;
+    private final double freeFallThreshold;
+    private final double stillBandLower;
+    private final double stillBandUpper;
+    private final int maxSampleRateHz;
+
+    private DetectorConfig(Builder builder) {
+        this.detectionThreshold = builder.detectionThreshold;
+        this.postPeakTimeoutMs = builder.postPeakTimeoutMs;
+        this.postFallTimeoutMs = builder.postFallTimeoutMs;
+        this.preImpactJustBeforeMs = builder.preImpactJustBeforeMs;
+        this.freeFallThreshold = builder.freeFallThreshold;
+        this.stillBandLower = builder.stillBandLower;
+        this.stillBandUpper = builder.stillBandUpper;
+        this.maxSampleRateHz = builder.maxSampleRateHz;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        return new Builder()
+                .detectionThreshold(detectionThreshold)
+                .postPeakTimeoutMs(postPeakTimeoutMs)
+                .postFallTimeoutMs(postFallTimeoutMs)
+                .preImpactJustBeforeMs(preImpactJustBeforeMs)
+                .freeFallThreshold(freeFallThreshold)
+                .stillBand(stillBandLower, stillBandUpper)
+                .maxSampleRateHz(maxSampleRateHz);
+    }
+
+    /** Magnitude that starts (or restarts) an event. */
+    public double getDetectionThreshold() {
+        return detectionThreshold;
+    }
+
+    /** Magnitude counted as part of the impact, half of the detection threshold. */
+    public double getImpactThreshold() {
+        return detectionThreshold / 2.0;
+    }
+
+    public long getPostPeakTimeoutMs() {
+        return postPeakTimeoutMs;
+    }
+
+    public long getPostFallTimeoutMs() {
+        return postFallTimeoutMs;
+    }
+
+    public long getPreImpactJustBeforeMs() {
+        return preImpactJustBeforeMs;
+    }
+
+    /** Readings older than this, relative to a new peak, are dropped from the window. */
+    public long getWindowEntryMaxAgeMs() {
+        return postPeakTimeoutMs + postFallTimeoutMs;
+    }
+
+    /** How far before the impact end the free-fall dip is searched for. */
+    public long getImpactEndLookbackMs() {
+        return postPeakTimeoutMs + preImpactJustBeforeMs;
+    }
+
+    /** Magnitude below which the phone is considered in free fall. */
+    public double getFreeFallThreshold() {
+        return freeFallThreshold;
+    }
+
+    /** Lower bound of the band of magnitudes counted as "not moving". */
+    public double getStillBandLower() {
+        return stillBandLower;
+    }
+
+    /** Upper bound of the band of magnitudes counted as "not moving". */
+    public double getStillBandUpper() {
+        return stillBandUpper;
+    }
+
+    public int getMaxSampleRateHz() {
+        return maxSampleRateHz;
+    }
+
+    /**
+     * Readings the detector window must hold: a window trimmed at the last peak keeps growing
+     * through the post-peak and post-fall states, at up to the maximum sample rate.
+     */
+    public int getWindowCapacity() {
+        long maxSpanMs = getWindowEntryMaxAgeMs() + postPeakTimeoutMs + postFallTimeoutMs;
+        return (int) (maxSpanMs * maxSampleRateHz / 1000) + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "DetectorConfig{threshold=" + detectionThreshold / GRAVITY_EARTH + "g"
+                + ", postPeak=" + postPeakTimeoutMs + "ms"
+                + ", postFall=" + postFallTimeoutMs + "ms"
+                + ", preImpact=" + preImpactJustBeforeMs + "ms"
+                + ", freeFall=" + freeFallThreshold / GRAVITY_EARTH + "g"
+                + ", stillBand=" + stillBandLower / GRAVITY_EARTH + "g-" + stillBandUpper / GRAVITY_EARTH + "g"
+                + ", maxRate=" + maxSampleRateHz + "Hz}";
+    }
+
+    public static final class Builder {
+        private double detectionThreshold = 3.0 * GRAVITY_EARTH;
+        private long postPeakTimeoutMs = 1000;
+        private long postFallTimeoutMs = 2000;
+        private long preImpactJustBeforeMs = 500;
+        private double freeFallThreshold = 0.7 * GRAVITY_EARTH;
+        private double stillBandLower = 0.8 * GRAVITY_EARTH;
+        private double stillBandUpper = 1.2 * GRAVITY_EARTH;
+        private int maxSampleRateHz = 500;
+
+        private Builder() {
+        }
+
+        public Builder detectionThreshold(double detectionThreshold) {
+            this.detectionThreshold = detectionThreshold;
+            return this;
+        }
+
+        public Builder postPeakTimeoutMs(long postPeakTimeoutMs) {
+            this.postPeakTimeoutMs = postPeakTimeoutMs;
+            return this;
+        }
+
+        public Builder postFallTimeoutMs(long postFallTimeoutMs) {
+            this.postFallTimeoutMs = postFallTimeoutMs;
+            return this;
+        }
+
+        public Builder preImpactJustBeforeMs(long preImpactJustBeforeMs) {
+            this.preImpactJustBeforeMs = preImpactJustBeforeMs;
+            return this;
+        }
+
+        public Builder freeFallThreshold(double freeFallThreshold) {
+            this.freeFallThreshold = freeFallThreshold;
+            return this;
+        }
+
+        public Builder stillBand(double lower, double upper) {
+            this.stillBandLower = lower;
+            this.stillBandUpper = upper;
+            return this;
+        }
+
+        public Builder maxSampleRateHz(int maxSampleRateHz) {
+            this.maxSampleRateHz = maxSampleRateHz;
+            return this;
+        }
+
+        public DetectorConfig build() {
+            if (detectionThreshold <= 0) {
+                throw new IllegalArgumentException("Detection threshold must be positive: " + detectionThreshold);
+            }
+            if (postPeakTimeoutMs <= 0 || postFallTimeoutMs <= 0 || preImpactJustBeforeMs < 0) {
+                throw new IllegalArgumentException("Timeouts must be positive");
+            }
+            if (stillBandLower > stillBandUpper) {
+                throw new IllegalArgumentException("Still band lower bound above upper bound: "
+                        + stillBandLower + " > " + stillBandUpper);
+            }
+            if (maxSampleRateHz <= 0) {
+                throw new IllegalArgumentException("Sample rate must be positive: " + maxSampleRateHz);
+            }
+            return new DetectorConfig(this);
+        }
+    }
+}
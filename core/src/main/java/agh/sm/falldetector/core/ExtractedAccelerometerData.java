@@ -0,0 +1,80 @@
+package agh.sm.falldetector.core;
+
+/**
+ * Features of a fall-like event, read from the detector window by index ranges.
+ */
+public class ExtractedAccelerometerData {
+
+    public double impactDuration;
+    public double impactViolence;
+    public double impactAverage;
+    public double postImpactAverage;
+
+    // event times in milliseconds, as kept in the window
+    public final long triggerPeakTime;
+    public final long impactEnd;
+    private long impactStart;
+
+    public ExtractedAccelerometerData(AccelerometerDataWindow window, long triggerPeakTime, long impactEnd) {
+        this(window, triggerPeakTime, impactEnd, DetectorConfig.DEFAULT);
+    }
+
+    public ExtractedAccelerometerData(AccelerometerDataWindow window, long triggerPeakTime, long impactEnd,
+                                      DetectorConfig config) {
+        this.triggerPeakTime = triggerPeakTime;
+        this.impactEnd = impactEnd;
+        extractData(window, config);
+    }
+
+    /**
+     * Features of an event not taken from a window, e.g. a row of the training data; event times are 0.
+     */
+    public ExtractedAccelerometerData(double impactDuration, double impactViolence, double impactAverage,
+                                      double postImpactAverage) {
+        this.impactDuration = impactDuration;
+        this.impactViolence = impactViolence;
+        this.impactAverage = impactAverage;
+        this.postImpactAverage = postImpactAverage;
+        this.triggerPeakTime = 0;
+        this.impactEnd = 0;
+    }
+
+    private void extractData(AccelerometerDataWindow window, DetectorConfig config) {
+        int subsetFrom = window.lowerBound(impactEnd - config.getImpactEndLookbackMs());
+        int subsetTo = window.upperBound(triggerPeakTime);
+
+        int dip = window.getFirstEntryLt(config.getFreeFallThreshold(), subsetFrom, subsetTo);
+        if (dip == -1) {
+            impactStart = triggerPeakTime;
+        } else {
+            int start = window.getFirstEntryGt(config.getImpactThreshold(), dip, subsetTo);
+            if (start == -1) {
+                impactStart = triggerPeakTime;
+            } else {
+                impactStart = window.getTimestamp(start);
+            }
+        }
+        this.impactDuration = impactEnd - impactStart;
+        computeImpactViolenceAndAverage(window, config);
+        computePostImpactAverage(window);
+
+    }
+
+    private void computePostImpactAverage(AccelerometerDataWindow window) {
+        int from = window.lowerBound(impactEnd);
+        int to = window.size();
+
+        this.postImpactAverage = window.sum(from, to) / (to - from);
+    }
+
+    private void computeImpactViolenceAndAverage(AccelerometerDataWindow window, DetectorConfig config) {
+        int from = window.lowerBound(impactStart);
+        int to = window.upperBound(impactEnd);
+
+        int size = to - from;
+        int inBand = window.getNumEntriesInRange(config.getStillBandLower(), config.getStillBandUpper(),
+                from, to);
+        this.impactViolence = (size - inBand) / (double) size;
+        this.impactAverage = window.sum(from, to) / size;
+    }
+}
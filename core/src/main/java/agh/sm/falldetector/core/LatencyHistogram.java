@@ -0,0 +1,106 @@
+package agh.sm.falldetector.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds: every power of two is split into 32 linear
+ * buckets, so a recorded value is reported within about 3% of its true value. Recording is
+ * lock-free and safe from any thread, reading while recording gives an approximate snapshot.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long latencyNs) {
+        counts.incrementAndGet(indexOf(Math.max(0, latencyNs)));
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) counts.addAndGet(i, count);
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @param quantile e.g. 0.99 for the 99th percentile
+     * @return upper bound of the bucket holding the quantile, 0 if nothing was recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        long total = getCount();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return highestValueOf(i);
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) return highestValueOf(i);
+        }
+        return 0;
+    }
+
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count == 0) continue;
+            total += count;
+            sum += count * ((lowestValueOf(i) + highestValueOf(i)) / 2.0);
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * @return e.g. {@code n=1000 mean=1.2 p50=1.1 p99=3.4 p999=7.9 max=8.0 ms}
+     */
+    public String summaryMs() {
+        return String.format("n=%d mean=%.3f p50=%.3f p99=%.3f p999=%.3f max=%.3f ms", getCount(), getMean() / 1e6,
+                getValueAtQuantile(0.5) / 1e6, getValueAtQuantile(0.99) / 1e6, getValueAtQuantile(0.999) / 1e6,
+                getMax() / 1e6);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    static long lowestValueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (1L << (shift + SUB_BUCKET_BITS)) + ((long) sub << shift);
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        return lowestValueOf(index) + (1L << shift) - 1;
+    }
+}
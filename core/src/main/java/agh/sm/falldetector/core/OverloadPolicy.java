@@ -0,0 +1,18 @@
+package agh.sm.falldetector.core;
+
+/**
+ * What {@link SensorSampleRing#publish} does with a reading when the consumer falls behind.
+ */
+public enum OverloadPolicy {
+    /** Wait for the consumer to make room, stalling the producer. */
+    BLOCK,
+    /** Overwrite the oldest queued reading. */
+    DROP_OLDEST,
+    /** Discard the new reading. */
+    DROP_NEWEST,
+    /**
+     * Once the ring is filling up, keep only the strongest reading of every few, so peaks survive
+     * at a lower rate; discard the new reading if the ring is full all the same.
+     */
+    DECIMATE
+}
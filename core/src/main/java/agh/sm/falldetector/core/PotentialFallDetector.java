@@ -0,0 +1,223 @@
+package agh.sm.falldetector.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finite state machine spotting fall-like events in a stream of acceleration magnitudes.
+ * Plain Java, so it runs the same on the phone and on a JVM.
+ */
+public class PotentialFallDetector {
+
+    private static final int STATE_WAITING_FOR_PEAK = 0;
+    private static final int STATE_POST_PEAK_EVENT = 1;
+    private static final int STATE_POST_FALL_EVENT = 2;
+    private static final int STATE_EVENT_FINISHED = 3;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final DetectorConfig config;
+    private final double detectionThreshold;
+    private final double impactThreshold;
+    private final long postPeakTimeoutMs;
+    private final long postFallTimeoutMs;
+    private final long windowEntryMaxAgeMs;
+    private final PotentialFallListener listener;
+    private long postPeakTimeStart;
+    private long postFallTimeStart;
+    private int state;
+    private AccelerometerDataWindow fallLikeEventWindow;
+    private long triggerPeakTime;
+    private long impactEnd;
+    private long lastReadingTimestamp;
+    private double[] batchMagnitudes = new double[0];
+
+    public PotentialFallDetector(PotentialFallListener listener) {
+        this(DetectorConfig.DEFAULT, listener);
+    }
+
+    public PotentialFallDetector(DetectorConfig config, PotentialFallListener listener) {
+
+        this.config = config;
+        this.detectionThreshold = config.getDetectionThreshold();
+        this.impactThreshold = config.getImpactThreshold();
+        this.postPeakTimeoutMs = config.getPostPeakTimeoutMs();
+        this.postFallTimeoutMs = config.getPostFallTimeoutMs();
+        this.windowEntryMaxAgeMs = config.getWindowEntryMaxAgeMs();
+        this.listener = listener;
+        fallLikeEventWindow = new AccelerometerDataWindow(config.getWindowCapacity(),
+                config.getStillBandLower(), config.getStillBandUpper());
+        resetFSM();
+
+    }
+
+    public DetectorConfig getConfig() {
+        return config;
+    }
+
+    private void resetFSM() {
+        state = STATE_WAITING_FOR_PEAK;
+        resetValues();
+        fallLikeEventWindow.clear();
+    }
+
+    private void resetValues() {
+        postPeakTimeStart = 0;
+        postFallTimeStart = 0;
+        impactEnd = 0;
+        triggerPeakTime = 0;
+        lastReadingTimestamp = 0;
+    }
+
+    private ExtractedAccelerometerData doClock(long timestamp, double accelerationMaginitude) {
+        timestamp = timestamp / NANOS_PER_MILLI;
+
+        switch (state) {
+            case STATE_WAITING_FOR_PEAK:
+                handleStateWaitingForPeak(timestamp, accelerationMaginitude);
+                break;
+            case STATE_POST_PEAK_EVENT:
+                handlePostPeakEvent(timestamp, accelerationMaginitude);
+                break;
+            case STATE_POST_FALL_EVENT:
+                handlePostFallEvent(timestamp, accelerationMaginitude);
+                break;
+            case STATE_EVENT_FINISHED:
+                return new ExtractedAccelerometerData(fallLikeEventWindow, triggerPeakTime, impactEnd, config);
+        }
+        lastReadingTimestamp = timestamp;
+        return null;
+    }
+
+    private void handlePostFallEvent(long timestamp, double accelerationMaginitude) {
+        if (timestamp - postFallTimeStart > postFallTimeoutMs) {
+            state = STATE_EVENT_FINISHED;
+            return;
+        }
+
+        fallLikeEventWindow.put(timestamp, accelerationMaginitude);
+
+        if (accelerationMaginitude >= detectionThreshold) {
+            fallLikeEventWindow.removeOlderThanBy(timestamp, windowEntryMaxAgeMs);
+            postPeakTimeStart = timestamp;
+            state = STATE_POST_PEAK_EVENT;
+            triggerPeakTime = timestamp;
+        }
+    }
+
+    private void handlePostPeakEvent(long timestamp, double accelerationMaginitude) {
+        fallLikeEventWindow.put(timestamp, accelerationMaginitude);
+        if (timestamp - postPeakTimeStart > postPeakTimeoutMs) {
+            postFallTimeStart = timestamp;
+            state = STATE_POST_FALL_EVENT;
+            return;
+        }
+
+        if (accelerationMaginitude >= detectionThreshold) {
+            fallLikeEventWindow.removeOlderThanBy(timestamp, windowEntryMaxAgeMs);
+            postPeakTimeStart = timestamp;
+            state = STATE_POST_PEAK_EVENT;
+            triggerPeakTime = timestamp;
+            return;
+        } else if (accelerationMaginitude >= impactThreshold) {
+            impactEnd = timestamp;
+        }
+        state = STATE_POST_PEAK_EVENT;
+        if (lastReadingTimestamp == triggerPeakTime) impactEnd = timestamp;
+    }
+
+    private void handleStateWaitingForPeak(long timestamp, double accelerationMaginitude) {
+        if (accelerationMaginitude >= detectionThreshold) {
+            postPeakTimeStart = timestamp;
+            state = STATE_POST_PEAK_EVENT;
+            triggerPeakTime = timestamp;
+            fallLikeEventWindow.removeOlderThanBy(timestamp, windowEntryMaxAgeMs);
+
+        } else {
+            state = STATE_WAITING_FOR_PEAK;
+        }
+        fallLikeEventWindow.put(timestamp, accelerationMaginitude);
+
+    }
+
+    /**
+     * Advances the FSM by one reading.
+     *
+     * @param timestamp reading time in nanoseconds
+     * @param G         acceleration magnitude in m/s^2
+     * @return features of a finished fall-like event, or null
+     */
+    public ExtractedAccelerometerData run(long timestamp, double G) {
+        ExtractedAccelerometerData rv = this.doClock(timestamp, G);
+        if (rv != null) {
+            if (listener != null) listener.onPotentialFall(this.fallLikeEventWindow, rv);
+            resetFSM();
+        }
+        return rv;
+    }
+
+    /**
+     * Ends the stream, e.g. at the end of a recorded trace. An event is only reported on the first
+     * reading after its post-fall timeout, so one whose post-fall phase the stream cut short would
+     * otherwise be lost; it is reported here instead, to the listener as well. An event still in
+     * its post-peak phase is incomplete and dropped. The detector starts over afterwards.
+     *
+     * @return features of the event cut short, or null
+     */
+    public ExtractedAccelerometerData finish() {
+        ExtractedAccelerometerData rv = null;
+        if (state == STATE_POST_FALL_EVENT || state == STATE_EVENT_FINISHED) {
+            rv = new ExtractedAccelerometerData(fallLikeEventWindow, triggerPeakTime, impactEnd, config);
+            if (listener != null) listener.onPotentialFall(this.fallLikeEventWindow, rv);
+        }
+        resetFSM();
+        return rv;
+    }
+
+    /**
+     * Advances the FSM over a batch of raw readings, e.g. a hardware FIFO flush or a network frame.
+     * Magnitudes are computed for the whole batch first, in a loop simple enough for the JIT to
+     * vectorize, then fed through the FSM in order.
+     *
+     * @param timestamps reading times in nanoseconds
+     * @param xyz        interleaved x, y, z accelerations in m/s^2, three per reading
+     * @param offset     index of the first reading, in timestamps (xyz starts at offset * 3)
+     * @param count      number of readings
+     * @return features of the events finished within the batch, empty if none
+     */
+    public List<ExtractedAccelerometerData> runBatch(long[] timestamps, float[] xyz, int offset, int count) {
+        if (batchMagnitudes.length < count) batchMagnitudes = new double[count];
+        double[] magnitudes = batchMagnitudes;
+        int base = offset * 3;
+        for (int i = 0; i < count; i++) {
+            float x = xyz[base + i * 3];
+            float y = xyz[base + i * 3 + 1];
+            float z = xyz[base + i * 3 + 2];
+            magnitudes[i] = Math.sqrt(x * x + y * y + z * z);
+        }
+
+        List<ExtractedAccelerometerData> events = Collections.emptyList();
+        for (int i = 0; i < count; i++) {
+            ExtractedAccelerometerData rv = run(timestamps[offset + i], magnitudes[i]);
+            if (rv != null) {
+                if (events.isEmpty()) events = new ArrayList<>(1);
+                events.add(rv);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Computes the features of the event currently being tracked without finishing it,
+     * e.g. for live monitoring. Range sums and band counts are O(1) window queries.
+     *
+     * @return current features, or null while waiting for a peak and on the peak's own reading,
+     * before the impact end is known
+     */
+    public ExtractedAccelerometerData peekFeatures() {
+        if (state == STATE_WAITING_FOR_PEAK || impactEnd == 0) return null;
+        return new ExtractedAccelerometerData(fallLikeEventWindow, triggerPeakTime, impactEnd, config);
+    }
+
+}
@@ -0,0 +1,17 @@
+package agh.sm.falldetector.core;
+
+/**
+ * Receives potential falls found by {@link PotentialFallDetector}. Side effects such as alerting the
+ * user or dumping the event to storage live behind this interface, so the detector itself stays
+ * free of platform dependencies.
+ */
+public interface PotentialFallListener {
+
+    /**
+     * Called on the thread running the detector, before the window is reset for the next event.
+     *
+     * @param window   readings of the event, only valid for the duration of the call
+     * @param features features extracted from the window
+     */
+    void onPotentialFall(AccelerometerDataWindow window, ExtractedAccelerometerData features);
+}
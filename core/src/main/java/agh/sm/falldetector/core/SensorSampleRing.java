@@ -0,0 +1,222 @@
+package agh.sm.falldetector.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of raw accelerometer readings. Readings are
+ * copied into preallocated primitive arrays, so neither side allocates and the producer may
+ * reuse its event objects right away. Exactly one thread may offer and one thread may take.
+ * <p>
+ * {@link #publish} applies the ring's {@link OverloadPolicy} when the consumer falls behind and
+ * counts the readings it drops or decimates. The consumer claims readings with a CAS, so the
+ * producer may discard the oldest reading without a lock.
+ */
+public class SensorSampleRing {
+
+    static final int DECIMATION_FACTOR = 4;
+
+    private final long[] timestamps;
+    private final float[] xyz;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final OverloadPolicy overloadPolicy;
+    private final int decimationHighWaterMark;
+    private final int decimationLowWaterMark;
+
+    // next slot to write, published by the producer with lazySet
+    private final AtomicLong head = new AtomicLong();
+    // next slot to read, claimed by the consumer with a CAS
+    private final AtomicLong tail = new AtomicLong();
+    // each side's last view of the other side's index, to avoid a volatile read per reading
+    private long cachedTail;
+    private long cachedHead;
+
+    // written by the producer only
+    private volatile long droppedCount;
+    private volatile long decimatedCount;
+    private boolean decimating;
+    private int decimationGroupSize;
+    private long strongestTimestamp;
+    private float strongestX;
+    private float strongestY;
+    private float strongestZ;
+    private float strongestSquared;
+
+    /**
+     * @param capacity readings the ring can hold, rounded up to a power of two
+     */
+    public SensorSampleRing(int capacity, WaitStrategy waitStrategy) {
+        this(capacity, waitStrategy, OverloadPolicy.BLOCK);
+    }
+
+    /**
+     * @param capacity readings the ring can hold, rounded up to a power of two
+     */
+    public SensorSampleRing(int capacity, WaitStrategy waitStrategy, OverloadPolicy overloadPolicy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.timestamps = new long[size];
+        this.xyz = new float[size * 3];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.overloadPolicy = overloadPolicy;
+        this.decimationHighWaterMark = size - size / 4;
+        this.decimationLowWaterMark = size / 2;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return false if the ring is full and the reading was not stored
+     */
+    public boolean offer(long timestamp, float x, float y, float z) {
+        long position = head.get();
+        if (position - cachedTail >= timestamps.length) {
+            cachedTail = tail.get();
+            if (position - cachedTail >= timestamps.length) return false;
+        }
+        int index = (int) position & mask;
+        timestamps[index] = timestamp;
+        xyz[index * 3] = x;
+        xyz[index * 3 + 1] = y;
+        xyz[index * 3 + 2] = z;
+        head.lazySet(position + 1);
+        return true;
+    }
+
+    /**
+     * Producer side. Stores the reading, or handles it according to the overload policy if the
+     * consumer is behind.
+     */
+    public void publish(long timestamp, float x, float y, float z) {
+        switch (overloadPolicy) {
+            case BLOCK:
+                put(timestamp, x, y, z);
+                break;
+            case DROP_OLDEST:
+                while (!offer(timestamp, x, y, z)) {
+                    long oldest = tail.get();
+                    if (head.get() - oldest >= timestamps.length && tail.compareAndSet(oldest, oldest + 1)) {
+                        droppedCount++;
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if (!offer(timestamp, x, y, z)) droppedCount++;
+                break;
+            case DECIMATE:
+                publishDecimated(timestamp, x, y, z);
+                break;
+        }
+    }
+
+    private void publishDecimated(long timestamp, float x, float y, float z) {
+        int queued = (int) (head.get() - tail.get());
+        if (!decimating && queued >= decimationHighWaterMark) {
+            decimating = true;
+        } else if (decimating && queued <= decimationLowWaterMark) {
+            decimating = false;
+            flushDecimationGroup();
+        }
+        if (!decimating) {
+            if (!offer(timestamp, x, y, z)) droppedCount++;
+            return;
+        }
+
+        float squared = x * x + y * y + z * z;
+        if (decimationGroupSize == 0 || squared > strongestSquared) {
+            strongestTimestamp = timestamp;
+            strongestX = x;
+            strongestY = y;
+            strongestZ = z;
+            strongestSquared = squared;
+        }
+        if (++decimationGroupSize == DECIMATION_FACTOR) flushDecimationGroup();
+    }
+
+    private void flushDecimationGroup() {
+        if (decimationGroupSize == 0) return;
+        decimatedCount += decimationGroupSize - 1;
+        if (!offer(strongestTimestamp, strongestX, strongestY, strongestZ)) droppedCount++;
+        decimationGroupSize = 0;
+    }
+
+    /**
+     * @return readings discarded because the ring was full
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return readings folded into a stronger neighbour while decimating
+     */
+    public long getDecimatedCount() {
+        return decimatedCount;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    /**
+     * Producer side. Waits with the ring's strategy until there is room for the reading.
+     */
+    public void put(long timestamp, float x, float y, float z) {
+        int attempt = 0;
+        while (!offer(timestamp, x, y, z)) waitStrategy.idle(attempt++);
+    }
+
+    /**
+     * Consumer side. Copies up to max readings without waiting.
+     *
+     * @return number of readings copied
+     */
+    public int drainTo(long[] timestampsOut, float[] xyzOut, int max) {
+        while (true) {
+            long position = tail.get();
+            long available = cachedHead - position;
+            if (available <= 0) {
+                cachedHead = head.get();
+                available = cachedHead - position;
+                if (available <= 0) return 0;
+            }
+            int count = (int) Math.min(available, max);
+            for (int i = 0; i < count; i++) {
+                int index = (int) (position + i) & mask;
+                timestampsOut[i] = timestamps[index];
+                xyzOut[i * 3] = xyz[index * 3];
+                xyzOut[i * 3 + 1] = xyz[index * 3 + 1];
+                xyzOut[i * 3 + 2] = xyz[index * 3 + 2];
+            }
+            // fails only if the producer dropped the oldest reading meanwhile, the copy may be torn
+            if (tail.compareAndSet(position, position + count)) return count;
+        }
+    }
+
+    /**
+     * Consumer side. Waits with the ring's strategy until at least one reading is available.
+     *
+     * @return number of readings copied, at least one
+     * @throws InterruptedException if the consumer thread is interrupted while waiting
+     */
+    public int take(long[] timestampsOut, float[] xyzOut, int max) throws InterruptedException {
+        int attempt = 0;
+        while (true) {
+            int count = drainTo(timestampsOut, xyzOut, max);
+            if (count > 0) return count;
+            if (Thread.interrupted()) throw new InterruptedException();
+            waitStrategy.idle(attempt++);
+        }
+    }
+
+    /**
+     * @return readings currently queued, approximate when called from a third thread
+     */
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+}
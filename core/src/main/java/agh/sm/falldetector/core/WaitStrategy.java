@@ -0,0 +1,39 @@
+package agh.sm.falldetector.core;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on a {@link SensorSampleRing} that is empty (consumer) or full (producer).
+ * Spinning gives the lowest hand-off latency and burns a core; parking is the friendliest to
+ * the battery.
+ */
+public enum WaitStrategy {
+    SPIN {
+        @Override
+        void idle(int attempt) {
+            // busy wait
+        }
+    },
+    YIELD {
+        @Override
+        void idle(int attempt) {
+            Thread.yield();
+        }
+    },
+    PARK {
+        @Override
+        void idle(int attempt) {
+            if (attempt < SPINS_BEFORE_PARKING) return;
+            LockSupport.parkNanos(attempt < SPINS_BEFORE_PARKING * 2 ? MIN_PARK_NS : MAX_PARK_NS);
+        }
+    };
+
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long MIN_PARK_NS = 50000;
+    private static final long MAX_PARK_NS = 1000000;
+
+    /**
+     * @param attempt number of times the caller has already waited for the same condition
+     */
+    abstract void idle(int attempt);
+}
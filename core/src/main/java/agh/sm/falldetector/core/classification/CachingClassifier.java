@@ -0,0 +1,279 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the classes of recent events in front of a slower classifier. Events whose features
+ * fall into the same quantization cell, e.g. the phone set down on the same table again, are
+ * answered from the cache. Entries expire after a time-to-live and the least recently used entry
+ * is evicted when the cache is full. Failures of the classifier are not cached.
+ * <p>
+ * A cell is coarser than the classifier, so a cached answer may be wrong for an event near a cell
+ * edge. Where one class must never be missed, cache only the other answer with
+ * {@link Builder#onlyCache(int)}: e.g. caching only falls repeats an alert, while a cached walk
+ * could hide a real fall. {@link Builder#cacheOthers(int, long)} still caches the other answers,
+ * but only for events in much finer cells and for a much shorter time, so only a near-exact repeat
+ * of an event seconds later is answered from the cache.
+ */
+public class CachingClassifier implements FallClassifier {
+
+    private static final int ANY_CLASS = -1;
+
+    private final FallClassifier classifier;
+    private final double[] quanta;
+    private final long ttlNanos;
+    private final int cachedClass;
+    private final int otherSubdivisions;
+    private final long otherTtlNanos;
+    private final LinkedHashMap<Key, CachedClass> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private CachingClassifier(Builder builder) {
+        this.classifier = builder.classifier;
+        this.quanta = builder.quanta.clone();
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(builder.ttlMs);
+        this.cachedClass = builder.cachedClass;
+        this.otherSubdivisions = builder.otherSubdivisions;
+        this.otherTtlNanos = TimeUnit.MILLISECONDS.toNanos(builder.otherTtlMs);
+        final int capacity = builder.capacity;
+        this.entries = new LinkedHashMap<Key, CachedClass>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedClass> eldest) {
+                if (size() <= capacity) return false;
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    public static Builder builder(FallClassifier classifier) {
+        return new Builder(classifier);
+    }
+
+    @Override
+    public int classify(ExtractedAccelerometerData features) throws IOException {
+        Key key = keyOf(features, 1);
+        if (key == null) {
+            misses.incrementAndGet();
+            return classifier.classify(features);
+        }
+        Key otherKey = cachesOthers() ? keyOf(features, otherSubdivisions) : null;
+        long now = System.nanoTime();
+        synchronized (entries) {
+            CachedClass entry = lookUp(key, now);
+            if (entry == null && otherKey != null) entry = lookUp(otherKey, now);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.classification;
+            }
+        }
+        misses.incrementAndGet();
+        int classification = classifier.classify(features);
+        if (cachedClass == ANY_CLASS || classification == cachedClass) {
+            store(key, classification, ttlNanos);
+        } else if (otherKey != null) {
+            store(otherKey, classification, otherTtlNanos);
+        }
+        return classification;
+    }
+
+    private boolean cachesOthers() {
+        return cachedClass != ANY_CLASS && otherSubdivisions > 0 && otherTtlNanos > 0;
+    }
+
+    /**
+     * @return the live entry of the cell, null if there is none or it expired
+     */
+    private CachedClass lookUp(Key key, long now) {
+        CachedClass entry = entries.get(key);
+        if (entry == null) return null;
+        if (now - entry.storedAt < entry.ttlNanos) return entry;
+        entries.remove(key);
+        expirations.incrementAndGet();
+        return null;
+    }
+
+    private void store(Key key, int classification, long ttl) {
+        synchronized (entries) {
+            entries.put(key, new CachedClass(classification, System.nanoTime(), ttl));
+        }
+    }
+
+    /**
+     * Drops the expired entries, which are otherwise only dropped when looked up or evicted.
+     */
+    public void purgeExpired() {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Iterator<CachedClass> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                CachedClass entry = iterator.next();
+                if (now - entry.storedAt >= entry.ttlNanos) {
+                    iterator.remove();
+                    expirations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : hits.get() / (double) lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d expired, %d evicted, %d cached",
+                hits.get(), misses.get(), 100 * getHitRate(), expirations.get(), evictions.get(), size());
+    }
+
+    /**
+     * @param subdivisions 1 for the cells of the cached class, finer for the other answers
+     * @return the cell of the features, null for features that cannot be quantized
+     */
+    private Key keyOf(ExtractedAccelerometerData features, int subdivisions) {
+        double duration = Math.floor(features.impactDuration * subdivisions / quanta[0]);
+        double violence = Math.floor(features.impactViolence * subdivisions / quanta[1]);
+        double average = Math.floor(features.impactAverage * subdivisions / quanta[2]);
+        double postAverage = Math.floor(features.postImpactAverage * subdivisions / quanta[3]);
+        if (!isFinite(duration) || !isFinite(violence) || !isFinite(average) || !isFinite(postAverage)) return null;
+        return new Key(subdivisions, (long) duration, (long) violence, (long) average, (long) postAverage);
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    private static final class Key {
+        private final int subdivisions;
+        private final long duration, violence, average, postAverage;
+
+        Key(int subdivisions, long duration, long violence, long average, long postAverage) {
+            this.subdivisions = subdivisions;
+            this.duration = duration;
+            this.violence = violence;
+            this.average = average;
+            this.postAverage = postAverage;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return subdivisions == other.subdivisions && duration == other.duration && violence == other.violence
+                    && average == other.average && postAverage == other.postAverage;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = subdivisions;
+            h = h * 31 + duration;
+            h = h * 31 + violence;
+            h = h * 31 + average;
+            h = h * 31 + postAverage;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private static final class CachedClass {
+        final int classification;
+        final long storedAt;
+        final long ttlNanos;
+
+        CachedClass(int classification, long storedAt, long ttlNanos) {
+            this.classification = classification;
+            this.storedAt = storedAt;
+            this.ttlNanos = ttlNanos;
+        }
+    }
+
+    public static final class Builder {
+        private final FallClassifier classifier;
+        // cell sizes of impact duration (ms), violence, average and post-impact average (m/s^2)
+        private final double[] quanta = {10, 0.01, 0.1, 0.1};
+        private int capacity = 256;
+        private long ttlMs = TimeUnit.MINUTES.toMillis(10);
+        private int cachedClass = ANY_CLASS;
+        private int otherSubdivisions;
+        private long otherTtlMs;
+
+        private Builder(FallClassifier classifier) {
+            this.classifier = classifier;
+        }
+
+        /**
+         * Sets the cell size of each feature; events in the same cell share a cache entry.
+         */
+        public Builder quantization(double impactDurationMs, double impactViolence, double impactAverage,
+                                    double postImpactAverage) {
+            quanta[0] = impactDurationMs;
+            quanta[1] = impactViolence;
+            quanta[2] = impactAverage;
+            quanta[3] = postImpactAverage;
+            return this;
+        }
+
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder ttlMs(long ttlMs) {
+            this.ttlMs = ttlMs;
+            return this;
+        }
+
+        /**
+         * Caches only answers of the given class, any other answer is asked again for every event.
+         */
+        public Builder onlyCache(int classification) {
+            this.cachedClass = classification;
+            return this;
+        }
+
+        /**
+         * With {@link #onlyCache(int)}, caches the other answers too, but in cells {@code subdivisions}
+         * times finer in every feature and for {@code ttlMs} only.
+         */
+        public Builder cacheOthers(int subdivisions, long ttlMs) {
+            this.otherSubdivisions = subdivisions;
+            this.otherTtlMs = ttlMs;
+            return this;
+        }
+
+        public CachingClassifier build() {
+            return new CachingClassifier(this);
+        }
+    }
+}
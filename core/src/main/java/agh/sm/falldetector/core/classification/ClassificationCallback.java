@@ -0,0 +1,19 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+/**
+ * Completion of a classification submitted to a {@link ClassificationStage}. Exactly one of the
+ * methods is called per submitted event, on a classification thread.
+ */
+public interface ClassificationCallback {
+
+    void onClassified(ExtractedAccelerometerData features, int classification);
+
+    /**
+     * @param cause {@link java.util.concurrent.TimeoutException} if the classification ran past its
+     *              timeout, {@link java.util.concurrent.RejectedExecutionException} if the stage was
+     *              full, otherwise the classifier's own failure
+     */
+    void onClassificationFailed(ExtractedAccelerometerData features, Exception cause);
+}
@@ -0,0 +1,99 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary frames of the classification protocol, big-endian and of fixed size.
+ * <pre>
+ * header   magic u16 (0xFA11), version u8, type u8
+ * hello    header                                            4 bytes
+ * request  header, request id i64, 4 features f64          44 bytes
+ * reply    header, request id i64, class i32, confidence f32 20 bytes
+ * </pre>
+ * A client wanting binary frames opens the connection with a hello carrying the highest version
+ * it speaks, the server answers with a hello carrying the version both will use. The magic never
+ * starts a JSON text, so servers tell binary clients from JSON ones by the first byte.
+ */
+public final class ClassificationFrames {
+
+    public static final short MAGIC = (short) 0xFA11;
+    public static final byte VERSION = 1;
+
+    public static final byte HELLO = 0;
+    public static final byte REQUEST = 1;
+    public static final byte REPLY = 2;
+
+    public static final int HEADER_SIZE = 4;
+    public static final int HELLO_SIZE = HEADER_SIZE;
+    public static final int REQUEST_SIZE = HEADER_SIZE + 8 + 4 * 8;
+    public static final int REPLY_SIZE = HEADER_SIZE + 8 + 4 + 4;
+
+    private ClassificationFrames() {
+    }
+
+    public static void putHello(ByteBuffer buffer, byte version) {
+        putHeader(buffer, version, HELLO);
+    }
+
+    public static void putRequest(ByteBuffer buffer, long requestId, ExtractedAccelerometerData features) {
+        putHeader(buffer, VERSION, REQUEST);
+        buffer.putLong(requestId)
+                .putDouble(features.impactDuration)
+                .putDouble(features.impactViolence)
+                .putDouble(features.impactAverage)
+                .putDouble(features.postImpactAverage);
+    }
+
+    public static void putReply(ByteBuffer buffer, long requestId, int classification, float confidence) {
+        putHeader(buffer, VERSION, REPLY);
+        buffer.putLong(requestId).putInt(classification).putFloat(confidence);
+    }
+
+    /**
+     * Reads a hello.
+     *
+     * @return version carried by the hello
+     */
+    public static byte getHello(ByteBuffer buffer) throws ProtocolException {
+        return getHeader(buffer, HELLO);
+    }
+
+    /**
+     * Reads a request, leaving the buffer positioned after its header and request id.
+     *
+     * @param features receives impact duration, violence, average and post-impact average
+     * @return request id
+     */
+    public static long getRequest(ByteBuffer buffer, double[] features) throws ProtocolException {
+        getHeader(buffer, REQUEST);
+        long requestId = buffer.getLong();
+        for (int i = 0; i < 4; i++) features[i] = buffer.getDouble();
+        return requestId;
+    }
+
+    /**
+     * Checks the header of a reply, the request id, class and confidence follow it.
+     */
+    public static void getReplyHeader(ByteBuffer buffer) throws ProtocolException {
+        getHeader(buffer, REPLY);
+    }
+
+    private static void putHeader(ByteBuffer buffer, byte version, byte type) {
+        buffer.putShort(MAGIC).put(version).put(type);
+    }
+
+    private static byte getHeader(ByteBuffer buffer, byte expectedType) throws ProtocolException {
+        short magic = buffer.getShort();
+        byte version = buffer.get();
+        byte type = buffer.get();
+        if (magic != MAGIC) throw new ProtocolException("Not a classification frame: magic " + Integer.toHexString(magic & 0xFFFF));
+        if (type != expectedType) throw new ProtocolException("Expected frame type " + expectedType + ", got " + type);
+        if (version < 1 || (type != HELLO && version > VERSION)) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+        return version;
+    }
+}
@@ -0,0 +1,23 @@
+package agh.sm.falldetector.core.classification;
+
+/**
+ * Class of an event together with the classifier's confidence in it.
+ */
+public class ClassificationResult {
+
+    public final int classification;
+    /**
+     * Probability of the class in [0, 1], NaN if the classifier did not report one.
+     */
+    public final float confidence;
+
+    public ClassificationResult(int classification, float confidence) {
+        this.classification = classification;
+        this.confidence = confidence;
+    }
+
+    @Override
+    public String toString() {
+        return classification + " (" + confidence + ")";
+    }
+}
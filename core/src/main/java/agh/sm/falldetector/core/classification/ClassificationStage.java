@@ -0,0 +1,98 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a {@link FallClassifier} on its own bounded pool, so the thread feeding the detector never
+ * waits on the network. Every classification gets a deadline; a classification still running at
+ * its deadline is reported as timed out and interrupted.
+ */
+public class ClassificationStage {
+
+    private final FallClassifier classifier;
+    private final long timeoutMs;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timeouts;
+
+    /**
+     * @param threads       classifications running at the same time
+     * @param queueCapacity classifications waiting for a thread before new ones are rejected
+     * @param timeoutMs     deadline of one classification, counted from submission
+     */
+    public ClassificationStage(FallClassifier classifier, int threads, int queueCapacity, long timeoutMs) {
+        this.classifier = classifier;
+        this.timeoutMs = timeoutMs;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new NamedThreadFactory("Classification"));
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ClassificationTimeout"));
+    }
+
+    /**
+     * Queues the event for classification and returns immediately. The callback is invoked
+     * exactly once, also when the stage is full.
+     */
+    public void submit(final ExtractedAccelerometerData features, final ClassificationCallback callback) {
+        final AtomicBoolean completed = new AtomicBoolean();
+        final Future<?> task;
+        try {
+            task = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    int classification;
+                    try {
+                        classification = classifier.classify(features);
+                    } catch (Exception e) {
+                        if (completed.compareAndSet(false, true)) callback.onClassificationFailed(features, e);
+                        return;
+                    }
+                    if (completed.compareAndSet(false, true)) callback.onClassified(features, classification);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onClassificationFailed(features, e);
+            return;
+        }
+        timeouts.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (completed.compareAndSet(false, true)) {
+                    task.cancel(true);
+                    callback.onClassificationFailed(features,
+                            new TimeoutException("Classification took longer than " + timeoutMs + " ms"));
+                }
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return classifications queued or running
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size() + executor.getActiveCount();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        timeouts.shutdownNow();
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-device forward pass of the fall classifier trained in {@code machine_learning/training.py}:
+ * a {@code DNNClassifier} with ReLU hidden layers and a softmax over the class logits.
+ * <p>
+ * Inputs are rounded to float, as TensorFlow loads the features as float32. Activations live in
+ * arrays allocated once, so classifying allocates nothing; calls are serialized on the instance.
+ * Batches reuse arrays sized for the largest batch so far.
+ */
+public class DnnClassifier implements FallClassifier {
+
+    public static final int FEATURES = 4;
+
+    private static final String HIDDEN_LAYER = "dnn/hiddenlayer_";
+    private static final String LOGITS_LAYER = "dnn/logits";
+
+    // layer i maps sizes[i] inputs to sizes[i + 1] outputs, weights[i] is [in][out] row-major
+    private final int[] sizes;
+    private final float[][] weights;
+    private final float[][] biases;
+    private final float[][] activations;
+    // grown to the largest batch seen
+    private float[][] batchActivations;
+
+    /**
+     * @param weights per layer, input-major {@code [in][out]} as stored by TensorFlow
+     * @param biases  per layer, one per output
+     */
+    public DnnClassifier(List<float[]> weights, List<float[]> biases) {
+        if (weights.size() != biases.size() || weights.isEmpty()) {
+            throw new IllegalArgumentException("Expected weights and biases for each layer");
+        }
+        int layers = weights.size();
+        this.sizes = new int[layers + 1];
+        this.weights = new float[layers][];
+        this.biases = new float[layers][];
+        this.activations = new float[layers + 1][];
+        sizes[0] = FEATURES;
+        for (int i = 0; i < layers; i++) {
+            float[] layerWeights = weights.get(i);
+            float[] layerBiases = biases.get(i);
+            sizes[i + 1] = layerBiases.length;
+            if (layerWeights.length != sizes[i] * sizes[i + 1]) {
+                throw new IllegalArgumentException("Layer " + i + " weights do not match " + sizes[i]
+                        + " inputs and " + sizes[i + 1] + " outputs");
+            }
+            this.weights[i] = layerWeights.clone();
+            this.biases[i] = layerBiases.clone();
+        }
+        for (int i = 0; i <= layers; i++) activations[i] = new float[sizes[i]];
+    }
+
+    /**
+     * @param prefix variables bundle, e.g. {@code machine_learning/trained/variables/variables}
+     */
+    public static DnnClassifier load(File prefix) throws IOException {
+        return fromBundle(TensorBundle.read(prefix));
+    }
+
+    public static DnnClassifier load(InputStream index, InputStream data) throws IOException {
+        return fromBundle(TensorBundle.read(index, data));
+    }
+
+    /**
+     * Picks the {@code dnn/hiddenlayer_N} and {@code dnn/logits} weights and biases of a bundle.
+     */
+    public static DnnClassifier fromBundle(TensorBundle bundle) throws IOException {
+        List<float[]> weights = new ArrayList<float[]>();
+        List<float[]> biases = new ArrayList<float[]>();
+        for (int i = 0; bundle.contains(HIDDEN_LAYER + i + "/weights"); i++) {
+            weights.add(bundle.get(HIDDEN_LAYER + i + "/weights").values);
+            biases.add(bundle.get(HIDDEN_LAYER + i + "/biases").values);
+        }
+        weights.add(bundle.get(LOGITS_LAYER + "/weights").values);
+        biases.add(bundle.get(LOGITS_LAYER + "/biases").values);
+        try {
+            return new DnnClassifier(weights, biases);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unexpected model layout: " + e.getMessage());
+        }
+    }
+
+    public int getClassCount() {
+        return sizes[sizes.length - 1];
+    }
+
+    @Override
+    public int classify(ExtractedAccelerometerData features) {
+        return classify(features, null);
+    }
+
+    /**
+     * @param probabilities receives the class probabilities if not null
+     */
+    public synchronized int classify(ExtractedAccelerometerData features, float[] probabilities) {
+        float[] input = activations[0];
+        input[0] = (float) features.impactDuration;
+        input[1] = (float) features.impactViolence;
+        input[2] = (float) features.impactAverage;
+        input[3] = (float) features.postImpactAverage;
+        return forward(probabilities);
+    }
+
+    /**
+     * @param features      impact duration, violence, average and post-impact average
+     * @param probabilities receives the class probabilities if not null
+     */
+    public synchronized int classify(float[] features, float[] probabilities) {
+        System.arraycopy(features, 0, activations[0], 0, FEATURES);
+        return forward(probabilities);
+    }
+
+    /**
+     * Classifies many rows under one lock acquisition, e.g. requests gathered from several
+     * connections. Gives the same results as classifying the rows one by one.
+     *
+     * @param features    {@link #FEATURES} values per row
+     * @param classes     receives the class of each row
+     * @param confidences receives the probability of each row's class if not null
+     */
+    public synchronized void classifyBatch(float[] features, int rows, int[] classes, float[] confidences) {
+        int layers = weights.length;
+        if (batchActivations == null || batchActivations[0].length < rows * FEATURES) {
+            batchActivations = new float[layers + 1][];
+            for (int i = 0; i <= layers; i++) batchActivations[i] = new float[rows * sizes[i]];
+        }
+        System.arraycopy(features, 0, batchActivations[0], 0, rows * FEATURES);
+        forward(batchActivations, rows);
+
+        float[] logits = batchActivations[layers];
+        int classCount = sizes[layers];
+        for (int r = 0; r < rows; r++) {
+            int row = r * classCount;
+            int best = argMax(logits, row, classCount);
+            classes[r] = best;
+            if (confidences != null) {
+                double sum = 0;
+                for (int j = 0; j < classCount; j++) sum += Math.exp(logits[row + j] - logits[row + best]);
+                confidences[r] = (float) (1 / sum);
+            }
+        }
+    }
+
+    private int forward(float[] probabilities) {
+        forward(activations, 1);
+        float[] logits = activations[weights.length];
+        int best = argMax(logits, 0, logits.length);
+        if (probabilities != null) softmax(logits, logits[best], probabilities);
+        return best;
+    }
+
+    /**
+     * Runs the layers over the rows of {@code activations[0]}, each layer's outputs row-major in
+     * the next array; single classifications are a batch of one.
+     */
+    private void forward(float[][] activations, int rows) {
+        int layers = weights.length;
+        for (int layer = 0; layer < layers; layer++) {
+            float[] in = activations[layer];
+            float[] out = activations[layer + 1];
+            float[] w = weights[layer];
+            float[] b = biases[layer];
+            int inputs = sizes[layer];
+            int outputs = sizes[layer + 1];
+            for (int r = 0; r < rows; r++) {
+                int inRow = r * inputs;
+                int outRow = r * outputs;
+                System.arraycopy(b, 0, out, outRow, outputs);
+                for (int i = 0; i < inputs; i++) {
+                    float x = in[inRow + i];
+                    int wRow = i * outputs;
+                    for (int j = 0; j < outputs; j++) out[outRow + j] += x * w[wRow + j];
+                }
+                if (layer < layers - 1) {
+                    for (int j = outRow; j < outRow + outputs; j++) if (out[j] < 0) out[j] = 0;
+                }
+            }
+        }
+    }
+
+    private static int argMax(float[] logits, int row, int classCount) {
+        int best = 0;
+        for (int j = 1; j < classCount; j++) if (logits[row + j] > logits[row + best]) best = j;
+        return best;
+    }
+
+    private static void softmax(float[] logits, float max, float[] probabilities) {
+        double sum = 0;
+        for (int j = 0; j < logits.length; j++) {
+            double e = Math.exp(logits[j] - max);
+            probabilities[j] = (float) e;
+            sum += e;
+        }
+        for (int j = 0; j < logits.length; j++) probabilities[j] = (float) (probabilities[j] / sum);
+    }
+}
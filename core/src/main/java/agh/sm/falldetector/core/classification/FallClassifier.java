@@ -0,0 +1,17 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.io.IOException;
+
+/**
+ * Maps the features of a fall-like event to a class, e.g. fall, walk, jump or bump.
+ */
+public interface FallClassifier {
+
+    /**
+     * @return class of the event, as numbered in the training data
+     * @throws IOException if the classifier could not be reached
+     */
+    int classify(ExtractedAccelerometerData features) throws IOException;
+}
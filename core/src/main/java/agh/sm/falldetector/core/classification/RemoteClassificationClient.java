@@ -0,0 +1,443 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifies events on the remote classification server over one long-lived connection.
+ * <p>
+ * Each request carries a request id and the server's reply carries it back, so any number of
+ * threads may classify at the same time and their requests are pipelined on the connection. A
+ * lost connection fails the requests in flight on it and is reopened by the next request. One thread
+ * connects at a time, without holding the client's lock, and a request that cannot be written within
+ * the reply timeout, e.g. to a server that stopped reading, closes the connection.
+ * <p>
+ * With {@link WireFormat#BINARY} the client negotiates {@link ClassificationFrames} when
+ * connecting. The hello gets a timeout of its own, short next to the connect timeout, since a
+ * JSON-only server never answers it, but at least twice the time connecting took, so a slow network
+ * is not mistaken for such a server. A server that does not answer the hello in time is remembered
+ * and spoken to in JSON for {@link #JSON_FALLBACK_TTL_MS}, also after switching to another server
+ * and back; the next connection after that tries binary frames again. In JSON each request is a JSON object with the event features and the request id, terminated by a newline,
+ * and the server answers with a {@code id,class} line. JSON has no NaN or infinity, so such
+ * features are rejected before anything is sent.
+ */
+public class RemoteClassificationClient implements FallClassifier, Closeable {
+
+    public enum WireFormat {
+        JSON,
+        BINARY
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // shared by all clients, it only closes connections whose writes stall
+    private static final ScheduledThreadPoolExecutor WRITE_DEADLINES = createWriteDeadlines();
+    // a server speaking binary frames answers the hello within a round trip
+    public static final int DEFAULT_NEGOTIATION_TIMEOUT_MS = 200;
+    // a missed hello may have been a slow network rather than a JSON-only server
+    public static final long JSON_FALLBACK_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private final WireFormat preferredFormat;
+    private final int connectTimeoutMs;
+    private final int negotiationTimeoutMs;
+    private final long replyTimeoutMs;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    // held while connecting, so requests queue for one connection without blocking the client's lock
+    private final Object connectLock = new Object();
+
+    private InetSocketAddress serverAddress;
+    // servers that did not answer the hello, by unresolved host and port, to when binary is tried again
+    private final Map<InetSocketAddress, Long> jsonOnlyServers = new HashMap<InetSocketAddress, Long>();
+    private volatile Connection connection;
+
+    /**
+     * @param connectTimeoutMs     timeout of opening the connection
+     * @param negotiationTimeoutMs timeout of waiting for the server's hello, raised on a slow connect
+     * @param replyTimeoutMs       timeout of writing a request and of waiting for its reply
+     */
+    public RemoteClassificationClient(String host, int port, WireFormat preferredFormat, int connectTimeoutMs,
+                                      int negotiationTimeoutMs, long replyTimeoutMs) {
+        this.serverAddress = InetSocketAddress.createUnresolved(host, port);
+        this.preferredFormat = preferredFormat;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.negotiationTimeoutMs = negotiationTimeoutMs;
+        this.replyTimeoutMs = replyTimeoutMs;
+    }
+
+    /**
+     * Negotiates within {@link #DEFAULT_NEGOTIATION_TIMEOUT_MS}, or the connect timeout if shorter.
+     */
+    public RemoteClassificationClient(String host, int port, WireFormat preferredFormat,
+                                      int connectTimeoutMs, long replyTimeoutMs) {
+        this(host, port, preferredFormat, connectTimeoutMs,
+                Math.min(connectTimeoutMs, DEFAULT_NEGOTIATION_TIMEOUT_MS), replyTimeoutMs);
+    }
+
+    public RemoteClassificationClient(String host, int port, int connectTimeoutMs, long replyTimeoutMs) {
+        this(host, port, WireFormat.JSON, connectTimeoutMs, replyTimeoutMs);
+    }
+
+    /**
+     * Points the client to another server. Requests in flight on the current connection fail.
+     */
+    public synchronized void setServerAddress(String host, int port) {
+        this.serverAddress = InetSocketAddress.createUnresolved(host, port);
+        if (connection != null) connection.close(new IOException("Classification server changed"));
+    }
+
+    /**
+     * @return format of the current connection, the preferred one while not connected
+     */
+    public synchronized WireFormat getWireFormat() {
+        if (connection != null) return connection.binary ? WireFormat.BINARY : WireFormat.JSON;
+        return isJsonOnly(serverAddress) ? WireFormat.JSON : preferredFormat;
+    }
+
+    private synchronized boolean isJsonOnly(InetSocketAddress address) {
+        Long retryAt = jsonOnlyServers.get(address);
+        if (retryAt == null) return false;
+        if (System.nanoTime() - retryAt < 0) return true;
+        jsonOnlyServers.remove(address);
+        return false;
+    }
+
+    @Override
+    public int classify(ExtractedAccelerometerData features) throws IOException {
+        return classifyWithConfidence(features).classification;
+    }
+
+    /**
+     * @return class of the event, the confidence is NaN when the server speaks JSON
+     */
+    public ClassificationResult classifyWithConfidence(ExtractedAccelerometerData features) throws IOException {
+        long requestId = nextRequestId.incrementAndGet();
+        PendingReply reply = new PendingReply();
+        Connection sentOn = send(requestId, features, reply);
+        try {
+            return reply.await(replyTimeoutMs);
+        } finally {
+            sentOn.pending.remove(requestId);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection != null) connection.close(new IOException("Classification client closed"));
+    }
+
+    private Connection send(long requestId, ExtractedAccelerometerData features, PendingReply reply)
+            throws IOException {
+        Connection current = connection();
+        current.pending.put(requestId, reply);
+        // closed after put, the reply is not among those failed by close
+        if (current.closed) {
+            current.pending.remove(requestId);
+            throw current.closeCause;
+        }
+        try {
+            current.write(requestId, features);
+        } catch (IOException e) {
+            current.close(e);
+            throw e;
+        } catch (IllegalArgumentException e) {
+            current.pending.remove(requestId);
+            throw e;
+        }
+        return current;
+    }
+
+    /**
+     * @return the current connection, opened first if there is none
+     */
+    private Connection connection() throws IOException {
+        Connection current = connection;
+        if (current != null) return current;
+        synchronized (connectLock) {
+            current = connection;
+            if (current != null) return current;
+            InetSocketAddress address;
+            boolean binary;
+            synchronized (this) {
+                address = serverAddress;
+                binary = preferredFormat == WireFormat.BINARY && !isJsonOnly(address);
+            }
+            Connection opened = connect(address, binary);
+            synchronized (this) {
+                if (address != serverAddress) {
+                    IOException changed = new IOException("Classification server changed");
+                    opened.close(changed);
+                    throw changed;
+                }
+                if (binary && !opened.binary) {
+                    jsonOnlyServers.put(address, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JSON_FALLBACK_TTL_MS));
+                }
+                connection = opened;
+            }
+            // started once published, so a connection lost right away is also unpublished
+            Thread reader = new Thread(opened, "ClassificationReader");
+            reader.setDaemon(true);
+            reader.start();
+            return opened;
+        }
+    }
+
+    private Connection connect(InetSocketAddress address, boolean binary) throws IOException {
+        long connectStart = System.nanoTime();
+        Socket socket = openSocket(address);
+        long connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+        int helloTimeoutMs = (int) Math.max(negotiationTimeoutMs, Math.min(connectTimeoutMs, 2 * connectMs));
+        if (binary && !negotiateBinary(socket, helloTimeoutMs)) {
+            socket.close();
+            binary = false;
+            socket = openSocket(address);
+        }
+        try {
+            return new Connection(socket, binary);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private Socket openSocket(InetSocketAddress server) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(server.getHostName(), server.getPort());
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, connectTimeoutMs);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * @return true if the server agreed to binary frames, false if it closed the connection,
+     * did not answer in time or answered with something else than a hello
+     */
+    private boolean negotiateBinary(Socket socket, int timeoutMs) throws IOException {
+        ByteBuffer hello = ByteBuffer.allocate(ClassificationFrames.HELLO_SIZE);
+        ClassificationFrames.putHello(hello, ClassificationFrames.VERSION);
+        OutputStream out = socket.getOutputStream();
+        out.write(hello.array());
+        out.flush();
+
+        hello.clear();
+        socket.setSoTimeout(timeoutMs);
+        try {
+            new DataInputStream(socket.getInputStream()).readFully(hello.array());
+            byte version = ClassificationFrames.getHello(hello);
+            if (version != ClassificationFrames.VERSION) return false;
+        } catch (IOException e) {
+            return false;
+        }
+        socket.setSoTimeout(0);
+        return true;
+    }
+
+    private synchronized void connectionLost(Connection lost) {
+        if (connection == lost) connection = null;
+    }
+
+    private static ScheduledThreadPoolExecutor createWriteDeadlines() {
+        ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1,
+                new ClassificationStage.NamedThreadFactory("ClassificationWriteDeadline"));
+        deadlines.setRemoveOnCancelPolicy(true);
+        return deadlines;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a feature is NaN or infinite, which JSON cannot carry
+     */
+    static byte[] encodeJsonRequest(long requestId, ExtractedAccelerometerData features) {
+        if (!isFinite(features.impactDuration) || !isFinite(features.impactViolence)
+                || !isFinite(features.impactAverage) || !isFinite(features.postImpactAverage)) {
+            throw new IllegalArgumentException("Features not finite: " + features.impactDuration + ", "
+                    + features.impactViolence + ", " + features.impactAverage + ", " + features.postImpactAverage);
+        }
+        return new StringBuilder(160)
+                .append("{\"id\":").append(requestId)
+                .append(",\"impact_duration\":").append(features.impactDuration)
+                .append(",\"impact_violence\":").append(features.impactViolence)
+                .append(",\"impact_average\":").append(features.impactAverage)
+                .append(",\"post_impact_average\":").append(features.postImpactAverage)
+                .append("}\n").toString().getBytes(ASCII);
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final boolean binary;
+        private final OutputStream out;
+        private final InputStream in;
+        // requests are written one at a time under this lock
+        private final Object writeLock = new Object();
+        private final ByteBuffer requestFrame = ByteBuffer.allocate(ClassificationFrames.REQUEST_SIZE);
+        private final ByteBuffer replyFrame = ByteBuffer.allocate(ClassificationFrames.REPLY_SIZE);
+        private final Map<Long, PendingReply> pending = new ConcurrentHashMap<Long, PendingReply>();
+        private volatile boolean closed;
+        // set before closed
+        private volatile IOException closeCause;
+        private volatile boolean writeStalled;
+        private final Runnable stallWrite = new Runnable() {
+            @Override
+            public void run() {
+                writeStalled = true;
+                close(stalledWriteException());
+            }
+        };
+
+        Connection(Socket socket, boolean binary) throws IOException {
+            this.socket = socket;
+            this.binary = binary;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        /**
+         * Writes the request, closing the connection if that takes longer than the reply timeout.
+         */
+        void write(long requestId, ExtractedAccelerometerData features) throws IOException {
+            // encoded before anything is written, a rejected request leaves the stream as it was
+            byte[] json = binary ? null : encodeJsonRequest(requestId, features);
+            synchronized (writeLock) {
+                ScheduledFuture<?> deadline = WRITE_DEADLINES.schedule(stallWrite, replyTimeoutMs,
+                        TimeUnit.MILLISECONDS);
+                try {
+                    if (binary) {
+                        requestFrame.clear();
+                        ClassificationFrames.putRequest(requestFrame, requestId, features);
+                        out.write(requestFrame.array(), 0, requestFrame.position());
+                    } else {
+                        out.write(json);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    // the socket closed under the write reports itself as closed, not as the timeout
+                    if (writeStalled) throw stalledWriteException();
+                    throw e;
+                } finally {
+                    deadline.cancel(false);
+                }
+            }
+        }
+
+        private SocketTimeoutException stalledWriteException() {
+            return new SocketTimeoutException("Request not sent within " + replyTimeoutMs + " ms");
+        }
+
+        /**
+         * Dispatches replies to the waiting requests until the connection is lost.
+         */
+        @Override
+        public void run() {
+            try {
+                if (binary) readBinaryReplies();
+                else readJsonReplies();
+                close(new EOFException("Classification server closed the connection"));
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void readBinaryReplies() throws IOException {
+            DataInputStream frames = new DataInputStream(in);
+            while (true) {
+                replyFrame.clear();
+                try {
+                    frames.readFully(replyFrame.array());
+                } catch (EOFException e) {
+                    return;
+                }
+                ClassificationFrames.getReplyHeader(replyFrame);
+                long requestId = replyFrame.getLong();
+                int classification = replyFrame.getInt();
+                float confidence = replyFrame.getFloat();
+                dispatch(requestId, classification, confidence);
+            }
+        }
+
+        private void readJsonReplies() throws IOException {
+            BufferedReader lines = new BufferedReader(new InputStreamReader(in, ASCII));
+            String line;
+            while ((line = lines.readLine()) != null) {
+                int comma = line.indexOf(',');
+                if (comma < 0) throw new IOException("Reply without request id: " + line);
+                long requestId;
+                int classification;
+                try {
+                    requestId = Long.parseLong(line.substring(0, comma).trim());
+                    classification = Integer.parseInt(line.substring(comma + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed reply: " + line);
+                }
+                dispatch(requestId, classification, Float.NaN);
+            }
+        }
+
+        private void dispatch(long requestId, int classification, float confidence) {
+            PendingReply reply = pending.remove(requestId);
+            // no one waits for replies that came after the request timed out
+            if (reply != null) reply.complete(new ClassificationResult(classification, confidence));
+        }
+
+        void close(IOException cause) {
+            if (closed) return;
+            closeCause = cause;
+            closed = true;
+            connectionLost(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (PendingReply reply : pending.values()) reply.fail(cause);
+            pending.clear();
+        }
+    }
+
+    private static class PendingReply {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile ClassificationResult result;
+        private volatile IOException failure;
+
+        void complete(ClassificationResult result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        void fail(IOException cause) {
+            this.failure = cause;
+            done.countDown();
+        }
+
+        ClassificationResult await(long timeoutMs) throws IOException {
+            try {
+                if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("No classification within " + timeoutMs + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for classification");
+            }
+            if (failure != null) throw failure;
+            return result;
+        }
+    }
+}
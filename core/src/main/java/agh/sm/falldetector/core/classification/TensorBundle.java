@@ -0,0 +1,268 @@
+package agh.sm.falldetector.core.classification;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Float tensors of a TensorFlow checkpoint or SavedModel {@code variables} bundle, i.e. the
+ * {@code <prefix>.index} table and its single {@code <prefix>.data-00000-of-00001} shard.
+ * <p>
+ * The index is an uncompressed LevelDB table mapping tensor names to {@code BundleEntryProto}s,
+ * which give dtype, shape and the location of the tensor in the data shard. Only what a small
+ * exported model needs is read: uncompressed blocks, one shard, unpartitioned tensors.
+ */
+public class TensorBundle {
+
+    private static final long TABLE_MAGIC = 0xdb4775248b80fb57L;
+    private static final int FOOTER_SIZE = 48;
+    private static final int BLOCK_TRAILER_SIZE = 5;
+    private static final int DT_FLOAT = 1;
+
+    private final Map<String, Tensor> tensors;
+
+    /**
+     * A float tensor, values in row-major order.
+     */
+    public static class Tensor {
+        public final int[] shape;
+        public final float[] values;
+
+        Tensor(int[] shape, float[] values) {
+            this.shape = shape;
+            this.values = values;
+        }
+    }
+
+    private TensorBundle(Map<String, Tensor> tensors) {
+        this.tensors = tensors;
+    }
+
+    /**
+     * @param prefix bundle path without extension, e.g. {@code trained/variables/variables}
+     */
+    public static TensorBundle read(File prefix) throws IOException {
+        File index = new File(prefix.getPath() + ".index");
+        File data = new File(prefix.getPath() + ".data-00000-of-00001");
+        InputStream indexIn = new FileInputStream(index);
+        try {
+            InputStream dataIn = new FileInputStream(data);
+            try {
+                return read(indexIn, dataIn);
+            } finally {
+                dataIn.close();
+            }
+        } finally {
+            indexIn.close();
+        }
+    }
+
+    /**
+     * Reads a bundle from streams, e.g. application assets. The streams are not closed.
+     */
+    public static TensorBundle read(InputStream index, InputStream data) throws IOException {
+        ByteBuffer indexBytes = ByteBuffer.wrap(readFully(index));
+        ByteBuffer dataBytes = ByteBuffer.wrap(readFully(data)).order(ByteOrder.LITTLE_ENDIAN);
+
+        Map<String, Tensor> tensors = new TreeMap<String, Tensor>();
+        for (Map.Entry<String, ByteBuffer> entry : readTable(indexBytes).entrySet()) {
+            // the empty key holds the bundle header
+            if (entry.getKey().isEmpty()) continue;
+            Tensor tensor = readEntry(entry.getKey(), entry.getValue(), dataBytes);
+            if (tensor != null) tensors.put(entry.getKey(), tensor);
+        }
+        return new TensorBundle(Collections.unmodifiableMap(tensors));
+    }
+
+    public boolean contains(String name) {
+        return tensors.containsKey(name);
+    }
+
+    /**
+     * @throws IOException if the bundle has no float tensor of that name
+     */
+    public Tensor get(String name) throws IOException {
+        Tensor tensor = tensors.get(name);
+        if (tensor == null) throw new IOException("No float tensor " + name + " in bundle");
+        return tensor;
+    }
+
+    public Map<String, Tensor> getTensors() {
+        return tensors;
+    }
+
+    private static Map<String, ByteBuffer> readTable(ByteBuffer table) throws IOException {
+        if (table.capacity() < FOOTER_SIZE) throw new IOException("Bundle index too short");
+        ByteBuffer footer = slice(table, table.capacity() - FOOTER_SIZE, FOOTER_SIZE);
+        footer.order(ByteOrder.LITTLE_ENDIAN);
+        if (footer.getLong(FOOTER_SIZE - 8) != TABLE_MAGIC) throw new IOException("Not a bundle index");
+        readVarint(footer); // metaindex block, unused
+        readVarint(footer);
+        long indexOffset = readVarint(footer);
+        long indexSize = readVarint(footer);
+
+        Map<String, ByteBuffer> entries = new TreeMap<String, ByteBuffer>();
+        for (ByteBuffer handle : readBlock(table, indexOffset, indexSize).values()) {
+            long offset = readVarint(handle);
+            long size = readVarint(handle);
+            entries.putAll(readBlock(table, offset, size));
+        }
+        return entries;
+    }
+
+    /**
+     * Decodes the prefix-compressed entries of one table block.
+     */
+    private static Map<String, ByteBuffer> readBlock(ByteBuffer table, long offset, long size) throws IOException {
+        if (offset + size + BLOCK_TRAILER_SIZE > table.capacity()) throw new IOException("Block out of bounds");
+        if (table.get((int) (offset + size)) != 0) throw new IOException("Compressed bundle index not supported");
+        ByteBuffer block = slice(table, (int) offset, (int) size);
+        int restarts = block.order(ByteOrder.LITTLE_ENDIAN).getInt((int) size - 4);
+        int entriesEnd = (int) size - 4 - 4 * restarts;
+
+        Map<String, ByteBuffer> entries = new TreeMap<String, ByteBuffer>();
+        byte[] key = new byte[0];
+        while (block.position() < entriesEnd) {
+            int shared = (int) readVarint(block);
+            int unshared = (int) readVarint(block);
+            int valueLength = (int) readVarint(block);
+            byte[] nextKey = new byte[shared + unshared];
+            System.arraycopy(key, 0, nextKey, 0, shared);
+            block.get(nextKey, shared, unshared);
+            key = nextKey;
+            entries.put(new String(key, "UTF-8"), slice(block, block.position(), valueLength));
+            block.position(block.position() + valueLength);
+        }
+        return entries;
+    }
+
+    /**
+     * Decodes a {@code BundleEntryProto} and copies the tensor it points to.
+     *
+     * @return null for tensors that are not float, e.g. the global step
+     */
+    private static Tensor readEntry(String name, ByteBuffer entry, ByteBuffer data) throws IOException {
+        int dtype = 0;
+        int[] shape = new int[0];
+        long shard = 0, offset = 0, size = 0;
+        while (entry.hasRemaining()) {
+            long tag = readVarint(entry);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 7);
+            switch (field) {
+                case 1:
+                    dtype = (int) readVarint(entry);
+                    break;
+                case 2:
+                    shape = readShape(readLengthDelimited(entry));
+                    break;
+                case 3:
+                    shard = readVarint(entry);
+                    break;
+                case 4:
+                    offset = readVarint(entry);
+                    break;
+                case 5:
+                    size = readVarint(entry);
+                    break;
+                case 7:
+                    throw new IOException("Partitioned tensor " + name + " not supported");
+                default:
+                    skipField(entry, wireType);
+            }
+        }
+        if (dtype != DT_FLOAT) return null;
+        if (shard != 0) throw new IOException("Tensor " + name + " is not in the first shard");
+
+        int count = 1;
+        for (int dim : shape) count *= dim;
+        if (size != 4L * count || offset + size > data.capacity()) {
+            throw new IOException("Tensor " + name + " does not match its shape");
+        }
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) values[i] = data.getFloat((int) offset + 4 * i);
+        return new Tensor(shape, values);
+    }
+
+    /**
+     * Decodes a {@code TensorShapeProto}, whose dimensions are messages with the size in field 1.
+     */
+    private static int[] readShape(ByteBuffer shapeProto) throws IOException {
+        int[] dims = new int[0];
+        while (shapeProto.hasRemaining()) {
+            long tag = readVarint(shapeProto);
+            if ((tag >>> 3) != 2) {
+                skipField(shapeProto, (int) (tag & 7));
+                continue;
+            }
+            ByteBuffer dim = readLengthDelimited(shapeProto);
+            long dimSize = 0;
+            while (dim.hasRemaining()) {
+                long dimTag = readVarint(dim);
+                if ((dimTag >>> 3) == 1) dimSize = readVarint(dim);
+                else skipField(dim, (int) (dimTag & 7));
+            }
+            int[] grown = new int[dims.length + 1];
+            System.arraycopy(dims, 0, grown, 0, dims.length);
+            grown[dims.length] = (int) dimSize;
+            dims = grown;
+        }
+        return dims;
+    }
+
+    private static void skipField(ByteBuffer buffer, int wireType) throws IOException {
+        switch (wireType) {
+            case 0:
+                readVarint(buffer);
+                break;
+            case 1:
+                buffer.position(buffer.position() + 8);
+                break;
+            case 2:
+                readLengthDelimited(buffer);
+                break;
+            case 5:
+                buffer.position(buffer.position() + 4);
+                break;
+            default:
+                throw new IOException("Unsupported protobuf wire type " + wireType);
+        }
+    }
+
+    private static ByteBuffer readLengthDelimited(ByteBuffer buffer) throws IOException {
+        int length = (int) readVarint(buffer);
+        ByteBuffer field = slice(buffer, buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return field;
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) throw new IOException("Truncated varint");
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) throw new IOException("Truncated bundle");
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.clear();
+        duplicate.position(offset).limit(offset + length);
+        return duplicate.slice();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) != -1) bytes.write(chunk, 0, read);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,226 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chain of classifiers tried in order, e.g. the remote server, then the on-device model. Each
+ * tier gets a strict latency budget: a tier that fails or runs past it is abandoned for the next
+ * one. When every tier fails the event gets the fail-safe class, so a slow or absent network ends
+ * in a false alarm rather than a missed fall.
+ * <p>
+ * Each tier runs on a bounded pool of its own, so a stuck tier cannot keep the next one from
+ * running. An abandoned attempt is cancelled, which interrupts it, but blocking socket calls do not
+ * react to interrupts, so a tier's classifier should also bound its own I/O by the tier's budget.
+ * While a tier's pool is taken up by such attempts, the tier counts as failed.
+ * <p>
+ * Hit rate and latency are counted per tier, see {@link #getStats()}.
+ */
+public class TieredClassifier implements FallClassifier {
+
+    private static final long IDLE_THREAD_TIMEOUT_S = 30;
+    private static final int DEFAULT_MAX_THREADS = 8;
+
+    private final List<Tier> tiers;
+    private final int failSafeClass;
+    private final AtomicLong failSafeCount = new AtomicLong();
+
+    private TieredClassifier(Builder builder) {
+        this.tiers = Collections.unmodifiableList(new ArrayList<Tier>(builder.tiers));
+        this.failSafeClass = builder.failSafeClass;
+    }
+
+    /**
+     * @return class given by the first tier answering within its budget, else the fail-safe class
+     * @throws InterruptedIOException if interrupted while waiting for a tier, or after {@link #shutdown()}
+     */
+    @Override
+    public int classify(final ExtractedAccelerometerData features) throws InterruptedIOException {
+        for (final Tier tier : tiers) {
+            long start = System.nanoTime();
+            Future<Integer> attempt;
+            try {
+                attempt = tier.executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return tier.classifier.classify(features);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (tier.executor.isShutdown()) throw new InterruptedIOException("Classifier shut down");
+                tier.record(System.nanoTime() - start);
+                tier.failures.incrementAndGet();
+                continue;
+            }
+            try {
+                int classification = attempt.get(tier.budgetMs, TimeUnit.MILLISECONDS);
+                tier.hits.incrementAndGet();
+                return classification;
+            } catch (TimeoutException e) {
+                attempt.cancel(true);
+                tier.timeouts.incrementAndGet();
+            } catch (ExecutionException e) {
+                tier.failures.incrementAndGet();
+            } catch (InterruptedException e) {
+                attempt.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted in classifier tier " + tier.name);
+            } finally {
+                tier.record(System.nanoTime() - start);
+            }
+        }
+        failSafeCount.incrementAndGet();
+        return failSafeClass;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public List<TierStats> getStats() {
+        List<TierStats> stats = new ArrayList<TierStats>(tiers.size());
+        for (Tier tier : tiers) stats.add(tier.snapshot());
+        return stats;
+    }
+
+    /**
+     * @return events given the fail-safe class because every tier failed
+     */
+    public long getFailSafeCount() {
+        return failSafeCount.get();
+    }
+
+    public void shutdown() {
+        for (Tier tier : tiers) tier.executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (TierStats stats : getStats()) sb.append(stats).append("; ");
+        return sb.append("fail-safe ").append(getFailSafeCount()).toString();
+    }
+
+    private static class Tier {
+        final String name;
+        final FallClassifier classifier;
+        final long budgetMs;
+        final ThreadPoolExecutor executor;
+        final AtomicLong attempts = new AtomicLong();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong totalLatencyNs = new AtomicLong();
+        final AtomicLong maxLatencyNs = new AtomicLong();
+
+        Tier(String name, FallClassifier classifier, long budgetMs, int maxThreads) {
+            this.name = name;
+            this.classifier = classifier;
+            this.budgetMs = budgetMs;
+            this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ClassificationStage.NamedThreadFactory("ClassifierTier-" + name));
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        void record(long latencyNs) {
+            attempts.incrementAndGet();
+            totalLatencyNs.addAndGet(latencyNs);
+            long max;
+            while (latencyNs > (max = maxLatencyNs.get()) && !maxLatencyNs.compareAndSet(max, latencyNs)) {
+                // retry until the larger latency is stored
+            }
+        }
+
+        TierStats snapshot() {
+            return new TierStats(name, budgetMs, attempts.get(), hits.get(), failures.get(), timeouts.get(),
+                    totalLatencyNs.get(), maxLatencyNs.get());
+        }
+    }
+
+    /**
+     * Counters of one tier since the classifier was built.
+     */
+    public static class TierStats {
+        public final String name;
+        public final long budgetMs;
+        public final long attempts;
+        public final long hits;
+        public final long failures;
+        public final long timeouts;
+        public final long totalLatencyNs;
+        public final long maxLatencyNs;
+
+        TierStats(String name, long budgetMs, long attempts, long hits, long failures, long timeouts,
+                  long totalLatencyNs, long maxLatencyNs) {
+            this.name = name;
+            this.budgetMs = budgetMs;
+            this.attempts = attempts;
+            this.hits = hits;
+            this.failures = failures;
+            this.timeouts = timeouts;
+            this.totalLatencyNs = totalLatencyNs;
+            this.maxLatencyNs = maxLatencyNs;
+        }
+
+        public double getHitRate() {
+            return attempts == 0 ? 0 : hits / (double) attempts;
+        }
+
+        public double getMeanLatencyMs() {
+            return attempts == 0 ? 0 : totalLatencyNs / 1e6 / attempts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d/%d hits (%.1f%%), %d failed, %d over %d ms budget, mean %.3f ms, max %.3f ms",
+                    name, hits, attempts, 100 * getHitRate(), failures, timeouts, budgetMs,
+                    getMeanLatencyMs(), maxLatencyNs / 1e6);
+        }
+    }
+
+    public static final class Builder {
+        private final List<Tier> tiers = new ArrayList<Tier>();
+        private int failSafeClass;
+
+        private Builder() {
+        }
+
+        /**
+         * Appends a tier, tried after the ones added before it, running up to 8 attempts at once.
+         *
+         * @param budgetMs time the tier may take before the next one is tried
+         */
+        public Builder tier(String name, FallClassifier classifier, long budgetMs) {
+            return tier(name, classifier, budgetMs, DEFAULT_MAX_THREADS);
+        }
+
+        /**
+         * Appends a tier, tried after the ones added before it.
+         *
+         * @param budgetMs   time the tier may take before the next one is tried
+         * @param maxThreads attempts of the tier running at the same time, abandoned ones included
+         */
+        public Builder tier(String name, FallClassifier classifier, long budgetMs, int maxThreads) {
+            tiers.add(new Tier(name, classifier, budgetMs, maxThreads));
+            return this;
+        }
+
+        /**
+         * @param failSafeClass class given when every tier failed, the fall class as a rule
+         */
+        public Builder failSafeClass(int failSafeClass) {
+            this.failSafeClass = failSafeClass;
+            return this;
+        }
+
+        public TieredClassifier build() {
+            return new TieredClassifier(this);
+        }
+    }
+}
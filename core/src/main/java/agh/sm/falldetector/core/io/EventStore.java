@@ -0,0 +1,221 @@
+package agh.sm.falldetector.core.io;
+
+import agh.sm.falldetector.core.AccelerometerDataWindow;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Append-only binary log of detected events, each stored with its features and detector window.
+ * <p>
+ * Records go to memory-mapped segment files {@code events-NNNNNN.seg}:
+ * <pre>
+ * record   magic i32, samples i32, event id i64, base timestamp i64, trigger peak i64, impact end i64,
+ *          impact duration f64, violence f64, average f64, post-impact average f64      72 bytes
+ * sample   timestamp - base timestamp i32 (ms), magnitude f32                           8 bytes
+ * </pre>
+ * The index {@code events.idx} holds a 16-byte header (magic, version, event count) and one 16-byte
+ * entry per event: segment i32, position i32, event time i64. Event {@code n} is entry {@code n}, so
+ * lookup by id is a single read. A record becomes visible when the event count is bumped, after the
+ * record and its entry are written; a record torn by a crash is overwritten on the next open.
+ * <p>
+ * Window times are kept as the detector saw them. Sensor timestamps count from boot, so they start
+ * over after a reboot and cannot order events of different runs; the index instead holds the
+ * trigger peak time plus the epoch offset the store was opened with, the wall-clock time of the
+ * event. An entry never goes below the previous one, a clock set back only holds the time still
+ * until it catches up, so entries stay in time order and a time range is found by binary search.
+ * <p>
+ * Not thread-safe, appends are meant to come from one writer thread.
+ */
+public class EventStore implements Closeable {
+
+    static final int INDEX_MAGIC = 0x45564958; // EVIX
+    static final int RECORD_MAGIC = 0x45565243; // EVRC
+    static final int VERSION = 2;
+    static final int INDEX_HEADER_SIZE = 16;
+    static final int INDEX_COUNT_OFFSET = 8;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 72;
+    static final int SAMPLE_SIZE = 8;
+    static final String INDEX_FILE = "events.idx";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int INITIAL_INDEX_ENTRIES = 4096;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long epochOffset;
+    private long lastEventTime = Long.MIN_VALUE;
+    private final RandomAccessFile indexFile;
+    private MappedByteBuffer index;
+    private long count;
+
+    private int segment;
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segmentBuffer;
+
+    private EventStore(File directory, int segmentSize, long epochOffset) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.epochOffset = epochOffset;
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+
+        this.indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+        boolean created = indexFile.length() == 0;
+        long entries = Math.max(INITIAL_INDEX_ENTRIES, (indexFile.length() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE);
+        mapIndex(entries);
+        if (created) {
+            index.putInt(0, INDEX_MAGIC).putInt(4, VERSION).putLong(INDEX_COUNT_OFFSET, 0);
+        } else if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+            indexFile.close();
+            throw new IOException("Not an event store index: " + new File(directory, INDEX_FILE));
+        }
+        this.count = index.getLong(INDEX_COUNT_OFFSET);
+
+        if (count == 0) {
+            openSegment(0, 0, segmentSize);
+        } else {
+            long last = INDEX_HEADER_SIZE + (count - 1) * INDEX_ENTRY_SIZE;
+            int lastSegment = index.getInt((int) last);
+            int lastPosition = index.getInt((int) last + 4);
+            lastEventTime = index.getLong((int) last + 8);
+            openSegment(lastSegment, 0, segmentSize);
+            int samples = segmentBuffer.getInt(lastPosition + 4);
+            segmentBuffer.position(lastPosition + RECORD_HEADER_SIZE + samples * SAMPLE_SIZE);
+        }
+    }
+
+    /**
+     * Opens a store whose event times are already wall-clock times.
+     */
+    public static EventStore open(File directory) throws IOException {
+        return new EventStore(directory, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * @param epochOffset milliseconds added to trigger peak times to get wall-clock times, for
+     *                    sensor timestamps the wall-clock time of boot
+     */
+    public static EventStore open(File directory, long epochOffset) throws IOException {
+        return new EventStore(directory, DEFAULT_SEGMENT_SIZE, epochOffset);
+    }
+
+    /**
+     * @param epochOffset milliseconds added to trigger peak times to get wall-clock times
+     * @param segmentSize bytes per segment file, a record larger than that gets a segment of its own
+     */
+    public static EventStore open(File directory, long epochOffset, int segmentSize) throws IOException {
+        return new EventStore(directory, segmentSize, epochOffset);
+    }
+
+    /**
+     * Appends an event. Its window samples must be at most {@link Integer#MAX_VALUE} ms apart.
+     *
+     * @return id of the event, consecutive from 0
+     */
+    public long append(AccelerometerDataWindow window, ExtractedAccelerometerData features) throws IOException {
+        int samples = window.size();
+        long base = samples > 0 ? window.getTimestamp(0) : features.triggerPeakTime;
+        int position = beginRecord(samples, base, features);
+        for (int i = 0; i < samples; i++) putSample(window.getTimestamp(i) - base, window.getValue(i));
+        return commitRecord(position, features);
+    }
+
+    /**
+     * Appends an event whose window was copied to {@code timestamps} and {@code magnitudes}.
+     *
+     * @return id of the event, consecutive from 0
+     */
+    public long append(long[] timestamps, double[] magnitudes, int samples, ExtractedAccelerometerData features)
+            throws IOException {
+        long base = samples > 0 ? timestamps[0] : features.triggerPeakTime;
+        int position = beginRecord(samples, base, features);
+        for (int i = 0; i < samples; i++) putSample(timestamps[i] - base, magnitudes[i]);
+        return commitRecord(position, features);
+    }
+
+    public long getEventCount() {
+        return count;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Flushes the mapped segment and index to storage.
+     */
+    public void force() {
+        segmentBuffer.force();
+        index.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        segmentFile.close();
+        indexFile.close();
+    }
+
+    private int beginRecord(int samples, long base, ExtractedAccelerometerData features) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + samples * SAMPLE_SIZE;
+        if (segmentBuffer.remaining() < recordSize) openSegment(segment + 1, 0, Math.max(segmentSize, recordSize));
+        if (count == (index.capacity() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE) mapIndex(2 * count);
+
+        int position = segmentBuffer.position();
+        segmentBuffer.putInt(RECORD_MAGIC).putInt(samples).putLong(count).putLong(base)
+                .putLong(features.triggerPeakTime).putLong(features.impactEnd)
+                .putDouble(features.impactDuration).putDouble(features.impactViolence)
+                .putDouble(features.impactAverage).putDouble(features.postImpactAverage);
+        return position;
+    }
+
+    private void putSample(long delta, double magnitude) throws IOException {
+        if (delta > Integer.MAX_VALUE) throw new IOException("Window of event " + count + " spans too long");
+        segmentBuffer.putInt((int) delta).putFloat((float) magnitude);
+    }
+
+    /**
+     * Indexes the record just written and publishes it by bumping the event count.
+     */
+    private long commitRecord(int position, ExtractedAccelerometerData features) {
+        long id = count;
+        lastEventTime = Math.max(lastEventTime, features.triggerPeakTime + epochOffset);
+        int entry = (int) (INDEX_HEADER_SIZE + id * INDEX_ENTRY_SIZE);
+        index.putInt(entry, segment).putInt(entry + 4, position).putLong(entry + 8, lastEventTime);
+        count = id + 1;
+        index.putLong(INDEX_COUNT_OFFSET, count);
+        return id;
+    }
+
+    static File segmentFile(File directory, int segment) {
+        return new File(directory, String.format(Locale.US, "events-%06d.seg", segment));
+    }
+
+    private void openSegment(int number, int position, int size) throws IOException {
+        if (segmentBuffer != null) {
+            segmentBuffer.force();
+            segmentFile.close();
+        }
+        segment = number;
+        segmentFile = new RandomAccessFile(segmentFile(directory, number), "rw");
+        long length = Math.max(size, segmentFile.length());
+        segmentBuffer = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        segmentBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        segmentBuffer.position(position);
+    }
+
+    private void mapIndex(long entries) throws IOException {
+        if (index != null) index.force();
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER_SIZE + entries * INDEX_ENTRY_SIZE);
+        index.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
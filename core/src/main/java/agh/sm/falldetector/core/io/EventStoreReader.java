@@ -0,0 +1,172 @@
+package agh.sm.falldetector.core.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static agh.sm.falldetector.core.io.EventStore.*;
+
+/**
+ * Reads events of an {@link EventStore} through read-only mappings, without parsing any text.
+ * Events appended while the reader is open become visible after {@link #refresh()}.
+ * <p>
+ * Not thread-safe, use one reader per thread.
+ */
+public class EventStoreReader implements Closeable {
+
+    /**
+     * Receives the events of a scan. The event is reused for the next one.
+     */
+    public interface EventVisitor {
+        /**
+         * @return false to stop the scan
+         */
+        boolean visit(StoredEvent event);
+    }
+
+    private final File directory;
+    private final RandomAccessFile indexFile;
+    private MappedByteBuffer index;
+    private long count;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+    private EventStoreReader(File directory) throws IOException {
+        this.directory = directory;
+        this.indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "r");
+        refresh();
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+            indexFile.close();
+            throw new IOException("Not an event store index: " + new File(directory, INDEX_FILE));
+        }
+    }
+
+    public static EventStoreReader open(File directory) throws IOException {
+        return new EventStoreReader(directory);
+    }
+
+    /**
+     * Picks up the events appended since the reader was opened or last refreshed.
+     *
+     * @return the number of events
+     */
+    public long refresh() throws IOException {
+        long length = indexFile.length();
+        if (length < INDEX_HEADER_SIZE) throw new IOException("Truncated event store index in " + directory);
+        if (index == null || index.capacity() < length) {
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            index.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        count = index.getLong(INDEX_COUNT_OFFSET);
+        return count;
+    }
+
+    public long getEventCount() {
+        return count;
+    }
+
+    /**
+     * @return wall-clock time of the event in milliseconds, see {@link EventStore}
+     */
+    public long getEventTime(long id) {
+        checkId(id);
+        return index.getLong(entryOffset(id) + 8);
+    }
+
+    /**
+     * Reads the event into {@code event}, growing its sample arrays if needed.
+     *
+     * @return the event
+     */
+    public StoredEvent read(long id, StoredEvent event) throws IOException {
+        checkId(id);
+        int entry = entryOffset(id);
+        MappedByteBuffer segment = segment(index.getInt(entry));
+        int position = index.getInt(entry + 4);
+        if (segment.getInt(position) != RECORD_MAGIC) {
+            throw new IOException("Corrupt record of event " + id + " in " + directory);
+        }
+        int samples = segment.getInt(position + 4);
+        event.id = segment.getLong(position + 8);
+        event.time = index.getLong(entry + 8);
+        long base = segment.getLong(position + 16);
+        event.triggerPeakTime = segment.getLong(position + 24);
+        event.impactEnd = segment.getLong(position + 32);
+        event.impactDuration = segment.getDouble(position + 40);
+        event.impactViolence = segment.getDouble(position + 48);
+        event.impactAverage = segment.getDouble(position + 56);
+        event.postImpactAverage = segment.getDouble(position + 64);
+
+        event.ensureCapacity(samples);
+        int offset = position + RECORD_HEADER_SIZE;
+        for (int i = 0; i < samples; i++, offset += SAMPLE_SIZE) {
+            event.timestamps[i] = base + segment.getInt(offset);
+            event.magnitudes[i] = segment.getFloat(offset + 4);
+        }
+        event.size = samples;
+        return event;
+    }
+
+    /**
+     * @return id of the first event at or after the wall-clock {@code timeMs}, the event count if none is
+     */
+    public long firstAtOrAfter(long timeMs) {
+        long low = 0, high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (index.getLong(entryOffset(middle) + 8) < timeMs) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Visits the events of the wall-clock range {@code [fromMs, toMs)} in order, reusing a single event.
+     *
+     * @return the number of events visited
+     */
+    public long scan(long fromMs, long toMs, EventVisitor visitor) throws IOException {
+        StoredEvent event = new StoredEvent();
+        long visited = 0;
+        for (long id = firstAtOrAfter(fromMs); id < count && getEventTime(id) < toMs; id++) {
+            visited++;
+            if (!visitor.visit(read(id, event))) break;
+        }
+        return visited;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments.clear();
+        indexFile.close();
+    }
+
+    private MappedByteBuffer segment(int number) throws IOException {
+        while (segments.size() <= number) segments.add(null);
+        MappedByteBuffer segment = segments.get(number);
+        if (segment == null) {
+            RandomAccessFile file = new RandomAccessFile(segmentFile(directory, number), "r");
+            try {
+                segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments.set(number, segment);
+        }
+        return segment;
+    }
+
+    private void checkId(long id) {
+        if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No event " + id + " of " + count);
+    }
+
+    private static int entryOffset(long id) {
+        return (int) (INDEX_HEADER_SIZE + id * INDEX_ENTRY_SIZE);
+    }
+}
@@ -0,0 +1,267 @@
+package agh.sm.falldetector.core.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Always-on recorder of the raw accelerometer stream, so the x, y, z readings around an event
+ * survive after the detector window has moved on. Readings go to a fixed-size circular buffer
+ * outside the Java heap; {@link #trigger} asks for the readings from {@code preTrigger} before to
+ * {@code postTrigger} after a point in time, and a background thread writes them to
+ * {@code flightNNNNNN.bin} once the recorder is past the end of that range:
+ * <pre>
+ * header   magic i32, version i32, trigger timestamp i64, readings i32, reserved i32   24 bytes
+ * reading  timestamp i64 (ns), x f32, y f32, z f32 (m/s^2)                             20 bytes
+ * </pre>
+ * little-endian, as laid out in the buffer, which is handed to the file channel without a copy.
+ * <p>
+ * One thread records and triggers, the reading side never blocks it. The buffer must hold the
+ * capture range plus however long the writer may lag behind; readings overwritten before the
+ * writer got to them are left out of the snapshot, see {@link #getTruncatedCount()}.
+ */
+public class FlightRecorder implements Closeable {
+
+    static final int MAGIC = 0x464c5452; // FLTR
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int READING_SIZE = 20;
+    private static final String SNAPSHOT_FILE_FORMAT = "flight%06d.bin";
+    private static final int PENDING_TRIGGERS = 8;
+    private static final long POLL_INTERVAL_MS = 100;
+    private static final long SHUTDOWN = Long.MIN_VALUE;
+
+    private final ByteBuffer readings;
+    private final int capacity;
+    private final int mask;
+    private final long preTriggerNanos;
+    private final long postTriggerNanos;
+    private final File directory;
+    // one slot more than PENDING_TRIGGERS, kept free for SHUTDOWN
+    private final BlockingQueue<Long> triggers = new ArrayBlockingQueue<Long>(PENDING_TRIGGERS + 1);
+    // readings recorded so far, published by the recording thread with lazySet
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong droppedTriggers = new AtomicLong();
+    private final AtomicLong truncated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile IOException lastFailure;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private int nextSequence;
+
+    /**
+     * @param capacity readings kept, enough for the capture range at the highest sensor rate plus the
+     *                 writer's lag, rounded up to a power of two
+     */
+    public FlightRecorder(int capacity, long preTrigger, long postTrigger, TimeUnit unit, File directory) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.readings = ByteBuffer.allocateDirect(this.capacity * READING_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.preTriggerNanos = unit.toNanos(preTrigger);
+        this.postTriggerNanos = unit.toNanos(postTrigger);
+        this.directory = directory;
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshots();
+            }
+        }, "FlightRecorder");
+        writerThread.setDaemon(true);
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+
+    /**
+     * Recording thread. Appends readings in the layout of {@link agh.sm.falldetector.core.SensorSampleRing#drainTo}.
+     */
+    public void record(long[] timestamps, float[] xyz, int count) {
+        long position = recorded.get();
+        for (int i = 0; i < count; i++) {
+            int offset = ((int) (position + i) & mask) * READING_SIZE;
+            readings.putLong(offset, timestamps[i])
+                    .putFloat(offset + 8, xyz[i * 3])
+                    .putFloat(offset + 12, xyz[i * 3 + 1])
+                    .putFloat(offset + 16, xyz[i * 3 + 2]);
+        }
+        recorded.lazySet(position + count);
+    }
+
+    /**
+     * Recording thread. Asks for a snapshot around the given time, in nanoseconds as recorded.
+     * Never blocks; drops the trigger if too many snapshots are pending.
+     */
+    public void trigger(long timestampNanos) {
+        if (closed || triggers.remainingCapacity() <= 1 || !triggers.offer(timestampNanos)) {
+            droppedTriggers.incrementAndGet();
+        }
+    }
+
+    public long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    public long getDroppedTriggerCount() {
+        return droppedTriggers.get();
+    }
+
+    /**
+     * @return snapshots missing the start of their range, as it was overwritten before being written
+     */
+    public long getTruncatedCount() {
+        return truncated.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return why the last snapshot could not be written, null if none failed
+     */
+    public IOException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Stops taking triggers. Pending snapshots are written with the readings recorded so far.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        triggers.offer(SHUTDOWN);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d snapshots (%d truncated), %d failed, %d triggers dropped",
+                snapshots.get(), truncated.get(), failed.get(), droppedTriggers.get());
+    }
+
+    private void writeSnapshots() {
+        nextSequence = findNextSequence();
+        try {
+            while (true) {
+                long trigger = triggers.take();
+                if (trigger == SHUTDOWN) break;
+                awaitReadingsUntil(trigger + postTriggerNanos);
+                writeSnapshot(trigger);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until a reading at or after {@code timestamp} has been recorded, or the recorder is closed.
+     */
+    private void awaitReadingsUntil(long timestamp) throws InterruptedException {
+        while (!closed) {
+            long count = recorded.get();
+            if (count > 0 && timestampAt(count - 1) >= timestamp) return;
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+    }
+
+    private void writeSnapshot(long trigger) {
+        ByteBuffer view = readings.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long end = recorded.get();
+        // the slot of reading end - capacity may be mid-write with reading end, it is never read
+        long oldest = Math.max(0, end - capacity + 1);
+        long first = firstAtOrAfter(view, oldest, end, trigger - preTriggerNanos);
+        long last = firstAtOrAfter(view, first, end, trigger + postTriggerNanos + 1);
+        // the range may have started among the readings already overwritten
+        boolean cut = oldest > 0 && first == oldest;
+        File file = new File(directory, String.format(Locale.US, SNAPSHOT_FILE_FORMAT, nextSequence++));
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                FileChannel channel = out.getChannel();
+                // readings copied before being overwritten are valid, the rest are rewritten from a later start
+                while (true) {
+                    channel.position(HEADER_SIZE);
+                    channel.truncate(HEADER_SIZE);
+                    writeRange(channel, view, first, last);
+                    long oldestValid = recorded.get() - capacity + 1;
+                    if (oldestValid <= first || first == last) break;
+                    first = Math.min(oldestValid, last);
+                    cut = true;
+                }
+                header.clear();
+                header.putInt(MAGIC).putInt(VERSION).putLong(trigger).putInt((int) (last - first)).putInt(0);
+                header.flip();
+                channel.position(0);
+                while (header.hasRemaining()) channel.write(header);
+            } finally {
+                out.close();
+            }
+            snapshots.incrementAndGet();
+            if (cut) truncated.incrementAndGet();
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            lastFailure = e;
+        }
+    }
+
+    /**
+     * Writes readings {@code [first, last)} straight from the buffer, in up to two slices as it wraps.
+     */
+    private void writeRange(FileChannel channel, ByteBuffer view, long first, long last) throws IOException {
+        long position = first;
+        while (position < last) {
+            int index = (int) position & mask;
+            int count = (int) Math.min(last - position, capacity - index);
+            view.limit((index + count) * READING_SIZE).position(index * READING_SIZE);
+            while (view.hasRemaining()) channel.write(view);
+            view.clear();
+            position += count;
+        }
+    }
+
+    /**
+     * @return the first of the readings {@code [from, to)} taken at or after {@code timestamp}
+     */
+    private long firstAtOrAfter(ByteBuffer view, long from, long to, long timestamp) {
+        long low = from, high = to;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (view.getLong(((int) middle & mask) * READING_SIZE) < timestamp) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private long timestampAt(long reading) {
+        return readings.getLong(((int) reading & mask) * READING_SIZE);
+    }
+
+    /**
+     * @return one past the highest sequence number among the existing snapshots
+     */
+    private int findNextSequence() {
+        int next = 0;
+        String[] names = directory.list();
+        if (names == null) return next;
+        for (String name : names) {
+            if (name.length() == 16 && name.startsWith("flight") && name.endsWith(".bin")) {
+                try {
+                    next = Math.max(next, Integer.parseInt(name.substring(6, 12)) + 1);
+                } catch (NumberFormatException ignored) {
+                    // not a snapshot
+                }
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,30 @@
+package agh.sm.falldetector.core.io;
+
+/**
+ * An event read back from an {@link EventStore}: its features and the detector window it was
+ * extracted from. Instances are meant to be reused across reads, the sample arrays only grow.
+ */
+public class StoredEvent {
+
+    public long id;
+    // wall-clock time of the event in milliseconds, as indexed
+    public long time;
+    // event times in milliseconds, as kept in the window
+    public long triggerPeakTime;
+    public long impactEnd;
+    public double impactDuration;
+    public double impactViolence;
+    public double impactAverage;
+    public double postImpactAverage;
+
+    public int size;
+    public long[] timestamps = new long[0];
+    public float[] magnitudes = new float[0];
+
+    void ensureCapacity(int samples) {
+        if (timestamps.length < samples) {
+            timestamps = new long[samples];
+            magnitudes = new float[samples];
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package agh.sm.falldetector.core.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static agh.sm.falldetector.core.io.TraceEncoder.*;
+
+/**
+ * Streaming decoder of traces written by {@link TraceEncoder}. Values come back as multiples of
+ * the trace's resolution.
+ * <p>
+ * Not thread-safe.
+ */
+public class TraceDecoder implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final int channels;
+    private final double resolution;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private long readings;
+    private long previousTimestamp;
+    private long previousDelta;
+    private final int[] previousValues;
+
+    public TraceDecoder(InputStream in) throws IOException {
+        this.in = in;
+        if (!fill(HEADER_SIZE) || getInt() != MAGIC) throw new IOException("Not a sensor trace");
+        int version = buffer[position++] & 0xFF;
+        if (version != VERSION) throw new IOException("Unsupported trace version " + version);
+        this.channels = buffer[position++] & 0xFF;
+        if (channels != 1 && channels != 3) throw new IOException("Unsupported channel count " + channels);
+        long bits = (long) getInt() << 32 | getInt() & 0xFFFFFFFFL;
+        this.resolution = Double.longBitsToDouble(bits);
+        this.previousValues = new int[channels];
+    }
+
+    /**
+     * @return 1 for a magnitude trace, 3 for an x, y, z trace
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    public double getResolution() {
+        return resolution;
+    }
+
+    public long getReadingCount() {
+        return readings;
+    }
+
+    /**
+     * Reads up to {@code max} readings of a magnitude trace.
+     *
+     * @return number of readings read, -1 at the end of the trace
+     */
+    public int read(long[] timestamps, double[] magnitudes, int offset, int max) throws IOException {
+        checkChannels(1);
+        int count = 0;
+        while (count < max && startReading()) {
+            timestamps[offset + count] = getTimestamp();
+            magnitudes[offset + count] = getValue(0);
+            count++;
+        }
+        return count == 0 && max > 0 ? -1 : count;
+    }
+
+    /**
+     * Reads up to {@code max} readings of an x, y, z trace, three values per reading in {@code xyz}.
+     *
+     * @return number of readings read, -1 at the end of the trace
+     */
+    public int read(long[] timestamps, float[] xyz, int offset, int max) throws IOException {
+        checkChannels(3);
+        int count = 0;
+        while (count < max && startReading()) {
+            int i = offset + count;
+            timestamps[i] = getTimestamp();
+            xyz[i * 3] = (float) getValue(0);
+            xyz[i * 3 + 1] = (float) getValue(1);
+            xyz[i * 3 + 2] = (float) getValue(2);
+            count++;
+        }
+        return count == 0 && max > 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Makes sure a whole reading is buffered, unless the trace ends first.
+     *
+     * @return false at the end of the trace
+     */
+    private boolean startReading() throws IOException {
+        return fill((channels + 1) * MAX_VARINT_SIZE) || position < limit;
+    }
+
+    private long getTimestamp() throws IOException {
+        long encoded = getVarLong();
+        long delta = readings < 2 ? encoded : previousDelta + encoded;
+        previousDelta = delta;
+        previousTimestamp += delta;
+        readings++;
+        return previousTimestamp;
+    }
+
+    private double getValue(int channel) throws IOException {
+        int quantized = previousValues[channel] + (int) getVarLong();
+        previousValues[channel] = quantized;
+        return quantized * resolution;
+    }
+
+    private long getVarLong() throws IOException {
+        long zigZag = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position == limit) throw new EOFException("Trace ends within a reading");
+            if (shift == 7 * MAX_VARINT_SIZE) throw new IOException("Malformed varint");
+            byte b = buffer[position++];
+            zigZag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    private int getInt() {
+        int value = (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+                | (buffer[position + 2] & 0xFF) << 8 | buffer[position + 3] & 0xFF;
+        position += 4;
+        return value;
+    }
+
+    /**
+     * Reads ahead until at least {@code bytes} are buffered or the stream ends.
+     *
+     * @return true if that many bytes are buffered
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (limit - position >= bytes) return true;
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        while (limit < bytes) {
+            int read = in.read(buffer, limit, BUFFER_SIZE - limit);
+            if (read < 0) return false;
+            limit += read;
+        }
+        return true;
+    }
+
+    private void checkChannels(int expected) {
+        if (channels != expected) {
+            throw new IllegalStateException("Trace has " + channels + " channels, not " + expected);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package agh.sm.falldetector.core.io;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming encoder of compact sensor traces, about a tenth of the size of
+ * {@code timestamp,value} CSV lines.
+ * <pre>
+ * header   magic i32, version u8, channels u8 (1 = magnitude, 3 = x, y, z), resolution f64   14 bytes
+ * reading  timestamp delta-of-delta, then per channel the delta of the quantized value
+ * </pre>
+ * The header is big-endian; every reading field is a zig-zag varint. The first reading stores its
+ * timestamp as a delta from 0 and the second as a plain delta, so the usual steady sensor rate
+ * costs one byte per timestamp. Values are quantized to 16-bit steps of {@code resolution} and
+ * clamped, so slowly changing signals cost one or two bytes per channel. Timestamps are lossless,
+ * in whatever unit they are given.
+ * <p>
+ * Not thread-safe.
+ */
+public class TraceEncoder implements Closeable, Flushable {
+
+    static final int MAGIC = 0x46445452; // FDTR
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 14;
+    static final int MAX_VARINT_SIZE = 10;
+
+    /** Step of the quantized values in m/s^2, spans +-16.7 g. */
+    public static final double DEFAULT_RESOLUTION = 0.005;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final int channels;
+    private final double scale;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    private long readings;
+    private long previousTimestamp;
+    private long previousDelta;
+    private final int[] previousValues;
+
+    private TraceEncoder(OutputStream out, int channels, double resolution) throws IOException {
+        this.out = out;
+        this.channels = channels;
+        this.scale = 1 / resolution;
+        this.previousValues = new int[channels];
+        putInt(MAGIC);
+        buffer[position++] = (byte) VERSION;
+        buffer[position++] = (byte) channels;
+        long bits = Double.doubleToLongBits(resolution);
+        putInt((int) (bits >>> 32));
+        putInt((int) bits);
+    }
+
+    /**
+     * Encodes one magnitude per reading.
+     */
+    public static TraceEncoder magnitudes(OutputStream out, double resolution) throws IOException {
+        return new TraceEncoder(out, 1, resolution);
+    }
+
+    /**
+     * Encodes x, y and z per reading.
+     */
+    public static TraceEncoder axes(OutputStream out, double resolution) throws IOException {
+        return new TraceEncoder(out, 3, resolution);
+    }
+
+    public void write(long timestamp, double magnitude) throws IOException {
+        checkChannels(1);
+        ensureRoom(2 * MAX_VARINT_SIZE);
+        putTimestamp(timestamp);
+        putValue(0, magnitude);
+    }
+
+    public void write(long timestamp, float x, float y, float z) throws IOException {
+        checkChannels(3);
+        ensureRoom(4 * MAX_VARINT_SIZE);
+        putTimestamp(timestamp);
+        putValue(0, x);
+        putValue(1, y);
+        putValue(2, z);
+    }
+
+    public void write(long[] timestamps, double[] magnitudes, int offset, int count) throws IOException {
+        checkChannels(1);
+        for (int i = offset; i < offset + count; i++) {
+            ensureRoom(2 * MAX_VARINT_SIZE);
+            putTimestamp(timestamps[i]);
+            putValue(0, magnitudes[i]);
+        }
+    }
+
+    /**
+     * Writes readings laid out as by {@link agh.sm.falldetector.core.SensorSampleRing#drainTo}.
+     */
+    public void write(long[] timestamps, float[] xyz, int offset, int count) throws IOException {
+        checkChannels(3);
+        for (int i = offset; i < offset + count; i++) {
+            ensureRoom(4 * MAX_VARINT_SIZE);
+            putTimestamp(timestamps[i]);
+            putValue(0, xyz[i * 3]);
+            putValue(1, xyz[i * 3 + 1]);
+            putValue(2, xyz[i * 3 + 2]);
+        }
+    }
+
+    public long getReadingCount() {
+        return readings;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void putTimestamp(long timestamp) {
+        long delta = timestamp - previousTimestamp;
+        putVarLong(readings < 2 ? delta : delta - previousDelta);
+        previousDelta = delta;
+        previousTimestamp = timestamp;
+        readings++;
+    }
+
+    private void putValue(int channel, double value) {
+        int quantized = quantize(value, scale);
+        putVarLong(quantized - previousValues[channel]);
+        previousValues[channel] = quantized;
+    }
+
+    static int quantize(double value, double scale) {
+        long steps = Math.round(value * scale);
+        return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, steps));
+    }
+
+    private void putVarLong(long value) {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((zigZag & 0x7F) | 0x80);
+            zigZag >>>= 7;
+        }
+        buffer[position++] = (byte) zigZag;
+    }
+
+    private void putInt(int value) {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (BUFFER_SIZE - position < bytes) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void checkChannels(int expected) {
+        if (channels != expected) {
+            throw new IllegalStateException("Trace has " + channels + " channels, not " + expected);
+        }
+    }
+}
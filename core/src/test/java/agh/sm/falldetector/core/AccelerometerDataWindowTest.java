@@ -0,0 +1,171 @@
+package agh.sm.falldetector.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the ring-backed window, its prefix sums and in-band counts against a map-backed window
+ * like the one it replaced, under random operations wrapping the ring many times.
+ */
+public class AccelerometerDataWindowTest {
+
+    private static final double BAND_LOWER = 0.8 * DetectorConfig.GRAVITY_EARTH;
+    private static final double BAND_UPPER = 1.2 * DetectorConfig.GRAVITY_EARTH;
+    private static final int CAPACITY = 64;
+
+    @Test
+    public void keepsNewestReadingsInOrderWhenFull() {
+        AccelerometerDataWindow window = new AccelerometerDataWindow(4, BAND_LOWER, BAND_UPPER);
+        for (int i = 0; i < 10; i++) window.put(i * 10, i);
+
+        assertEquals(4, window.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(60 + i * 10, window.getTimestamp(i));
+            assertEquals(6 + i, window.getValue(i), 0);
+        }
+        assertEquals(6 + 7 + 8 + 9, window.sum(0, 4), 0);
+    }
+
+    @Test
+    public void replacesNewestReadingWithSameTimestamp() {
+        AccelerometerDataWindow window = new AccelerometerDataWindow(8, BAND_LOWER, BAND_UPPER);
+        window.put(10, 1);
+        window.put(20, 2);
+        window.put(20, DetectorConfig.GRAVITY_EARTH);
+
+        assertEquals(2, window.size());
+        assertEquals(DetectorConfig.GRAVITY_EARTH, window.getValue(1), 0);
+        assertEquals(1 + DetectorConfig.GRAVITY_EARTH, window.sum(0, 2), 0);
+        assertEquals(1, window.getNumEntriesInRange(BAND_LOWER, BAND_UPPER));
+    }
+
+    @Test
+    public void trimsByTimestamp() {
+        AccelerometerDataWindow window = new AccelerometerDataWindow(16, BAND_LOWER, BAND_UPPER);
+        for (int i = 0; i < 10; i++) window.put(i * 10, i);
+
+        window.removeOlderThanBy(90, 30);
+        assertEquals(4, window.size());
+        assertEquals(60, window.getTimestamp(0));
+
+        window.removeNewerThan(75);
+        assertEquals(2, window.size());
+        assertEquals(70, window.getTimestamp(1));
+        assertEquals(6 + 7, window.sum(0, 2), 0);
+
+        window.put(80, 8);
+        assertEquals(6 + 7 + 8, window.sum(0, 3), 0);
+
+        window.removeOlderThan(1000);
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void loadKeepsNewestReadings() {
+        AccelerometerDataWindow window = new AccelerometerDataWindow(4, BAND_LOWER, BAND_UPPER);
+        long[] timestamps = {1, 2, 3, 4, 5, 6};
+        float[] values = {1, 2, 3, 4, 5, 6};
+        window.load(timestamps, values, timestamps.length);
+
+        assertEquals(4, window.size());
+        assertEquals(3, window.getTimestamp(0));
+        assertEquals(3 + 4 + 5 + 6, window.sum(0, 4), 0);
+    }
+
+    @Test
+    public void matchesMapBackedWindowUnderRandomOperations() {
+        Random random = new Random(20190614);
+        AccelerometerDataWindow window = new AccelerometerDataWindow(CAPACITY, BAND_LOWER, BAND_UPPER);
+        LinkedHashMap<Long, Double> reference = new LinkedHashMap<Long, Double>();
+        long now = 0;
+
+        for (int step = 0; step < 20000; step++) {
+            int operation = random.nextInt(100);
+            if (operation < 80) {
+                // now and then the same timestamp twice, as sensors do report
+                if (random.nextInt(10) != 0) now += 1 + random.nextInt(20);
+                double value = randomMagnitude(random);
+                window.put(now, value);
+                reference.put(now, value);
+                if (reference.size() > CAPACITY) removeOldest(reference);
+            } else if (operation < 90) {
+                long maxAge = random.nextInt(600);
+                window.removeOlderThanBy(now, maxAge);
+                Iterator<Long> keys = reference.keySet().iterator();
+                while (keys.hasNext() && now - keys.next() > maxAge) keys.remove();
+            } else if (operation < 97) {
+                long newest = now - random.nextInt(100);
+                window.removeNewerThan(newest);
+                Iterator<Long> keys = reference.keySet().iterator();
+                while (keys.hasNext()) {
+                    if (keys.next() > newest) keys.remove();
+                }
+            } else {
+                window.clear();
+                reference.clear();
+            }
+            assertSameReadings(reference, window, random);
+        }
+    }
+
+    private static void assertSameReadings(Map<Long, Double> reference, AccelerometerDataWindow window,
+                                           Random random) {
+        List<Long> timestamps = new ArrayList<Long>(reference.keySet());
+        List<Double> values = new ArrayList<Double>(reference.values());
+        assertEquals(timestamps.size(), window.size());
+        for (int i = 0; i < timestamps.size(); i++) {
+            assertEquals((long) timestamps.get(i), window.getTimestamp(i));
+            assertEquals(values.get(i), window.getValue(i), 0);
+        }
+
+        int from = random.nextInt(values.size() + 1);
+        int to = from + random.nextInt(values.size() - from + 1);
+        double sum = 0;
+        int inBand = 0;
+        for (int i = from; i < to; i++) {
+            sum += values.get(i);
+            if (values.get(i) >= BAND_LOWER && values.get(i) <= BAND_UPPER) inBand++;
+        }
+        assertEquals(sum, window.sum(from, to), 1e-9);
+        assertEquals(inBand, window.getNumEntriesInRange(BAND_LOWER, BAND_UPPER, from, to));
+
+        double threshold = randomMagnitude(random);
+        assertEquals(firstIndex(values, threshold, from, to, true), window.getFirstEntryGt(threshold, from, to));
+        assertEquals(firstIndex(values, threshold, from, to, false), window.getFirstEntryLt(threshold, from, to));
+
+        if (!timestamps.isEmpty()) {
+            long timestamp = timestamps.get(random.nextInt(timestamps.size())) + random.nextInt(3) - 1;
+            int lower = 0;
+            while (lower < timestamps.size() && timestamps.get(lower) < timestamp) lower++;
+            int upper = lower;
+            while (upper < timestamps.size() && timestamps.get(upper) <= timestamp) upper++;
+            assertEquals(lower, window.lowerBound(timestamp));
+            assertEquals(upper, window.upperBound(timestamp));
+        }
+    }
+
+    private static int firstIndex(List<Double> values, double threshold, int from, int to, boolean above) {
+        for (int i = from; i < to; i++) {
+            if (above ? values.get(i) > threshold : values.get(i) < threshold) return i;
+        }
+        return -1;
+    }
+
+    private static double randomMagnitude(Random random) {
+        return DetectorConfig.GRAVITY_EARTH + random.nextGaussian() * 3;
+    }
+
+    private static void removeOldest(Map<Long, Double> map) {
+        Iterator<Long> keys = map.keySet().iterator();
+        keys.next();
+        keys.remove();
+    }
+}
@@ -0,0 +1,407 @@
+package agh.sm.falldetector.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the detector next to {@link BaselineDetector}, the map-backed FSM and clone-based feature
+ * extraction the app shipped with, over seeded traces, and expects the same events and features.
+ */
+public class PotentialFallDetectorTest {
+
+    private static final double G = DetectorConfig.GRAVITY_EARTH;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // averages are summed in another order, by prefix sums instead of value by value
+    private static final double AVERAGE_TOLERANCE = 1e-9;
+
+    @Test
+    public void matchesBaselineOnNoisyTraces() {
+        for (long seed = 1; seed <= 5; seed++) {
+            int events = assertSameEvents(noisyTrace(seed, 200000));
+            assertTrue("no events in trace " + seed, events > 0);
+        }
+    }
+
+    @Test
+    public void matchesBaselineOnFalls() {
+        int events = assertSameEvents(fallTrace(7, 50));
+        assertEquals(50, events);
+    }
+
+    @Test
+    public void matchesBatchRuns() {
+        Trace trace = fallTrace(11, 20);
+        float[] xyz = new float[trace.size * 3];
+        for (int i = 0; i < trace.size; i++) xyz[i * 3 + 2] = (float) trace.magnitudes[i];
+
+        PotentialFallDetector single = new PotentialFallDetector(null);
+        PotentialFallDetector batched = new PotentialFallDetector(null);
+        List<ExtractedAccelerometerData> expected = new ArrayList<ExtractedAccelerometerData>();
+        List<ExtractedAccelerometerData> actual = new ArrayList<ExtractedAccelerometerData>();
+        for (int i = 0; i < trace.size; i++) {
+            float z = xyz[i * 3 + 2];
+            ExtractedAccelerometerData event = single.run(trace.timestamps[i], Math.sqrt(z * z));
+            if (event != null) expected.add(event);
+        }
+        for (int offset = 0; offset < trace.size; offset += 97) {
+            actual.addAll(batched.runBatch(trace.timestamps, xyz, offset, Math.min(97, trace.size - offset)));
+        }
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).triggerPeakTime, actual.get(i).triggerPeakTime);
+            assertEquals(expected.get(i).impactDuration, actual.get(i).impactDuration, 0);
+            assertEquals(expected.get(i).impactViolence, actual.get(i).impactViolence, 0);
+            assertEquals(expected.get(i).impactAverage, actual.get(i).impactAverage, 0);
+            assertEquals(expected.get(i).postImpactAverage, actual.get(i).postImpactAverage, 0);
+        }
+    }
+
+    @Test
+    public void finishReportsEventCutShortAfterPeak() {
+        Trace trace = fallTrace(3, 2);
+        final List<ExtractedAccelerometerData> notified = new ArrayList<ExtractedAccelerometerData>();
+        PotentialFallDetector detector = new PotentialFallDetector(new PotentialFallListener() {
+            @Override
+            public void onPotentialFall(AccelerometerDataWindow window, ExtractedAccelerometerData features) {
+                notified.add(features);
+            }
+        });
+        List<ExtractedAccelerometerData> events = new ArrayList<ExtractedAccelerometerData>();
+        // the second fall's impact is at reading 3060, its post-fall phase ends 3 s later
+        for (int i = 0; i < 3060 + 400; i++) {
+            ExtractedAccelerometerData event = detector.run(trace.timestamps[i], trace.magnitudes[i]);
+            if (event != null) events.add(event);
+        }
+        assertEquals(1, events.size());
+
+        ExtractedAccelerometerData last = detector.finish();
+        assertTrue(last != null);
+        // an aftershock over the threshold may move the trigger peak
+        assertTrue(last.triggerPeakTime >= trace.timestamps[3060] / NANOS_PER_MILLI);
+        assertTrue(last.triggerPeakTime < trace.timestamps[3100] / NANOS_PER_MILLI);
+        assertEquals(2, notified.size());
+        assertNull(detector.finish());
+        assertNull(detector.peekFeatures());
+    }
+
+    @Test
+    public void finishDropsEventStillInPostPeakPhase() {
+        Trace trace = fallTrace(3, 1);
+        PotentialFallDetector detector = new PotentialFallDetector(null);
+        for (int i = 0; i < 1100; i++) detector.run(trace.timestamps[i], trace.magnitudes[i]);
+        assertNull(detector.finish());
+    }
+
+    @Test
+    public void peekFeaturesIsNullWhileWaitingForPeak() {
+        PotentialFallDetector detector = new PotentialFallDetector(null);
+        for (int i = 1; i <= 100; i++) detector.run(i * 5 * NANOS_PER_MILLI, G);
+        assertNull(detector.peekFeatures());
+    }
+
+    @Test
+    public void peekFeaturesIsNullUntilImpactEndIsSet() {
+        Trace trace = fallTrace(4, 1);
+        PotentialFallDetector detector = new PotentialFallDetector(null);
+        int peak = 0;
+        while (trace.magnitudes[peak] < DetectorConfig.DEFAULT.getDetectionThreshold()) {
+            detector.run(trace.timestamps[peak], trace.magnitudes[peak]);
+            peak++;
+        }
+        // each reading of the impact over the threshold is a new peak
+        while (trace.magnitudes[peak + 1] >= DetectorConfig.DEFAULT.getDetectionThreshold()) {
+            detector.run(trace.timestamps[peak], trace.magnitudes[peak]);
+            assertNull(detector.peekFeatures());
+            peak++;
+        }
+        detector.run(trace.timestamps[peak], trace.magnitudes[peak]);
+        assertNull(detector.peekFeatures());
+
+        detector.run(trace.timestamps[peak + 1], trace.magnitudes[peak + 1]);
+        ExtractedAccelerometerData features = detector.peekFeatures();
+        assertEquals(trace.timestamps[peak] / NANOS_PER_MILLI, features.triggerPeakTime);
+        assertEquals(trace.timestamps[peak + 1] / NANOS_PER_MILLI, features.impactEnd);
+    }
+
+    private static int assertSameEvents(Trace trace) {
+        PotentialFallDetector detector = new PotentialFallDetector(null);
+        BaselineDetector baseline = new BaselineDetector();
+        int events = 0;
+        for (int i = 0; i < trace.size; i++) {
+            ExtractedAccelerometerData actual = detector.run(trace.timestamps[i], trace.magnitudes[i]);
+            double[] expected = baseline.run(trace.timestamps[i], trace.magnitudes[i]);
+            if (expected == null) {
+                assertNull("unexpected event at reading " + i, actual);
+                continue;
+            }
+            String at = "event at reading " + i;
+            assertTrue(at + " missed", actual != null);
+            assertEquals(at, expected[0], actual.impactDuration, 0);
+            assertEquals(at, expected[1], actual.impactViolence, 0);
+            assertEquals(at, expected[2], actual.impactAverage, AVERAGE_TOLERANCE);
+            assertEquals(at, expected[3], actual.postImpactAverage, AVERAGE_TOLERANCE);
+            events++;
+        }
+        return events;
+    }
+
+    /**
+     * Readings every 3-8 ms around 1 g, with occasional spikes over the detection threshold and dips.
+     */
+    private static Trace noisyTrace(long seed, int size) {
+        Random random = new Random(seed);
+        Trace trace = new Trace(size);
+        long timestamp = 0;
+        for (int i = 0; i < size; i++) {
+            timestamp += (3 + random.nextInt(5)) * NANOS_PER_MILLI + random.nextInt(999999);
+            double magnitude = G + random.nextGaussian() * 2;
+            if (random.nextInt(400) == 0) magnitude = 30 + random.nextDouble() * 20;
+            if (random.nextInt(50) == 0) magnitude = random.nextDouble() * 5;
+            trace.add(timestamp, magnitude);
+        }
+        return trace;
+    }
+
+    /**
+     * Falls 10 s apart: free fall, an impact with aftershocks, then lying still.
+     */
+    private static Trace fallTrace(long seed, int falls) {
+        Random random = new Random(seed);
+        Trace trace = new Trace(falls * 2000);
+        long timestamp = 0;
+        for (int fall = 0; fall < falls; fall++) {
+            for (int i = 0; i < 2000; i++) {
+                timestamp += 5 * NANOS_PER_MILLI;
+                double magnitude = G + random.nextGaussian() * 0.3;
+                if (i >= 1000 && i < 1060) magnitude = random.nextDouble() * 0.5 * G;
+                else if (i >= 1060 && i < 1064) magnitude = (3.5 + random.nextDouble() * 2) * G;
+                else if (i >= 1064 && i < 1100) magnitude = G + random.nextGaussian() * G;
+                trace.add(timestamp, Math.abs(magnitude));
+            }
+        }
+        return trace;
+    }
+
+    private static final class Trace {
+        final long[] timestamps;
+        final double[] magnitudes;
+        int size;
+
+        Trace(int capacity) {
+            timestamps = new long[capacity];
+            magnitudes = new double[capacity];
+        }
+
+        void add(long timestamp, double magnitude) {
+            timestamps[size] = timestamp;
+            magnitudes[size] = magnitude;
+            size++;
+        }
+    }
+
+    /**
+     * The detector as first shipped in the app, with its Android dependencies taken out.
+     */
+    private static final class BaselineDetector {
+
+        private static final int STATE_WAITING_FOR_PEAK = 0;
+        private static final int STATE_POST_PEAK_EVENT = 1;
+        private static final int STATE_POST_FALL_EVENT = 2;
+        private static final int STATE_EVENT_FINISHED = 3;
+
+        private static final double ACCELERATION_MAGNITUDE_DETECTION_THRESHOLD = 3.0 * G;
+        private static final long POST_PEAK_TIMEOUT_MS = 1000;
+        private static final long POST_FALL_TIMEOUT_MS = 2000;
+        private static final long WINDOW_ENTRY_MAX_AGE_MS = POST_PEAK_TIMEOUT_MS + POST_FALL_TIMEOUT_MS;
+        private static final long PRE_IMPACT_JUST_BEFORE_MS = 500;
+        private static final long IMPACT_END_LOOKBACK_MS = POST_PEAK_TIMEOUT_MS + PRE_IMPACT_JUST_BEFORE_MS;
+
+        private long postPeakTimeStart;
+        private long postFallTimeStart;
+        private int state;
+        private Window fallLikeEventWindow;
+        private long triggerPeakTime;
+        private long impactStart;
+        private long impactEnd;
+        private long lastReadingTimestamp;
+
+        BaselineDetector() {
+            resetFSM();
+        }
+
+        /**
+         * @return impact duration, violence, average and post-impact average of a finished event, or null
+         */
+        double[] run(long timestamp, double magnitude) {
+            double[] features = doClock(timestamp, magnitude);
+            if (features != null) resetFSM();
+            return features;
+        }
+
+        private void resetFSM() {
+            state = STATE_WAITING_FOR_PEAK;
+            postPeakTimeStart = 0;
+            postFallTimeStart = 0;
+            impactStart = 0;
+            impactEnd = 0;
+            triggerPeakTime = 0;
+            lastReadingTimestamp = 0;
+            fallLikeEventWindow = new Window();
+        }
+
+        private double[] doClock(long timestamp, double magnitude) {
+            timestamp = timestamp / NANOS_PER_MILLI;
+            switch (state) {
+                case STATE_WAITING_FOR_PEAK:
+                    if (magnitude >= ACCELERATION_MAGNITUDE_DETECTION_THRESHOLD) {
+                        postPeakTimeStart = timestamp;
+                        state = STATE_POST_PEAK_EVENT;
+                        triggerPeakTime = timestamp;
+                        fallLikeEventWindow.removeOlderThanBy(timestamp, WINDOW_ENTRY_MAX_AGE_MS);
+                    }
+                    fallLikeEventWindow.put(timestamp, magnitude);
+                    break;
+                case STATE_POST_PEAK_EVENT:
+                    handlePostPeakEvent(timestamp, magnitude);
+                    break;
+                case STATE_POST_FALL_EVENT:
+                    handlePostFallEvent(timestamp, magnitude);
+                    break;
+                case STATE_EVENT_FINISHED:
+                    return extractData(fallLikeEventWindow);
+            }
+            lastReadingTimestamp = timestamp;
+            return null;
+        }
+
+        private void handlePostFallEvent(long timestamp, double magnitude) {
+            if (timestamp - postFallTimeStart > POST_FALL_TIMEOUT_MS) {
+                state = STATE_EVENT_FINISHED;
+                return;
+            }
+            fallLikeEventWindow.put(timestamp, magnitude);
+            if (magnitude >= ACCELERATION_MAGNITUDE_DETECTION_THRESHOLD) {
+                fallLikeEventWindow.removeOlderThanBy(timestamp, WINDOW_ENTRY_MAX_AGE_MS);
+                postPeakTimeStart = timestamp;
+                state = STATE_POST_PEAK_EVENT;
+                triggerPeakTime = timestamp;
+            }
+        }
+
+        private void handlePostPeakEvent(long timestamp, double magnitude) {
+            fallLikeEventWindow.put(timestamp, magnitude);
+            if (timestamp - postPeakTimeStart > POST_PEAK_TIMEOUT_MS) {
+                postFallTimeStart = timestamp;
+                state = STATE_POST_FALL_EVENT;
+                return;
+            }
+            if (magnitude >= ACCELERATION_MAGNITUDE_DETECTION_THRESHOLD) {
+                fallLikeEventWindow.removeOlderThanBy(timestamp, WINDOW_ENTRY_MAX_AGE_MS);
+                postPeakTimeStart = timestamp;
+                state = STATE_POST_PEAK_EVENT;
+                triggerPeakTime = timestamp;
+                return;
+            } else if (magnitude >= ACCELERATION_MAGNITUDE_DETECTION_THRESHOLD / 2.0) {
+                impactEnd = timestamp;
+            }
+            state = STATE_POST_PEAK_EVENT;
+            if (lastReadingTimestamp == triggerPeakTime) impactEnd = timestamp;
+        }
+
+        private double[] extractData(Window window) {
+            Window subset = window.copy();
+            subset.removeOlderThan(impactEnd - IMPACT_END_LOOKBACK_MS);
+            subset.removeNewerThan(triggerPeakTime);
+
+            Map.Entry<Long, Double> dip = subset.getFirstEntryLt(0.7 * G);
+            if (dip == null) {
+                impactStart = triggerPeakTime;
+            } else {
+                subset.removeOlderThan(dip.getKey());
+                Map.Entry<Long, Double> start = subset.getFirstEntryGt(ACCELERATION_MAGNITUDE_DETECTION_THRESHOLD / 2.0);
+                impactStart = start == null ? triggerPeakTime : start.getKey();
+            }
+            double impactDuration = impactEnd - impactStart;
+
+            Window impactWindow = window.copy();
+            impactWindow.removeOlderThan(impactStart);
+            impactWindow.removeNewerThan(impactEnd);
+            double impactViolence = (impactWindow.size() - impactWindow.getNumEntriesInRange(0.8 * G, 1.2 * G))
+                    / (double) impactWindow.size();
+            double impactAverage = impactWindow.sum() / impactWindow.size();
+
+            Window postImpactWindow = window.copy();
+            postImpactWindow.removeOlderThan(impactEnd);
+            double postImpactAverage = postImpactWindow.sum() / postImpactWindow.size();
+
+            return new double[]{impactDuration, impactViolence, impactAverage, postImpactAverage};
+        }
+    }
+
+    private static final class Window extends LinkedHashMap<Long, Double> {
+
+        void removeOlderThanBy(long timestampReference, long maxAge) {
+            Iterator<Long> iterator = keySet().iterator();
+            while (iterator.hasNext()) {
+                if (timestampReference - iterator.next() > maxAge) iterator.remove();
+                else break;
+            }
+        }
+
+        void removeOlderThan(long timestampReference) {
+            removeOlderThanBy(timestampReference, 0);
+        }
+
+        void removeNewerThan(long timestampReference) {
+            Iterator<Long> iterator = keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() > timestampReference) iterator.remove();
+            }
+        }
+
+        Window copy() {
+            Window copy = new Window();
+            copy.putAll(this);
+            return copy;
+        }
+
+        int getNumEntriesInRange(double lower, double upper) {
+            int count = 0;
+            for (double value : values()) {
+                if (value >= lower && value <= upper) count++;
+            }
+            return count;
+        }
+
+        Map.Entry<Long, Double> getFirstEntryGt(double threshold) {
+            for (Map.Entry<Long, Double> entry : entrySet()) {
+                if (entry.getValue() > threshold) return entry;
+            }
+            return null;
+        }
+
+        Map.Entry<Long, Double> getFirstEntryLt(double threshold) {
+            for (Map.Entry<Long, Double> entry : entrySet()) {
+                if (entry.getValue() < threshold) return entry;
+            }
+            return null;
+        }
+
+        double sum() {
+            double sum = 0;
+            for (double value : values()) sum += value;
+            return sum;
+        }
+    }
+}
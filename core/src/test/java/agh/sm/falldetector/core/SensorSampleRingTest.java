@@ -0,0 +1,185 @@
+package agh.sm.falldetector.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SensorSampleRingTest {
+
+    private static final int BATCH = 16;
+
+    private final long[] timestamps = new long[BATCH];
+    private final float[] xyz = new float[BATCH * 3];
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(8, new SensorSampleRing(5, WaitStrategy.SPIN).capacity());
+        assertEquals(8, new SensorSampleRing(8, WaitStrategy.SPIN).capacity());
+        assertEquals(2, new SensorSampleRing(1, WaitStrategy.SPIN).capacity());
+    }
+
+    @Test
+    public void keepsReadingsInOrderAcrossWrapAround() {
+        SensorSampleRing ring = new SensorSampleRing(8, WaitStrategy.SPIN);
+        long next = 0;
+        long expected = 0;
+        for (int round = 0; round < 10; round++) {
+            while (ring.offer(next, next, -next, 2 * next)) next++;
+            assertEquals(8, ring.size());
+            // the consumer may copy fewer than queued, up to its last view of the producer
+            for (int drained = 0; drained < 5; ) {
+                int count = ring.drainTo(timestamps, xyz, 5 - drained);
+                assertTrue(count > 0);
+                for (int i = 0; i < count; i++, expected++) {
+                    assertEquals(expected, timestamps[i]);
+                    assertEquals(expected, xyz[i * 3], 0);
+                    assertEquals(-expected, xyz[i * 3 + 1], 0);
+                    assertEquals(2 * expected, xyz[i * 3 + 2], 0);
+                }
+                drained += count;
+            }
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedReadings() {
+        SensorSampleRing ring = new SensorSampleRing(8, WaitStrategy.SPIN, OverloadPolicy.DROP_NEWEST);
+        for (int i = 0; i < 11; i++) ring.publish(i, 0, 0, i);
+
+        assertEquals(3, ring.getDroppedCount());
+        assertEquals(8, ring.drainTo(timestamps, xyz, BATCH));
+        for (int i = 0; i < 8; i++) assertEquals(i, timestamps[i]);
+    }
+
+    @Test
+    public void dropOldestKeepsNewestReadings() {
+        SensorSampleRing ring = new SensorSampleRing(8, WaitStrategy.SPIN, OverloadPolicy.DROP_OLDEST);
+        for (int i = 0; i < 11; i++) ring.publish(i, 0, 0, i);
+
+        assertEquals(3, ring.getDroppedCount());
+        assertEquals(8, ring.drainTo(timestamps, xyz, BATCH));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 3, timestamps[i]);
+            assertEquals(i + 3, xyz[i * 3 + 2], 0);
+        }
+    }
+
+    @Test
+    public void decimateKeepsStrongestReadingOfEachGroup() {
+        // 16 slots: decimation starts at 12 queued and stops at 8
+        SensorSampleRing ring = new SensorSampleRing(16, WaitStrategy.SPIN, OverloadPolicy.DECIMATE);
+        long timestamp = 0;
+        for (int i = 0; i < 12; i++) ring.publish(timestamp++, 0, 0, 1);
+        assertEquals(12, ring.size());
+
+        float[] magnitudes = {1, 5, 2, 3, 7, 1, 1, 1};
+        for (float magnitude : magnitudes) ring.publish(timestamp++, 0, magnitude, 0);
+
+        assertEquals(14, ring.size());
+        assertEquals(6, ring.getDecimatedCount());
+        assertEquals(0, ring.getDroppedCount());
+        assertEquals(12, ring.drainTo(timestamps, xyz, 12));
+        assertEquals(2, ring.drainTo(timestamps, xyz, BATCH));
+        assertEquals(13, timestamps[0]);
+        assertEquals(5, xyz[1], 0);
+        assertEquals(16, timestamps[1]);
+        assertEquals(7, xyz[4], 0);
+    }
+
+    @Test
+    public void decimateFlushesPartialGroupOnceConsumerCatchesUp() {
+        SensorSampleRing ring = new SensorSampleRing(16, WaitStrategy.SPIN, OverloadPolicy.DECIMATE);
+        long timestamp = 0;
+        for (int i = 0; i < 12; i++) ring.publish(timestamp++, 0, 0, 1);
+        ring.publish(timestamp++, 0, 0, 2);
+        ring.publish(timestamp++, 0, 0, 9);
+        assertEquals(12, ring.size());
+
+        ring.drainTo(timestamps, xyz, BATCH);
+        ring.publish(timestamp, 0, 0, 1);
+
+        assertEquals(1, ring.getDecimatedCount());
+        assertEquals(2, ring.drainTo(timestamps, xyz, BATCH));
+        assertEquals(13, timestamps[0]);
+        assertEquals(9, xyz[2], 0);
+        assertEquals(14, timestamps[1]);
+    }
+
+    @Test
+    public void decimateDropsWhenFullAllTheSame() {
+        SensorSampleRing ring = new SensorSampleRing(16, WaitStrategy.SPIN, OverloadPolicy.DECIMATE);
+        for (int i = 0; i < 12 + 6 * SensorSampleRing.DECIMATION_FACTOR; i++) ring.publish(i, 0, 0, 1);
+
+        assertEquals(16, ring.size());
+        assertEquals(2, ring.getDroppedCount());
+        assertEquals(6 * (SensorSampleRing.DECIMATION_FACTOR - 1), ring.getDecimatedCount());
+    }
+
+    @Test
+    public void blockingPutLosesNothing() throws Exception {
+        final int total = 200000;
+        final SensorSampleRing ring = new SensorSampleRing(64, WaitStrategy.YIELD);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < total; i++) ring.publish(i, i, 0, 0);
+            }
+        });
+        producer.start();
+
+        long expected = 0;
+        while (expected < total) {
+            int count = ring.take(timestamps, xyz, BATCH);
+            for (int i = 0; i < count; i++, expected++) {
+                assertEquals(expected, timestamps[i]);
+                assertEquals((float) expected, xyz[i * 3], 0);
+            }
+        }
+        producer.join();
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestUnderContentionDeliversIncreasingReadings() throws Exception {
+        final int total = 200000;
+        final SensorSampleRing ring = new SensorSampleRing(16, WaitStrategy.YIELD, OverloadPolicy.DROP_OLDEST);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < total; i++) ring.publish(i, i, 0, 0);
+            }
+        });
+        producer.start();
+
+        long received = 0;
+        long last = -1;
+        while (producer.isAlive() || ring.size() > 0) {
+            int count = ring.drainTo(timestamps, xyz, BATCH);
+            for (int i = 0; i < count; i++) {
+                assertTrue(timestamps[i] > last);
+                assertEquals((float) timestamps[i], xyz[i * 3], 0);
+                last = timestamps[i];
+            }
+            received += count;
+        }
+        producer.join();
+        received += ring.drainTo(timestamps, xyz, BATCH);
+        assertEquals(total, received + ring.getDroppedCount());
+    }
+
+    @Test
+    public void takeThrowsWhenInterruptedWhileEmpty() {
+        SensorSampleRing ring = new SensorSampleRing(8, WaitStrategy.PARK);
+        Thread.currentThread().interrupt();
+        try {
+            ring.take(timestamps, xyz, BATCH);
+            fail();
+        } catch (InterruptedException expected) {
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+    }
+}
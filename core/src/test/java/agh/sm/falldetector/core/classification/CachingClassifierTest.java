@@ -0,0 +1,92 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class CachingClassifierTest {
+
+    private static final int FALL = 0;
+    private static final int WALK = 1;
+
+    @Test
+    public void cachesOnlyTheGivenClass() throws IOException {
+        CountingClassifier classifier = new CountingClassifier(WALK);
+        CachingClassifier cache = CachingClassifier.builder(classifier).onlyCache(FALL).build();
+
+        assertEquals(WALK, cache.classify(features(100, 2.0)));
+        assertEquals(WALK, cache.classify(features(100, 2.0)));
+        assertEquals(2, classifier.calls);
+
+        classifier.answer = FALL;
+        assertEquals(FALL, cache.classify(features(100, 2.0)));
+        assertEquals(FALL, cache.classify(features(104, 2.005)));
+        assertEquals(3, classifier.calls);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void cachesOtherAnswersOnlyInFinerCells() throws IOException {
+        CountingClassifier classifier = new CountingClassifier(WALK);
+        CachingClassifier cache = CachingClassifier.builder(classifier)
+                .onlyCache(FALL)
+                .cacheOthers(10, 60000)
+                .build();
+
+        assertEquals(WALK, cache.classify(features(100, 2.0)));
+        // a near-exact repeat is answered from the cache
+        assertEquals(WALK, cache.classify(features(100.5, 2.0001)));
+        assertEquals(1, classifier.calls);
+        assertEquals(1, cache.getHitCount());
+
+        // in the same coarse cell, but not in the same fine one
+        classifier.answer = FALL;
+        assertEquals(FALL, cache.classify(features(105, 2.0)));
+        assertEquals(2, classifier.calls);
+
+        // the fall's coarse cell now takes precedence over the walk's fine one
+        assertEquals(FALL, cache.classify(features(100, 2.0)));
+        assertEquals(2, classifier.calls);
+    }
+
+    @Test
+    public void otherAnswersExpireSooner() throws IOException, InterruptedException {
+        CountingClassifier classifier = new CountingClassifier(WALK);
+        CachingClassifier cache = CachingClassifier.builder(classifier)
+                .onlyCache(FALL)
+                .cacheOthers(10, 1)
+                .build();
+
+        cache.classify(features(100, 2.0));
+        classifier.answer = FALL;
+        cache.classify(features(200, 4.0));
+        Thread.sleep(5);
+
+        cache.purgeExpired();
+        assertEquals(1, cache.size());
+        assertEquals(FALL, cache.classify(features(100, 2.0)));
+        assertEquals(3, classifier.calls);
+    }
+
+    private static ExtractedAccelerometerData features(double impactDuration, double impactViolence) {
+        return new ExtractedAccelerometerData(impactDuration, impactViolence, 12.0, 9.8);
+    }
+
+    private static class CountingClassifier implements FallClassifier {
+        int answer;
+        int calls;
+
+        CountingClassifier(int answer) {
+            this.answer = answer;
+        }
+
+        @Override
+        public int classify(ExtractedAccelerometerData features) {
+            calls++;
+            return answer;
+        }
+    }
+}
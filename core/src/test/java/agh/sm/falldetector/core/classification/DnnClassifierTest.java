@@ -0,0 +1,118 @@
+package agh.sm.falldetector.core.classification;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the on-device forward pass against the checked-in reference predictions for
+ * {@code machine_learning/test.csv}. They come from a float64 forward pass over the same bundle,
+ * not from TensorFlow; {@code export_predictions.py} writes TensorFlow's in the same format.
+ */
+public class DnnClassifierTest {
+
+    private static final double PROBABILITY_TOLERANCE = 1e-4;
+
+    private static DnnClassifier classifier;
+    private static List<double[]> rows;
+    private static List<double[]> expected;
+
+    @BeforeClass
+    public static void loadModel() throws IOException {
+        classifier = DnnClassifier.load(machineLearningFile("trained/variables/variables"));
+        rows = readCsv(machineLearningFile("test.csv"), true);
+        expected = readCsv(machineLearningFile("reference_predictions.csv"), false);
+    }
+
+    @Test
+    public void predictionsCoverTheTestSet() {
+        assertEquals(rows.size(), expected.size());
+        assertEquals(expected.get(0).length - 1, classifier.getClassCount());
+    }
+
+    @Test
+    public void classesMatchTheExpectedPredictions() {
+        float[] features = new float[DnnClassifier.FEATURES];
+        for (int r = 0; r < rows.size(); r++) {
+            copyFeatures(rows.get(r), features);
+            assertEquals("row " + r, (int) expected.get(r)[0], classifier.classify(features, null));
+        }
+    }
+
+    @Test
+    public void probabilitiesMatchTheExpectedPredictions() {
+        float[] features = new float[DnnClassifier.FEATURES];
+        float[] probabilities = new float[classifier.getClassCount()];
+        for (int r = 0; r < rows.size(); r++) {
+            copyFeatures(rows.get(r), features);
+            classifier.classify(features, probabilities);
+            double[] tf = expected.get(r);
+            for (int c = 0; c < probabilities.length; c++) {
+                assertEquals("row " + r + " class " + c, tf[c + 1], probabilities[c], PROBABILITY_TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void batchGivesTheSameClassesAndConfidences() {
+        int count = rows.size();
+        float[] batch = new float[count * DnnClassifier.FEATURES];
+        float[] features = new float[DnnClassifier.FEATURES];
+        for (int r = 0; r < count; r++) {
+            copyFeatures(rows.get(r), features);
+            System.arraycopy(features, 0, batch, r * DnnClassifier.FEATURES, DnnClassifier.FEATURES);
+        }
+        int[] classes = new int[count];
+        float[] confidences = new float[count];
+        classifier.classifyBatch(batch, count, classes, confidences);
+
+        float[] probabilities = new float[classifier.getClassCount()];
+        for (int r = 0; r < count; r++) {
+            copyFeatures(rows.get(r), features);
+            int classification = classifier.classify(features, probabilities);
+            assertEquals("row " + r, classification, classes[r]);
+            assertEquals("row " + r, probabilities[classification], confidences[r], 1e-6);
+            assertTrue(confidences[r] >= 1.0 / probabilities.length);
+        }
+    }
+
+    private static void copyFeatures(double[] row, float[] features) {
+        for (int i = 0; i < DnnClassifier.FEATURES; i++) features[i] = (float) row[i];
+    }
+
+    /**
+     * Tests run from the module directory under Gradle and from the repository root in an IDE.
+     */
+    static File machineLearningFile(String path) {
+        File fromModule = new File("../machine_learning");
+        return new File(fromModule.isDirectory() ? fromModule : new File("machine_learning"), path);
+    }
+
+    private static List<double[]> readCsv(File file, boolean header) throws IOException {
+        List<double[]> rows = new ArrayList<double[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            if (header) reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                String[] fields = line.split(",");
+                double[] row = new double[fields.length];
+                for (int i = 0; i < fields.length; i++) row[i] = Double.parseDouble(fields[i].trim());
+                rows.add(row);
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,94 @@
+package agh.sm.falldetector.core.classification;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class RemoteClassificationClientTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ServerSocket server;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serveJson();
+            }
+        }, "JsonServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void rejectsFeaturesJsonCannotCarry() throws IOException {
+        RemoteClassificationClient client = new RemoteClassificationClient("localhost", server.getLocalPort(),
+                1000, 1000);
+        try {
+            assertRejected(client, new ExtractedAccelerometerData(Double.NaN, 1, 9.8, 9.8));
+            assertRejected(client, new ExtractedAccelerometerData(700, Double.POSITIVE_INFINITY, 9.8, 9.8));
+            assertEquals(1, client.classify(new ExtractedAccelerometerData(700, 1, 9.8, 9.8)));
+        } finally {
+            client.close();
+        }
+        assertEquals(1, received.size());
+        assertFalse(received.get(0).contains("NaN"));
+    }
+
+    private static void assertRejected(RemoteClassificationClient client, ExtractedAccelerometerData features)
+            throws IOException {
+        try {
+            client.classify(features);
+            fail("Sent " + features.impactDuration + ", " + features.impactViolence);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Answers every request line with class 1, as server.py does.
+     */
+    private void serveJson() {
+        try {
+            Socket socket = server.accept();
+            try {
+                BufferedReader lines = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+                OutputStream out = socket.getOutputStream();
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    received.add(line);
+                    String id = line.substring(line.indexOf(':') + 1, line.indexOf(','));
+                    out.write((id + ",1\n").getBytes(ASCII));
+                    out.flush();
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
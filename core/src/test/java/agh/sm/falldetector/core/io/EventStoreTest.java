@@ -0,0 +1,263 @@
+package agh.sm.falldetector.core.io;
+
+import agh.sm.falldetector.core.AccelerometerDataWindow;
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventStoreTest {
+
+    private static final double G = DetectorConfig.GRAVITY_EARTH;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(5);
+
+    @Test
+    public void readsBackAppendedEvents() throws IOException {
+        File directory = folder.newFolder();
+        List<AccelerometerDataWindow> windows = new ArrayList<AccelerometerDataWindow>();
+        List<ExtractedAccelerometerData> features = new ArrayList<ExtractedAccelerometerData>();
+        EventStore store = EventStore.open(directory);
+        for (int i = 0; i < 20; i++) {
+            AccelerometerDataWindow window = randomWindow(10000L * i, 50 + random.nextInt(200));
+            ExtractedAccelerometerData event = featuresOf(window);
+            assertEquals(i, store.append(window, event));
+            windows.add(window);
+            features.add(event);
+        }
+        store.close();
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        assertEquals(20, reader.getEventCount());
+        StoredEvent stored = new StoredEvent();
+        for (int i = 0; i < 20; i++) {
+            assertSameEvent(i, windows.get(i), features.get(i), reader.read(i, stored));
+            assertEquals(features.get(i).triggerPeakTime, reader.getEventTime(i));
+        }
+        reader.close();
+    }
+
+    @Test
+    public void appendsCopiedWindows() throws IOException {
+        File directory = folder.newFolder();
+        AccelerometerDataWindow window = randomWindow(1000, 100);
+        long[] timestamps = new long[window.size()];
+        double[] magnitudes = new double[window.size()];
+        for (int i = 0; i < window.size(); i++) {
+            timestamps[i] = window.getTimestamp(i);
+            magnitudes[i] = window.getValue(i);
+        }
+        ExtractedAccelerometerData features = featuresOf(window);
+
+        EventStore store = EventStore.open(directory);
+        store.append(timestamps, magnitudes, timestamps.length, features);
+        store.close();
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        assertSameEvent(0, window, features, reader.read(0, new StoredEvent()));
+        reader.close();
+    }
+
+    @Test
+    public void rollsOverToNewSegments() throws IOException {
+        File directory = folder.newFolder();
+        List<AccelerometerDataWindow> windows = new ArrayList<AccelerometerDataWindow>();
+        EventStore store = EventStore.open(directory, 0, 1024);
+        for (int i = 0; i < 30; i++) {
+            // every tenth event is larger than a segment and gets a segment of its own
+            AccelerometerDataWindow window = randomWindow(10000L * i, i % 10 == 9 ? 300 : 20 + random.nextInt(40));
+            store.append(window, featuresOf(window));
+            windows.add(window);
+        }
+        store.close();
+        assertTrue(EventStore.segmentFile(directory, 10).exists());
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        StoredEvent stored = new StoredEvent();
+        for (int i = 0; i < windows.size(); i++) {
+            assertSameEvent(i, windows.get(i), featuresOf(windows.get(i)), reader.read(i, stored));
+        }
+        reader.close();
+    }
+
+    @Test
+    public void continuesAfterReopen() throws IOException {
+        File directory = folder.newFolder();
+        EventStore store = EventStore.open(directory, 0, 1024);
+        for (int i = 0; i < 5; i++) append(store, 1000L * i, 30);
+        store.close();
+
+        store = EventStore.open(directory, 0, 1024);
+        assertEquals(5, store.getEventCount());
+        AccelerometerDataWindow window = randomWindow(9000, 40);
+        assertEquals(5, store.append(window, featuresOf(window)));
+        store.close();
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        assertEquals(6, reader.getEventCount());
+        assertSameEvent(5, window, featuresOf(window), reader.read(5, new StoredEvent()));
+        reader.close();
+    }
+
+    @Test
+    public void growsIndexPastInitialSize() throws IOException {
+        File directory = folder.newFolder();
+        EventStore store = EventStore.open(directory);
+        AccelerometerDataWindow window = randomWindow(0, 1);
+        ExtractedAccelerometerData features = featuresOf(window);
+        for (int i = 0; i < 5000; i++) store.append(window, features);
+        store.close();
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        assertEquals(5000, reader.getEventCount());
+        assertEquals(4999, reader.read(4999, new StoredEvent()).id);
+        reader.close();
+    }
+
+    @Test
+    public void refreshSeesNewEvents() throws IOException {
+        File directory = folder.newFolder();
+        EventStore store = EventStore.open(directory);
+        append(store, 0, 10);
+        store.force();
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        assertEquals(1, reader.getEventCount());
+        AccelerometerDataWindow window = randomWindow(5000, 10);
+        store.append(window, featuresOf(window));
+        store.force();
+        assertEquals(1, reader.getEventCount());
+        assertEquals(2, reader.refresh());
+        assertSameEvent(1, window, featuresOf(window), reader.read(1, new StoredEvent()));
+
+        reader.close();
+        store.close();
+    }
+
+    @Test
+    public void scansByWallClockTimeAcrossReboots() throws IOException {
+        File directory = folder.newFolder();
+        long firstBoot = 1500000000000L;
+        EventStore store = EventStore.open(directory, firstBoot);
+        for (int i = 0; i < 10; i++) append(store, 60000L * (i + 1), 20);
+        store.close();
+
+        // sensor timestamps start over from zero after the reboot
+        long secondBoot = firstBoot + 3600000;
+        store = EventStore.open(directory, secondBoot);
+        for (int i = 0; i < 10; i++) append(store, 1000L * (i + 1), 20);
+        store.close();
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        for (long id = 1; id < reader.getEventCount(); id++) {
+            assertTrue(reader.getEventTime(id) > reader.getEventTime(id - 1));
+        }
+        assertEquals(10, reader.firstAtOrAfter(secondBoot));
+
+        final List<Long> visited = new ArrayList<Long>();
+        long count = reader.scan(secondBoot, secondBoot + 5500, new EventStoreReader.EventVisitor() {
+            @Override
+            public boolean visit(StoredEvent event) {
+                visited.add(event.id);
+                return true;
+            }
+        });
+        assertEquals(5, count);
+        assertEquals(10L, (long) visited.get(0));
+        assertEquals(14L, (long) visited.get(4));
+        reader.close();
+    }
+
+    @Test
+    public void holdsTimeWhenClockIsSetBack() throws IOException {
+        File directory = folder.newFolder();
+        EventStore store = EventStore.open(directory, 100000);
+        append(store, 5000, 10);
+        store.close();
+
+        store = EventStore.open(directory, 50000);
+        append(store, 5000, 10);
+        append(store, 60000, 10);
+        store.close();
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        assertEquals(100000 + 4980, reader.getEventTime(0));
+        assertEquals(reader.getEventTime(0), reader.getEventTime(1));
+        assertEquals(50000 + 59980, reader.getEventTime(2));
+        reader.close();
+    }
+
+    @Test
+    public void stopsScanWhenVisitorSaysSo() throws IOException {
+        File directory = folder.newFolder();
+        EventStore store = EventStore.open(directory);
+        for (int i = 0; i < 10; i++) append(store, 1000L * (i + 1), 10);
+        store.close();
+
+        EventStoreReader reader = EventStoreReader.open(directory);
+        long count = reader.scan(0, Long.MAX_VALUE, new EventStoreReader.EventVisitor() {
+            @Override
+            public boolean visit(StoredEvent event) {
+                return event.id < 3;
+            }
+        });
+        assertEquals(4, count);
+        reader.close();
+    }
+
+    private long append(EventStore store, long end, int samples) throws IOException {
+        AccelerometerDataWindow window = randomWindow(end, samples);
+        return store.append(window, featuresOf(window));
+    }
+
+    /**
+     * A window like the detector's, readings 5 ms apart with a peak in the middle, ending at {@code end}.
+     */
+    private AccelerometerDataWindow randomWindow(long end, int samples) {
+        long[] timestamps = new long[samples];
+        float[] magnitudes = new float[samples];
+        for (int i = 0; i < samples; i++) {
+            timestamps[i] = end - 5L * (samples - 1 - i);
+            magnitudes[i] = (float) Math.abs(G + random.nextGaussian() * G);
+        }
+        magnitudes[samples / 2] = (float) (4 * G);
+        AccelerometerDataWindow window = new AccelerometerDataWindow(samples, 0.8 * G, 1.2 * G);
+        window.load(timestamps, magnitudes, samples);
+        return window;
+    }
+
+    private static ExtractedAccelerometerData featuresOf(AccelerometerDataWindow window) {
+        int peak = window.size() / 2;
+        long impactEnd = window.getTimestamp(Math.min(window.size() - 1, peak + 4));
+        return new ExtractedAccelerometerData(window, window.getTimestamp(peak), impactEnd);
+    }
+
+    private static void assertSameEvent(long id, AccelerometerDataWindow window, ExtractedAccelerometerData features,
+                                        StoredEvent stored) {
+        assertEquals(id, stored.id);
+        assertEquals(features.triggerPeakTime, stored.triggerPeakTime);
+        assertEquals(features.impactEnd, stored.impactEnd);
+        assertEquals(features.impactDuration, stored.impactDuration, 0);
+        assertEquals(features.impactViolence, stored.impactViolence, 0);
+        assertEquals(features.impactAverage, stored.impactAverage, 0);
+        assertEquals(features.postImpactAverage, stored.postImpactAverage, 0);
+        assertEquals(window.size(), stored.size);
+        for (int i = 0; i < window.size(); i++) {
+            assertEquals(window.getTimestamp(i), stored.timestamps[i]);
+            assertEquals((float) window.getValue(i), stored.magnitudes[i], 0);
+        }
+    }
+}
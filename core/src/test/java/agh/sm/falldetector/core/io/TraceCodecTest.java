@@ -0,0 +1,145 @@
+package agh.sm.falldetector.core.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TraceCodecTest {
+
+    private static final double RESOLUTION = TraceEncoder.DEFAULT_RESOLUTION;
+    private static final int READINGS = 50000;
+
+    @Test
+    public void roundTripsMagnitudes() throws IOException {
+        Random random = new Random(1);
+        long[] timestamps = randomTimestamps(random, READINGS);
+        double[] magnitudes = new double[READINGS];
+        for (int i = 0; i < READINGS; i++) magnitudes[i] = Math.abs(9.8 + random.nextGaussian() * 5);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceEncoder encoder = TraceEncoder.magnitudes(bytes, RESOLUTION);
+        // one by one and in batches, so both paths are covered
+        for (int i = 0; i < 1000; i++) encoder.write(timestamps[i], magnitudes[i]);
+        encoder.write(timestamps, magnitudes, 1000, READINGS - 1000);
+        encoder.close();
+        assertEquals(READINGS, encoder.getReadingCount());
+
+        TraceDecoder decoder = new TraceDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(1, decoder.getChannels());
+        assertEquals(RESOLUTION, decoder.getResolution(), 0);
+        long[] decodedTimestamps = new long[READINGS];
+        double[] decodedMagnitudes = new double[READINGS];
+        int total = 0;
+        int count;
+        while ((count = decoder.read(decodedTimestamps, decodedMagnitudes, total, Math.min(333, READINGS - total))) > 0) {
+            total += count;
+        }
+        assertEquals(READINGS, total);
+        assertEquals(-1, decoder.read(decodedTimestamps, decodedMagnitudes, 0, 1));
+        decoder.close();
+
+        assertTrue(Arrays.equals(timestamps, decodedTimestamps));
+        for (int i = 0; i < READINGS; i++) {
+            assertEquals(magnitudes[i], decodedMagnitudes[i], RESOLUTION / 2 + 1e-9);
+        }
+    }
+
+    @Test
+    public void roundTripsAxes() throws IOException {
+        Random random = new Random(2);
+        long[] timestamps = randomTimestamps(random, READINGS);
+        float[] xyz = new float[READINGS * 3];
+        for (int i = 0; i < xyz.length; i++) xyz[i] = (float) (random.nextGaussian() * 10);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceEncoder encoder = TraceEncoder.axes(bytes, RESOLUTION);
+        encoder.write(timestamps[0], xyz[0], xyz[1], xyz[2]);
+        encoder.write(timestamps, xyz, 1, READINGS - 1);
+        encoder.close();
+
+        TraceDecoder decoder = new TraceDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(3, decoder.getChannels());
+        long[] decodedTimestamps = new long[READINGS];
+        float[] decodedXyz = new float[READINGS * 3];
+        int total = 0;
+        int count;
+        while ((count = decoder.read(decodedTimestamps, decodedXyz, total, Math.min(777, READINGS - total))) > 0) {
+            total += count;
+        }
+        assertEquals(READINGS, total);
+        assertEquals(READINGS, decoder.getReadingCount());
+        assertEquals(-1, decoder.read(decodedTimestamps, decodedXyz, 0, 1));
+
+        assertTrue(Arrays.equals(timestamps, decodedTimestamps));
+        for (int i = 0; i < xyz.length; i++) assertEquals(xyz[i], decodedXyz[i], RESOLUTION / 2 + 1e-5);
+    }
+
+    @Test
+    public void clampsValuesOutOfRange() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceEncoder encoder = TraceEncoder.magnitudes(bytes, RESOLUTION);
+        encoder.write(1, 1000);
+        encoder.write(2, -1000);
+        encoder.close();
+
+        long[] timestamps = new long[2];
+        double[] magnitudes = new double[2];
+        TraceDecoder decoder = new TraceDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(2, decoder.read(timestamps, magnitudes, 0, 2));
+        assertEquals(Short.MAX_VALUE * RESOLUTION, magnitudes[0], 1e-9);
+        assertEquals(Short.MIN_VALUE * RESOLUTION, magnitudes[1], 1e-9);
+    }
+
+    @Test
+    public void rejectsOtherData() {
+        try {
+            new TraceDecoder(new ByteArrayInputStream("timestamp,magnitude\n1,9.81\n".getBytes()));
+            fail();
+        } catch (IOException expected) {
+            assertEquals("Not a sensor trace", expected.getMessage());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsTruncatedReading() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceEncoder encoder = TraceEncoder.axes(bytes, RESOLUTION);
+        encoder.write(1000000000L, 100, -100, 50);
+        encoder.close();
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+
+        new TraceDecoder(new ByteArrayInputStream(truncated)).read(new long[1], new float[3], 0, 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsReadingOtherChannels() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceEncoder.axes(bytes, RESOLUTION).close();
+
+        new TraceDecoder(new ByteArrayInputStream(bytes.toByteArray())).read(new long[1], new double[1], 0, 1);
+    }
+
+    /**
+     * Nanosecond timestamps of a jittery 200 Hz sensor, with gaps and a repeated timestamp now and then.
+     */
+    private static long[] randomTimestamps(Random random, int count) {
+        long[] timestamps = new long[count];
+        long timestamp = 123456789012345L;
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(1000);
+            if (kind == 0) timestamp += 60000000000L;
+            else if (kind > 1) timestamp += 5000000 + random.nextInt(200000) - 100000;
+            timestamps[i] = timestamp;
+        }
+        return timestamps;
+    }
+}
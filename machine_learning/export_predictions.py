@@ -0,0 +1,44 @@
+import os
+import sys
+
+os.environ['TF_CPP_MIN_LOG_LEVEL'] = '2'
+
+import numpy as np
+import tensorflow as tf
+
+tf.logging.set_verbosity(tf.logging.ERROR)
+
+# Writes the SavedModel's predictions for a data set, one "class,p0,p1,..." row per sample,
+# for the parity check of the on-device classifier (tools: dnn-parity --expected). Written as
+# reference_predictions.csv, they replace the float64 forward pass's predictions checked in there.
+
+TEST_DATA = "test.csv"
+EXPORT_DIR = os.getcwd() + "/trained"
+PREDICTIONS = "test_predictions.csv"
+
+
+def main():
+    data_file = sys.argv[1] if len(sys.argv) > 1 else TEST_DATA
+    out_file = sys.argv[2] if len(sys.argv) > 2 else PREDICTIONS
+
+    data_set = tf.contrib.learn.datasets.base.load_csv_with_header(
+        filename=data_file,
+        target_dtype=np.int,
+        features_dtype=np.float32)
+
+    # the model was exported with a tf.Example parsing input, the features under ""
+    predict = tf.contrib.predictor.from_saved_model(EXPORT_DIR)
+    examples = [tf.train.Example(features=tf.train.Features(feature={
+        "": tf.train.Feature(float_list=tf.train.FloatList(value=row))})).SerializeToString()
+                for row in data_set.data]
+    scores = predict({"inputs": examples})["scores"]
+
+    with open(out_file, "w") as out:
+        for probabilities in scores:
+            out.write("%d,%s\n" % (int(np.argmax(probabilities)),
+                                   ",".join(repr(float(p)) for p in probabilities)))
+    print("Wrote {} predictions to {}".format(len(scores), out_file))
+
+
+if __name__ == "__main__":
+    main()
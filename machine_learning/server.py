@@ -4,6 +4,7 @@ import sys
 import time
 import threading
 import json
+import struct
 
 os.environ['TF_CPP_MIN_LOG_LEVEL'] = '2'
 
@@ -27,6 +28,16 @@ SERVER_PORT = 4011
 
 server_done = False
 
+# binary frames, see ClassificationFrames in the core module
+FRAME_MAGIC = 0xFA11
+FRAME_VERSION = 1
+FRAME_HELLO = 0
+FRAME_REQUEST = 1
+FRAME_REPLY = 2
+HELLO_FRAME = struct.Struct('>HBB')
+REQUEST_FRAME = struct.Struct('>HBBq4d')
+REPLY_FRAME = struct.Struct('>HBBqif')
+
 
 def label_classify(label):
     if label == 0:
@@ -90,6 +101,132 @@ def classify(classifier, features):
     return int(predict[0])
 
 
+def classify_with_confidence(classifier, features):
+    def input_func(feat=features):
+        return np.array(
+            [[f for f in feat]], dtype=np.float32)
+
+    probabilities = list(classifier.predict_proba(input_fn=input_func))[0]
+    classification = int(np.argmax(probabilities))
+    return classification, float(probabilities[classification])
+
+
+REQUIRED_FIELDS = ('impact_duration', 'impact_violence',
+                   'impact_average', 'post_impact_average')
+
+# TensorFlow estimators are not safe to call from many connections at once
+classifier_lock = threading.Lock()
+
+
+def _decode_requests(buffer, decoder=json.JSONDecoder()):
+    """Splits complete JSON objects off the front of the buffer.
+
+    Returns the decoded requests and the undecoded rest of the buffer. Requests
+    may be newline-delimited or, as sent by older clients, unterminated.
+    """
+    requests = []
+    while True:
+        buffer = buffer.lstrip()
+        if not buffer:
+            return requests, buffer
+        try:
+            request, end = decoder.raw_decode(buffer)
+        except json.decoder.JSONDecodeError:
+            # either an incomplete object, wait for more data, or garbage
+            if '\n' in buffer:
+                raise
+            return requests, buffer
+        requests.append(request)
+        buffer = buffer[end:]
+
+
+def _handle_request(classifier, j):
+    # if json is the wrong format
+    for field in REQUIRED_FIELDS:
+        if field not in j:
+            print("error: no %s" % field)
+            return None
+
+    with classifier_lock:
+        classification = classify(classifier, [j[field] for field in REQUIRED_FIELDS])
+    print("classification: %d = %s" % \
+          (classification, label_classify(classification)))
+
+    # tagged requests may be pipelined, the client matches replies by id
+    if 'id' in j:
+        return b'%d,%d\n' % (j['id'], classification)
+    return b'%d\n' % classification
+
+
+def _recv_exactly(client_sock, size, data=b''):
+    while len(data) < size:
+        chunk = client_sock.recv(size - len(data))
+        if not chunk:
+            return None
+        data += chunk
+    return data
+
+
+def _serve_binary(classifier, client_sock, data):
+    hello = _recv_exactly(client_sock, HELLO_FRAME.size, data)
+    if hello is None:
+        return
+    magic, version, frame_type = HELLO_FRAME.unpack(hello[:HELLO_FRAME.size])
+    if magic != FRAME_MAGIC or frame_type != FRAME_HELLO:
+        print("Not a classification hello, connection rejected")
+        return
+    # answer with the highest version both sides speak
+    client_sock.sendall(HELLO_FRAME.pack(FRAME_MAGIC, min(version, FRAME_VERSION), FRAME_HELLO))
+
+    data = hello[HELLO_FRAME.size:]
+    while True:
+        frame = _recv_exactly(client_sock, REQUEST_FRAME.size, data)
+        if frame is None:
+            return
+        data = frame[REQUEST_FRAME.size:]
+        magic, version, frame_type, request_id, *features = REQUEST_FRAME.unpack(frame[:REQUEST_FRAME.size])
+        if magic != FRAME_MAGIC or frame_type != FRAME_REQUEST:
+            print("Malformed request frame, connection rejected")
+            return
+
+        with classifier_lock:
+            classification, confidence = classify_with_confidence(classifier, features)
+        print("classification: %d = %s (%.3f)" % \
+              (classification, label_classify(classification), confidence))
+        client_sock.sendall(REPLY_FRAME.pack(FRAME_MAGIC, FRAME_VERSION, FRAME_REPLY,
+                                             request_id, classification, confidence))
+
+
+def _connection_thread(classifier, client_sock, address):
+    buffer = ''
+    try:
+        while True:
+            data = client_sock.recv(4096)
+            if not data:
+                break
+            # binary clients open with a hello, JSON never starts with the magic
+            if not buffer and data[0] == FRAME_MAGIC >> 8:
+                _serve_binary(classifier, client_sock, data)
+                break
+            try:
+                requests, buffer = _decode_requests(buffer + data.decode())
+            except (json.decoder.JSONDecodeError, UnicodeDecodeError):
+                print("JSON ERROR with decoding, connection rejected")
+                print("DEBUG: %s" % str(data))
+                break
+
+            for j in requests:
+                print("Received {}".format(str(j)))
+                reply = _handle_request(classifier, j)
+                if reply is not None:
+                    client_sock.sendall(reply)
+    except OSError as e:
+        print("Connection error: {}".format(e))
+    finally:
+        print("Closed connection from {}:{}".format(address[0], address[1]))
+        client_sock.close()
+
+
 def _server_thread():
     server_sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
     server_sock.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
@@ -111,42 +248,12 @@ def _server_thread():
         client_sock, address = server_sock.accept()
         print("Accepted connection from {}:{}!".format(
             address[0], address[1]))
+        client_sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
 
-        req = client_sock.recv(4096)
-
-        try:
-            j = json.loads(req.decode())
-        except json.decoder.JSONDecodeError:
-            print("JSON ERROR with decoding, connection rejected")
-            print("DEBUG: %s" % str(req))
-            client_sock.close()
-            continue
-
-        print("Received {}".format(str(j)))
-
-        # if json is the wrong format
-        if 'impact_duration' not in j:
-            print("error: no impact_duration")
-            continue
-        if 'impact_violence' not in j:
-            print("error: no impact_violence")
-            continue
-        if 'impact_average' not in j:
-            print("error: no impact_average")
-            continue
-        if 'post_impact_average' not in j:
-            print("error: no post_impact_average")
-            continue
-
-        classification = classify(classifier,
-                                  [j['impact_duration'], j['impact_violence'],
-                                   j['impact_average'], j['post_impact_average']])
-
-        client_sock.send(b'%d\n' % classification)
-        print("classification: %d = %s" % \
-              (classification, label_classify(classification)))
-
-        client_sock.close()
+        # connections stay open, one thread serves the requests of each
+        threading.Thread(target=_connection_thread,
+                         args=(classifier, client_sock, address),
+                         daemon=True).start()
 
     print("Server turning off... if you want to exit: CTRL-C")
     server_end = True
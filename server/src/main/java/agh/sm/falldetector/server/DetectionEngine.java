@@ -0,0 +1,204 @@
+package agh.sm.falldetector.server;
+
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.PotentialFallDetector;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hosts one {@link PotentialFallDetector} per device stream. Devices are sharded over worker
+ * threads by device ID, so every detector is only ever touched by its own worker and needs no
+ * locking. Batches are shared between the workers that have frames in them and recycled once
+ * the last of those workers is done.
+ */
+public class DetectionEngine {
+
+    private static final SensorFrameBatch POISON = new SensorFrameBatch(0, 0);
+
+    private final DetectorConfig config;
+    private final DetectionListener listener;
+    private final Worker[] workers;
+    private final BlockingQueue<SensorFrameBatch> freeBatches;
+    private final int batchCapacity;
+
+    /**
+     * @param shards        number of worker threads
+     * @param queueCapacity batches each worker may have queued before {@link #submit} blocks
+     * @param batchCapacity frames per pooled batch
+     */
+    public DetectionEngine(DetectorConfig config, int shards, int queueCapacity, int batchCapacity,
+                           DetectionListener listener) {
+        this.config = config;
+        this.listener = listener;
+        this.batchCapacity = batchCapacity;
+        this.workers = new Worker[shards];
+        for (int i = 0; i < shards; i++) workers[i] = new Worker(i, queueCapacity);
+        this.freeBatches = new ArrayBlockingQueue<>(shards * (queueCapacity + 1));
+    }
+
+    public void start() {
+        for (Worker worker : workers) worker.start();
+    }
+
+    /**
+     * Stops the workers after they finish the batches already queued.
+     */
+    public void shutdown() throws InterruptedException {
+        for (Worker worker : workers) worker.queue.put(POISON);
+        for (Worker worker : workers) worker.join();
+    }
+
+    /**
+     * @return an empty batch, recycled if one is available
+     */
+    public SensorFrameBatch acquireBatch() {
+        SensorFrameBatch batch = freeBatches.poll();
+        return batch != null ? batch : new SensorFrameBatch(batchCapacity, workers.length);
+    }
+
+    /**
+     * Hands the batch to the workers owning its devices, blocking while a worker queue is full.
+     * The batch must not be touched by the caller afterwards.
+     */
+    public void submit(SensorFrameBatch batch) throws InterruptedException {
+        int shards = workers.length;
+        boolean[] used = batch.usedShards;
+        Arrays.fill(used, false);
+        int pending = 0;
+        for (int i = 0; i < batch.size; i++) {
+            int shard = shardOf(batch.deviceIds[i], shards);
+            batch.shards[i] = shard;
+            if (!used[shard]) {
+                used[shard] = true;
+                pending++;
+            }
+        }
+        if (pending == 0) {
+            recycle(batch);
+            return;
+        }
+        synchronized (batch) {
+            batch.pendingShards = pending;
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            if (used[shard]) workers[shard].queue.put(batch);
+        }
+    }
+
+    public int getDeviceCount() {
+        int devices = 0;
+        for (Worker worker : workers) devices += worker.deviceCount;
+        return devices;
+    }
+
+    public long getFramesProcessed() {
+        long frames = 0;
+        for (Worker worker : workers) frames += worker.framesProcessed.get();
+        return frames;
+    }
+
+    public long getEventsDetected() {
+        long events = 0;
+        for (Worker worker : workers) events += worker.eventsDetected.get();
+        return events;
+    }
+
+    /**
+     * Heap held by one device stream, dominated by the detector window: timestamp, value,
+     * prefix sum and prefix count for every reading it can hold.
+     */
+    public long estimatedBytesPerDevice() {
+        return config.getWindowCapacity() * (8L + 8L + 8L + 4L) + 256;
+    }
+
+    /**
+     * Shards on the high bits of a hash unrelated to {@link LongObjectMap#mix}; sharding on the
+     * map's own hash would leave each worker's map with keys agreeing in their low bits, crowding
+     * them into a fraction of its buckets.
+     */
+    static int shardOf(long deviceId, int shards) {
+        long h = deviceId ^ (deviceId >>> 33);
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        // maps the high 32 bits onto [0, shards) without a division
+        return (int) (((h >>> 32) * shards) >>> 32);
+    }
+
+    private void recycle(SensorFrameBatch batch) {
+        batch.clear();
+        freeBatches.offer(batch);
+    }
+
+    private void release(SensorFrameBatch batch) {
+        boolean last;
+        synchronized (batch) {
+            last = --batch.pendingShards == 0;
+        }
+        if (last) recycle(batch);
+    }
+
+    private class Worker extends Thread {
+        static final int INITIAL_DEVICES = 1024;
+
+        final BlockingQueue<SensorFrameBatch> queue;
+        final LongObjectMap<PotentialFallDetector> detectors = new LongObjectMap<>(INITIAL_DEVICES);
+        final AtomicLong framesProcessed = new AtomicLong();
+        final AtomicLong eventsDetected = new AtomicLong();
+        final int shard;
+        volatile int deviceCount;
+
+        Worker(int shard, int queueCapacity) {
+            super("DetectionWorker-" + shard);
+            this.shard = shard;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    SensorFrameBatch batch = queue.take();
+                    if (batch == POISON) return;
+                    process(batch);
+                    release(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void process(SensorFrameBatch batch) {
+            long frames = 0;
+            long[] deviceIds = batch.deviceIds;
+            long[] timestamps = batch.timestamps;
+            float[] xyz = batch.xyz;
+            int[] shards = batch.shards;
+            for (int i = 0; i < batch.size; i++) {
+                if (shards[i] != shard) continue;
+                long deviceId = deviceIds[i];
+                PotentialFallDetector detector = detectors.get(deviceId);
+                if (detector == null) {
+                    detector = new PotentialFallDetector(config, null);
+                    detectors.put(deviceId, detector);
+                    deviceCount = detectors.size();
+                }
+                float x = xyz[i * 3];
+                float y = xyz[i * 3 + 1];
+                float z = xyz[i * 3 + 2];
+                ExtractedAccelerometerData features = detector.run(timestamps[i], Math.sqrt(x * x + y * y + z * z));
+                if (features != null) {
+                    eventsDetected.incrementAndGet();
+                    if (listener != null) listener.onPotentialFall(deviceId, features);
+                }
+                frames++;
+            }
+            framesProcessed.addAndGet(frames);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package agh.sm.falldetector.server;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+/**
+ * Receives potential falls found by {@link DetectionEngine}. Called on the worker thread owning
+ * the device, so implementations must be thread-safe and should return quickly.
+ */
+public interface DetectionListener {
+
+    void onPotentialFall(long deviceId, ExtractedAccelerometerData features);
+}
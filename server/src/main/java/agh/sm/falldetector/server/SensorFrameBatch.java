@@ -0,0 +1,58 @@
+package agh.sm.falldetector.server;
+
+/**
+ * A batch of raw accelerometer frames from any number of devices, kept in parallel primitive
+ * arrays. Frames of one device must appear in timestamp order, within and across batches.
+ * Batches are taken from {@link DetectionEngine#acquireBatch()} and handed back through
+ * {@link DetectionEngine#submit(SensorFrameBatch)}; the engine recycles them once processed.
+ */
+public final class SensorFrameBatch {
+
+    final long[] deviceIds;
+    final long[] timestamps;
+    final float[] xyz;
+    final int[] shards;
+    // scratch of submit, which workers have frames in the batch
+    final boolean[] usedShards;
+    int size;
+    int pendingShards;
+
+    SensorFrameBatch(int capacity, int shardCount) {
+        this.deviceIds = new long[capacity];
+        this.timestamps = new long[capacity];
+        this.xyz = new float[capacity * 3];
+        this.shards = new int[capacity];
+        this.usedShards = new boolean[shardCount];
+    }
+
+    /**
+     * @param timestamp frame time in nanoseconds
+     * @return false if the batch is full
+     */
+    public boolean add(long deviceId, long timestamp, float x, float y, float z) {
+        if (size == deviceIds.length) return false;
+        deviceIds[size] = deviceId;
+        timestamps[size] = timestamp;
+        xyz[size * 3] = x;
+        xyz[size * 3 + 1] = y;
+        xyz[size * 3 + 2] = z;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return deviceIds.length;
+    }
+
+    public boolean isFull() {
+        return size == deviceIds.length;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,92 @@
+package agh.sm.falldetector.server;
+
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.util.Random;
+
+import static agh.sm.falldetector.core.DetectorConfig.GRAVITY_EARTH;
+
+/**
+ * Drives a {@link DetectionEngine} with a synthetic fleet of devices streaming as fast as the
+ * engine accepts them, and reports sustained frame rate and per-device memory.
+ * <p>
+ * Usage: {@code SimulatedFleet [--devices 10000] [--rate 200] [--seconds 30] [--shards N] [--batch 4096]}
+ */
+public class SimulatedFleet {
+
+    public static void main(String[] args) throws Exception {
+        int devices = 10000;
+        int rateHz = 200;
+        int seconds = 30;
+        int shards = Runtime.getRuntime().availableProcessors();
+        int batchCapacity = 4096;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--devices":
+                    devices = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    rateHz = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--shards":
+                    shards = Integer.parseInt(args[++i]);
+                    break;
+                case "--batch":
+                    batchCapacity = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        DetectorConfig config = DetectorConfig.builder().maxSampleRateHz(rateHz).build();
+        DetectionEngine engine = new DetectionEngine(config, shards, 16, batchCapacity, new DetectionListener() {
+            @Override
+            public void onPotentialFall(long deviceId, ExtractedAccelerometerData features) {
+            }
+        });
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        engine.start();
+        long periodNs = 1000000000L / rateHz;
+        long steps = (long) seconds * rateHz;
+        Random random = new Random(7);
+        long start = System.nanoTime();
+        SensorFrameBatch batch = engine.acquireBatch();
+        for (long step = 0; step < steps; step++) {
+            long timestamp = step * periodNs;
+            // every device falls once every 20 s, devices staggered by ID
+            for (int device = 0; device < devices; device++) {
+                long phase = (step + device * 37L) % (20L * rateHz);
+                float magnitude = phase < rateHz / 10
+                        ? (float) (4.0 * GRAVITY_EARTH)
+                        : (float) (GRAVITY_EARTH + 0.3 * random.nextGaussian());
+                batch.add(device, timestamp, 0f, 0f, magnitude);
+                if (batch.isFull()) {
+                    engine.submit(batch);
+                    batch = engine.acquireBatch();
+                }
+            }
+        }
+        engine.submit(batch);
+        engine.shutdown();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        long frames = engine.getFramesProcessed();
+        System.out.printf("%d devices x %d Hz x %d s on %d shards%n", devices, rateHz, seconds, shards);
+        System.out.printf("%d frames in %.2f s: %.2f M frames/s (%.1fx real time for the fleet)%n",
+                frames, elapsed, frames / elapsed / 1e6, seconds / elapsed);
+        System.out.printf("%d events%n", engine.getEventsDetected());
+        System.out.printf("memory per device: ~%d bytes estimated, %d bytes measured%n",
+                engine.estimatedBytesPerDevice(), (heapAfter - heapBefore) / Math.max(1, engine.getDeviceCount()));
+    }
+}
@@ -0,0 +1,316 @@
+package agh.sm.falldetector.server.classification;
+
+import agh.sm.falldetector.core.LatencyHistogram;
+import agh.sm.falldetector.core.classification.ClassificationFrames;
+import agh.sm.falldetector.core.classification.DnnClassifier;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selector thread serving a share of the connections. Requests decoded in one selector round,
+ * from any of its connections, are classified as one micro-batch and answered together, so the
+ * batch grows with the load while a lone request is answered without waiting.
+ */
+class ClassificationLoop extends Thread {
+
+    private static final int MAX_INPUT_BUFFER = 64 * 1024;
+    private static final int JSON_REPLY_SIZE = 48;
+
+    private static final byte UNTAGGED = 0;
+    private static final byte TAGGED = 1;
+    private static final byte FRAME = 2;
+
+    private final Selector selector;
+    private final DnnClassifier classifier;
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    private final JsonRequestParser parser = new JsonRequestParser();
+    private final double[] frameFeatures = new double[DnnClassifier.FEATURES];
+    private volatile boolean running = true;
+
+    // the micro-batch, one row per request
+    private final int maxBatch;
+    private final ClientConnection[] batchConnections;
+    private final long[] batchRequestIds;
+    private final byte[] batchKinds;
+    private final long[] batchReceivedNs;
+    private final float[] batchFeatures;
+    private final int[] batchClasses;
+    private final float[] batchConfidences;
+    private int batchSize;
+    private final List<ClientConnection> toFlush = new ArrayList<>();
+
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong batches = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong connectionsAccepted = new AtomicLong();
+    final AtomicInteger connectionsOpen = new AtomicInteger();
+
+    ClassificationLoop(int index, DnnClassifier classifier, int maxBatch) throws IOException {
+        super("ClassificationLoop-" + index);
+        this.selector = Selector.open();
+        this.classifier = classifier;
+        this.maxBatch = maxBatch;
+        this.batchConnections = new ClientConnection[maxBatch];
+        this.batchRequestIds = new long[maxBatch];
+        this.batchKinds = new byte[maxBatch];
+        this.batchReceivedNs = new long[maxBatch];
+        this.batchFeatures = new float[maxBatch * DnnClassifier.FEATURES];
+        this.batchClasses = new int[maxBatch];
+        this.batchConfidences = new float[maxBatch];
+    }
+
+    /**
+     * Hands an accepted connection over to this loop, called from the acceptor thread.
+     */
+    void register(SocketChannel channel) {
+        accepted.add(channel);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerAccepted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ClientConnection connection = (ClientConnection) key.attachment();
+                    if (!key.isValid()) continue;
+                    if (key.isWritable()) flush(connection);
+                    if (key.isValid() && key.isReadable()) read(connection);
+                }
+                classifyBatch();
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            System.err.printf("%s stopped, closing its %d connections: %s%n", getName(), connectionsOpen.get(), e);
+        } finally {
+            for (SelectionKey key : selector.keys()) close((ClientConnection) key.attachment());
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void registerAccepted() {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new ClientConnection(channel, key));
+                connectionsAccepted.incrementAndGet();
+                connectionsOpen.incrementAndGet();
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void read(ClientConnection connection) {
+        int read;
+        try {
+            read = connection.channel.read(connection.in);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        if (read < 0) {
+            close(connection);
+            return;
+        }
+        long receivedNs = System.nanoTime();
+        ByteBuffer in = connection.in;
+        in.flip();
+        boolean ok = decode(connection, receivedNs);
+        in.compact();
+        if (!ok) {
+            errors.incrementAndGet();
+            close(connection);
+        } else if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_INPUT_BUFFER) {
+                errors.incrementAndGet();
+                close(connection);
+                return;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            grown.put(in);
+            connection.in = grown;
+        }
+    }
+
+    /**
+     * Queues every complete request in the read buffer.
+     *
+     * @return false if the client broke the protocol
+     */
+    private boolean decode(ClientConnection connection, long receivedNs) {
+        ByteBuffer in = connection.in;
+        if (connection.protocol == ClientConnection.UNKNOWN && in.hasRemaining()) {
+            boolean binary = in.get(in.position()) == (byte) (ClassificationFrames.MAGIC >> 8);
+            connection.protocol = binary ? ClientConnection.BINARY : ClientConnection.JSON;
+        }
+        try {
+            if (connection.protocol == ClientConnection.BINARY) {
+                if (!connection.helloReceived) {
+                    if (in.remaining() < ClassificationFrames.HELLO_SIZE) return true;
+                    byte version = ClassificationFrames.getHello(in);
+                    ByteBuffer out = connection.reserve(ClassificationFrames.HELLO_SIZE);
+                    if (out == null) return false;
+                    ClassificationFrames.putHello(out, (byte) Math.min(version, ClassificationFrames.VERSION));
+                    connection.helloReceived = true;
+                    scheduleFlush(connection);
+                }
+                while (in.remaining() >= ClassificationFrames.REQUEST_SIZE) {
+                    long requestId = ClassificationFrames.getRequest(in, frameFeatures);
+                    enqueue(connection, FRAME, requestId, frameFeatures, receivedNs);
+                }
+                return true;
+            }
+            while (true) {
+                int status = parser.parse(in);
+                if (status == JsonRequestParser.INCOMPLETE) return true;
+                if (status == JsonRequestParser.MALFORMED) return false;
+                if (status == JsonRequestParser.MISSING_FIELD) {
+                    // as server.py, a request lacking a feature gets no reply
+                    errors.incrementAndGet();
+                    continue;
+                }
+                enqueue(connection, parser.tagged ? TAGGED : UNTAGGED, parser.requestId, parser.features, receivedNs);
+            }
+        } catch (ProtocolException e) {
+            return false;
+        }
+    }
+
+    private void enqueue(ClientConnection connection, byte kind, long requestId, double[] features, long receivedNs) {
+        int row = batchSize++;
+        batchConnections[row] = connection;
+        batchKinds[row] = kind;
+        batchRequestIds[row] = requestId;
+        batchReceivedNs[row] = receivedNs;
+        for (int f = 0; f < DnnClassifier.FEATURES; f++) {
+            batchFeatures[row * DnnClassifier.FEATURES + f] = (float) features[f];
+        }
+        if (batchSize == maxBatch) classifyBatch();
+    }
+
+    private void classifyBatch() {
+        int rows = batchSize;
+        if (rows > 0) {
+            classifier.classifyBatch(batchFeatures, rows, batchClasses, batchConfidences);
+            for (int row = 0; row < rows; row++) {
+                ClientConnection connection = batchConnections[row];
+                if (connection.closed) continue;
+                if (!writeReply(connection, batchKinds[row], batchRequestIds[row], batchClasses[row],
+                        batchConfidences[row])) {
+                    // still not reading its replies past the limit
+                    errors.incrementAndGet();
+                    close(connection);
+                    continue;
+                }
+                scheduleFlush(connection);
+            }
+        }
+        for (int i = 0; i < toFlush.size(); i++) flush(toFlush.get(i));
+        toFlush.clear();
+
+        if (rows > 0) {
+            long answeredNs = System.nanoTime();
+            for (int row = 0; row < rows; row++) {
+                latency.record(answeredNs - batchReceivedNs[row]);
+                batchConnections[row] = null;
+            }
+            requests.addAndGet(rows);
+            batches.incrementAndGet();
+            batchSize = 0;
+        }
+    }
+
+    /**
+     * @return false if the reply buffer is full
+     */
+    private static boolean writeReply(ClientConnection connection, byte kind, long requestId, int classification,
+                                      float confidence) {
+        ByteBuffer out = connection.reserve(kind == FRAME ? ClassificationFrames.REPLY_SIZE : JSON_REPLY_SIZE);
+        if (out == null) return false;
+        if (kind == FRAME) {
+            ClassificationFrames.putReply(out, requestId, classification, confidence);
+        } else {
+            String reply = kind == TAGGED ? requestId + "," + classification + "\n" : classification + "\n";
+            out.put(reply.getBytes(StandardCharsets.US_ASCII));
+        }
+        return true;
+    }
+
+    private void scheduleFlush(ClientConnection connection) {
+        if (!connection.flushPending) {
+            connection.flushPending = true;
+            toFlush.add(connection);
+        }
+    }
+
+    private void flush(ClientConnection connection) {
+        connection.flushPending = false;
+        if (connection.closed) return;
+        ByteBuffer out = connection.out;
+        out.flip();
+        try {
+            connection.channel.write(out);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        } finally {
+            out.compact();
+        }
+        // stop reading above the high water mark until the socket has drained the replies
+        if (out.position() > ClientConnection.OUTPUT_HIGH_WATER) {
+            connection.readPaused = true;
+        } else if (out.position() == 0) {
+            connection.readPaused = false;
+        }
+        int ops = connection.readPaused ? 0 : SelectionKey.OP_READ;
+        // wait for the socket to drain before writing the rest
+        if (out.position() > 0) ops |= SelectionKey.OP_WRITE;
+        if (connection.key.interestOps() != ops) connection.key.interestOps(ops);
+    }
+
+    private void close(ClientConnection connection) {
+        if (connection.closed) return;
+        connection.closed = true;
+        connectionsOpen.decrementAndGet();
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
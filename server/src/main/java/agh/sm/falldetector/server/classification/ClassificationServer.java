@@ -0,0 +1,153 @@
+package agh.sm.falldetector.server.classification;
+
+import agh.sm.falldetector.core.LatencyHistogram;
+import agh.sm.falldetector.core.classification.DnnClassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Classification server speaking the port-4011 protocol of {@code machine_learning/server.py}:
+ * newline-delimited or unterminated JSON requests, answered with {@code id,class} or just the
+ * class, and negotiated binary frames. The exported model runs in-process on
+ * {@link DnnClassifier}.
+ * <p>
+ * Connections are spread over selector loops, each classifying the requests of a selector round
+ * as one micro-batch. Throughput, batching and server-side latency are reported periodically.
+ * <p>
+ * Usage: {@code ClassificationServer [--port 4011] [--model <variables prefix>] [--loops N] [--max-batch 256] [--report-seconds 10]}
+ */
+public class ClassificationServer {
+
+    private final ServerSocketChannel serverChannel;
+    private final ClassificationLoop[] loops;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    /**
+     * @param loops    selector threads, each with its own copy of the model
+     * @param maxBatch requests classified together at most
+     */
+    public ClassificationServer(int port, File model, int loops, int maxBatch) throws IOException {
+        this.loops = new ClassificationLoop[loops];
+        for (int i = 0; i < loops; i++) this.loops[i] = new ClassificationLoop(i, DnnClassifier.load(model), maxBatch);
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port));
+        this.acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "ClassificationAcceptor");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 4011;
+        File model = new File("machine_learning/trained/variables/variables");
+        int loops = Runtime.getRuntime().availableProcessors();
+        int maxBatch = 256;
+        int reportSeconds = 10;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--model":
+                    model = new File(args[++i]);
+                    break;
+                case "--loops":
+                    loops = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-batch":
+                    maxBatch = Integer.parseInt(args[++i]);
+                    break;
+                case "--report-seconds":
+                    reportSeconds = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        final ClassificationServer server = new ClassificationServer(port, model, loops, maxBatch);
+        server.start();
+        System.err.printf("Classification server listening on port %d, %d loops, model %s%n", port, loops, model);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.shutdown();
+                System.err.println("total: " + server.report(0, 0));
+            }
+        });
+
+        long lastRequests = 0;
+        long lastNs = System.nanoTime();
+        while (true) {
+            Thread.sleep(reportSeconds * 1000L);
+            long now = System.nanoTime();
+            long requests = server.getRequestCount();
+            System.err.println(server.report(requests - lastRequests, now - lastNs));
+            lastRequests = requests;
+            lastNs = now;
+        }
+    }
+
+    public void start() {
+        for (ClassificationLoop loop : loops) loop.start();
+        acceptor.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (ClassificationLoop loop : loops) loop.shutdown();
+    }
+
+    public long getRequestCount() {
+        long requests = 0;
+        for (ClassificationLoop loop : loops) requests += loop.requests.get();
+        return requests;
+    }
+
+    /**
+     * @return connections, throughput over the interval, batching, errors and the server-side
+     * latency from reading a request to writing its reply, since start
+     */
+    public String report(long intervalRequests, long intervalNs) {
+        long requests = 0, batches = 0, errors = 0, accepted = 0;
+        int open = 0;
+        LatencyHistogram latency = new LatencyHistogram();
+        for (ClassificationLoop loop : loops) {
+            requests += loop.requests.get();
+            batches += loop.batches.get();
+            errors += loop.errors.get();
+            accepted += loop.connectionsAccepted.get();
+            open += loop.connectionsOpen.get();
+            latency.add(loop.latency);
+        }
+        String throughput = intervalNs > 0 ? String.format("%.0f req/s, ", intervalRequests / (intervalNs / 1e9)) : "";
+        return String.format("%sconnections %d open / %d accepted, %d requests in %d batches (mean %.1f), %d errors, latency %s",
+                throughput, open, accepted, requests, batches, batches == 0 ? 0.0 : requests / (double) batches,
+                errors, latency.summaryMs());
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (running) System.err.println("Accept failed: " + e);
+            }
+        }
+    }
+}
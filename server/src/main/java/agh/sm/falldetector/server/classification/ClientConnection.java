@@ -0,0 +1,57 @@
+package agh.sm.falldetector.server.classification;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of one client connection, only touched by the loop that owns it.
+ */
+class ClientConnection {
+
+    static final int UNKNOWN = 0;
+    static final int JSON = 1;
+    static final int BINARY = 2;
+
+    private static final int BUFFER_SIZE = 4096;
+    // replies a client that stopped reading can pile up; reading from it pauses above the high
+    // water mark, so only the requests already read can add to it, and it is closed past the limit
+    static final int OUTPUT_HIGH_WATER = 64 * 1024;
+    static final int MAX_OUTPUT_BUFFER = 1024 * 1024;
+
+    final SocketChannel channel;
+    final SelectionKey key;
+    // filled by reads, flipped while decoding
+    ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    // replies waiting for the socket, in write mode
+    ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    // told by the first byte, binary clients open with a hello
+    int protocol = UNKNOWN;
+    boolean helloReceived;
+    boolean closed;
+    // queued for a flush after the current batch
+    boolean flushPending;
+    // not reading until the replies have drained
+    boolean readPaused;
+
+    ClientConnection(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * @return the reply buffer with room for another {@code bytes}, null if it would grow past
+     * {@link #MAX_OUTPUT_BUFFER}
+     */
+    ByteBuffer reserve(int bytes) {
+        if (out.remaining() < bytes) {
+            if (out.position() + bytes > MAX_OUTPUT_BUFFER) return null;
+            ByteBuffer grown = ByteBuffer.allocate(
+                    Math.min(Math.max(out.capacity() * 2, out.position() + bytes), MAX_OUTPUT_BUFFER));
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+        return out;
+    }
+}
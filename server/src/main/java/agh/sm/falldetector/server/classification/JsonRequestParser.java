@@ -0,0 +1,168 @@
+package agh.sm.falldetector.server.classification;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the flat JSON classification requests of the port-4011 protocol straight from a
+ * connection's read buffer, e.g. {@code {"id": 7, "impact_duration": 702, ...}}. Objects may be
+ * newline-delimited or unterminated, as sent by clients predating request ids.
+ */
+class JsonRequestParser {
+
+    static final int COMPLETE = 0;
+    static final int INCOMPLETE = 1;
+    static final int MALFORMED = 2;
+    static final int MISSING_FIELD = 3;
+
+    private static final byte[] ID = key("id");
+    private static final byte[][] FEATURE_KEYS = {
+            key("impact_duration"), key("impact_violence"), key("impact_average"), key("post_impact_average")
+    };
+
+    // the fields of the request parsed last
+    boolean tagged;
+    long requestId;
+    final double[] features = new double[FEATURE_KEYS.length];
+
+    private final byte[] token = new byte[64];
+
+    /**
+     * Parses the request at the buffer's position. A complete object, also one missing a field,
+     * is consumed; an incomplete one is left in the buffer for the next read.
+     */
+    int parse(ByteBuffer in) {
+        int start = skipWhitespace(in, in.position());
+        in.position(start);
+        if (start == in.limit()) return INCOMPLETE;
+        if (in.get(start) != '{') return MALFORMED;
+        int end = findObjectEnd(in, start);
+        if (end < 0) return INCOMPLETE;
+        in.position(end + 1);
+
+        tagged = false;
+        int found = 0;
+        int p = start + 1;
+        while (true) {
+            p = skipWhitespace(in, p);
+            if (in.get(p) == '}') break;
+            if (in.get(p) == ',') {
+                p++;
+                continue;
+            }
+            if (in.get(p) != '"') return MALFORMED;
+            int keyStart = p + 1;
+            int keyEnd = skipString(in, p);
+            if (keyEnd < 0) return MALFORMED;
+            p = skipWhitespace(in, keyEnd + 1);
+            if (in.get(p) != ':') return MALFORMED;
+            p = skipWhitespace(in, p + 1);
+
+            int valueEnd = skipValue(in, p, end);
+            if (valueEnd < 0) return MALFORMED;
+            try {
+                if (keyEquals(in, keyStart, keyEnd, ID)) {
+                    requestId = (long) parseNumber(in, p, valueEnd);
+                    tagged = true;
+                } else {
+                    for (int f = 0; f < FEATURE_KEYS.length; f++) {
+                        if (keyEquals(in, keyStart, keyEnd, FEATURE_KEYS[f])) {
+                            features[f] = parseNumber(in, p, valueEnd);
+                            found |= 1 << f;
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return MALFORMED;
+            }
+            p = valueEnd;
+        }
+        return found == (1 << FEATURE_KEYS.length) - 1 ? COMPLETE : MISSING_FIELD;
+    }
+
+    /**
+     * @return index of the brace closing the object at start, -1 if not read yet
+     */
+    private static int findObjectEnd(ByteBuffer in, int start) {
+        int depth = 0;
+        boolean inString = false;
+        for (int p = start; p < in.limit(); p++) {
+            byte b = in.get(p);
+            if (inString) {
+                if (b == '\\') p++;
+                else if (b == '"') inString = false;
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the quote closing the string at p
+     */
+    private static int skipString(ByteBuffer in, int p) {
+        for (p++; p < in.limit(); p++) {
+            byte b = in.get(p);
+            if (b == '\\') p++;
+            else if (b == '"') return p;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index just past the value at p, nested values included
+     */
+    private static int skipValue(ByteBuffer in, int p, int objectEnd) {
+        byte first = in.get(p);
+        if (first == '"') {
+            int close = skipString(in, p);
+            return close < 0 ? -1 : close + 1;
+        }
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            for (int q = p; q < objectEnd; q++) {
+                byte b = in.get(q);
+                if (b == '"') q = skipString(in, q);
+                else if (b == '{' || b == '[') depth++;
+                else if ((b == '}' || b == ']') && --depth == 0) return q + 1;
+                if (q < 0) return -1;
+            }
+            return -1;
+        }
+        int q = p;
+        while (q < objectEnd && in.get(q) != ',' && !isWhitespace(in.get(q))) q++;
+        return q == p ? -1 : q;
+    }
+
+    private double parseNumber(ByteBuffer in, int from, int to) {
+        int length = to - from;
+        if (length > token.length) throw new NumberFormatException("Number too long");
+        for (int i = 0; i < length; i++) token[i] = in.get(from + i);
+        // Python's json writes NaN and Infinity, which parseDouble accepts as well
+        return Double.parseDouble(new String(token, 0, length, StandardCharsets.US_ASCII));
+    }
+
+    private static boolean keyEquals(ByteBuffer in, int from, int to, byte[] key) {
+        if (to - from != key.length) return false;
+        for (int i = 0; i < key.length; i++) if (in.get(from + i) != key[i]) return false;
+        return true;
+    }
+
+    private static int skipWhitespace(ByteBuffer in, int p) {
+        while (p < in.limit() && isWhitespace(in.get(p))) p++;
+        return p;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,246 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.LatencyHistogram;
+import agh.sm.falldetector.core.classification.RemoteClassificationClient;
+import agh.sm.falldetector.core.classification.RemoteClassificationClient.WireFormat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test of a classification endpoint through the client the app uses. Every simulated device
+ * holds its own connection and sends feature vectors drawn from a labelled data set.
+ * <p>
+ * Closed loop: each device waits for its reply, then thinks for an exponentially distributed time
+ * before the next event, so the offered load adapts to the server. Open loop: events arrive as a
+ * Poisson process (or at fixed intervals) whatever the server does, and latency counts from the
+ * intended send time, so a stalling server shows up as queueing instead of fewer samples.
+ * <p>
+ * Usage: {@code ClassificationLoad [--host 127.0.0.1] [--port 4011] [--devices 100] [--mode open|closed]
+ * [--rate 1] [--think-ms 1000] [--arrivals poisson|fixed] [--seconds 30] [--warmup-seconds 5]
+ * [--format json|binary] [--timeout-ms 2000] [--threads 64] [--features machine_learning/test.csv]}
+ * <p>
+ * {@code --rate} is events per second per device in open loop.
+ */
+public class ClassificationLoad {
+
+    private static final double[] REPORTED_QUANTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private volatile boolean recording;
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 4011;
+        int devices = 100;
+        boolean openLoop = true;
+        double ratePerDevice = 1;
+        double thinkMs = 1000;
+        boolean poisson = true;
+        int seconds = 30;
+        int warmupSeconds = 5;
+        WireFormat format = WireFormat.JSON;
+        int timeoutMs = 2000;
+        int threads = 64;
+        File featuresFile = new File("machine_learning/test.csv");
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host":
+                    host = args[++i];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--devices":
+                    devices = Integer.parseInt(args[++i]);
+                    break;
+                case "--mode":
+                    openLoop = parseMode(args[++i]);
+                    break;
+                case "--rate":
+                    ratePerDevice = Double.parseDouble(args[++i]);
+                    break;
+                case "--think-ms":
+                    thinkMs = Double.parseDouble(args[++i]);
+                    break;
+                case "--arrivals":
+                    poisson = "poisson".equals(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup-seconds":
+                    warmupSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--format":
+                    format = WireFormat.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--timeout-ms":
+                    timeoutMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--features":
+                    featuresFile = new File(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        List<ExtractedAccelerometerData> features = readFeatures(featuresFile);
+        RemoteClassificationClient[] clients = new RemoteClassificationClient[devices];
+        for (int d = 0; d < devices; d++) {
+            clients[d] = new RemoteClassificationClient(host, port, format, timeoutMs, timeoutMs);
+        }
+
+        ClassificationLoad load = new ClassificationLoad();
+        long durationNs = TimeUnit.SECONDS.toNanos(warmupSeconds + seconds);
+        long warmupNs = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        if (openLoop) {
+            load.runOpenLoop(clients, features, devices * ratePerDevice, poisson, threads, warmupNs, durationNs);
+        } else {
+            load.runClosedLoop(clients, features, thinkMs, warmupNs, durationNs);
+        }
+        for (RemoteClassificationClient client : clients) client.close();
+
+        System.out.printf("%s loop, %d devices, %s, %d s measured after %d s warm-up%n",
+                openLoop ? "open" : "closed", devices, format, seconds, warmupSeconds);
+        load.printReport(seconds);
+    }
+
+    private void runClosedLoop(final RemoteClassificationClient[] clients, final List<ExtractedAccelerometerData> features,
+                               final double thinkMs, long warmupNs, long durationNs) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long end = start + durationNs;
+        Thread[] devices = new Thread[clients.length];
+        for (int d = 0; d < clients.length; d++) {
+            final int device = d;
+            devices[d] = new Thread("Device-" + d) {
+                @Override
+                public void run() {
+                    Random random = new Random(device);
+                    while (System.nanoTime() < end) {
+                        sleepNanos((long) (exponential(random) * thinkMs * 1e6));
+                        long sent = System.nanoTime();
+                        classify(clients[device], features.get(random.nextInt(features.size())), sent);
+                    }
+                }
+            };
+            devices[d].start();
+        }
+        startRecordingAfter(start + warmupNs);
+        for (Thread device : devices) device.join();
+    }
+
+    private void runOpenLoop(final RemoteClassificationClient[] clients, final List<ExtractedAccelerometerData> features,
+                             double totalRate, boolean poisson, int threads, long warmupNs, long durationNs)
+            throws InterruptedException {
+        ExecutorService senders = Executors.newFixedThreadPool(threads);
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        long end = start + durationNs;
+        double meanGapNs = 1e9 / totalRate;
+        // superposed Poisson arrivals of all devices, each event goes to a random device
+        double next = start;
+        while (next < end) {
+            next += poisson ? exponential(random) * meanGapNs : meanGapNs;
+            final long intended = (long) next;
+            if (!recording && intended >= start + warmupNs) recording = true;
+            sleepNanos(intended - System.nanoTime());
+            final RemoteClassificationClient client = clients[random.nextInt(clients.length)];
+            final ExtractedAccelerometerData event = features.get(random.nextInt(features.size()));
+            senders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    classify(client, event, intended);
+                }
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void classify(RemoteClassificationClient client, ExtractedAccelerometerData event, long sentNs) {
+        try {
+            client.classify(event);
+            if (recording) {
+                latency.record(System.nanoTime() - sentNs);
+                completed.incrementAndGet();
+            }
+        } catch (SocketTimeoutException e) {
+            if (recording) timeouts.incrementAndGet();
+        } catch (IOException e) {
+            if (recording) errors.incrementAndGet();
+        }
+    }
+
+    private void startRecordingAfter(long timeNs) {
+        sleepNanos(timeNs - System.nanoTime());
+        recording = true;
+    }
+
+    private void printReport(int seconds) {
+        System.out.printf("%d completed (%.1f req/s), %d errors, %d timeouts%n",
+                completed.get(), completed.get() / (double) seconds, errors.get(), timeouts.get());
+        System.out.println(latency.summaryMs());
+        System.out.println("percentile,latency_ms");
+        for (double quantile : REPORTED_QUANTILES) {
+            System.out.printf("%s,%.3f%n", 100 * quantile, latency.getValueAtQuantile(quantile) / 1e6);
+        }
+        System.out.printf("100.0,%.3f%n", latency.getMax() / 1e6);
+    }
+
+    private static boolean parseMode(String mode) {
+        switch (mode) {
+            case "open":
+                return true;
+            case "closed":
+                return false;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    private static double exponential(Random random) {
+        return -Math.log(1 - random.nextDouble());
+    }
+
+    private static void sleepNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while ((nanos = deadline - System.nanoTime()) > 0) LockSupport.parkNanos(nanos);
+    }
+
+    /**
+     * Reads the feature columns of a data set in the training CSV format.
+     */
+    static List<ExtractedAccelerometerData> readFeatures(File file) throws IOException {
+        List<ExtractedAccelerometerData> features = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine(); // N,4,FALL,JUMP,WALK header
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length < 4) continue;
+                features.add(new ExtractedAccelerometerData(Double.parseDouble(fields[0]), Double.parseDouble(fields[1]),
+                        Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+            }
+        }
+        if (features.isEmpty()) throw new IOException("No feature rows in " + file);
+        return features;
+    }
+}
@@ -0,0 +1,106 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.classification.DnnClassifier;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the on-device {@link DnnClassifier} against reference predictions on a labelled data set.
+ * <p>
+ * Usage: {@code DnnParity [--model <variables prefix>] [--expected predictions.csv] [--tolerance P] [data.csv]}
+ * <p>
+ * The data set is in the training CSV format (a {@code N,4,...} header, four features and the label
+ * per row), by default {@code machine_learning/test.csv}. The expected predictions have one
+ * {@code class,p0,p1,...} row per data row. {@code machine_learning/export_predictions.py} writes
+ * TensorFlow's; the checked-in {@code reference_predictions.csv} come from a float64 forward pass
+ * instead, so agreeing with them does not show parity with TensorFlow. Prints accuracy, agreement
+ * with the reference predictions and the largest probability difference; exits with 1 if a class
+ * differs or a probability is off by more than the tolerance. The cost of a classification is
+ * measured by {@code DnnClassifierBenchmark} in {@code :benchmarks}.
+ */
+public class DnnParity {
+
+    public static void main(String[] args) throws Exception {
+        File model = new File("machine_learning/trained/variables/variables");
+        File expectedFile = null;
+        double tolerance = 1e-4;
+        File data = new File("machine_learning/test.csv");
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--model":
+                    model = new File(args[++i]);
+                    break;
+                case "--expected":
+                    expectedFile = new File(args[++i]);
+                    break;
+                case "--tolerance":
+                    tolerance = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    data = new File(args[i]);
+            }
+        }
+
+        DnnClassifier classifier = DnnClassifier.load(model);
+        List<float[]> rows = readCsv(data, true);
+        List<float[]> expected = expectedFile != null ? readCsv(expectedFile, false) : null;
+        if (expected != null && expected.size() != rows.size()) {
+            System.err.println(expectedFile + " has " + expected.size() + " rows, " + data + " has " + rows.size());
+            System.exit(1);
+        }
+
+        float[] features = new float[DnnClassifier.FEATURES];
+        float[] probabilities = new float[classifier.getClassCount()];
+        int correct = 0, agreeing = 0;
+        double maxDifference = 0;
+        System.out.println("row,label,class,probabilities");
+        for (int r = 0; r < rows.size(); r++) {
+            float[] row = rows.get(r);
+            System.arraycopy(row, 0, features, 0, DnnClassifier.FEATURES);
+            int label = (int) row[DnnClassifier.FEATURES];
+            int classification = classifier.classify(features, probabilities);
+            if (classification == label) correct++;
+
+            StringBuilder line = new StringBuilder().append(r).append(',').append(label).append(',').append(classification);
+            for (float p : probabilities) line.append(',').append(p);
+            System.out.println(line);
+
+            if (expected != null) {
+                float[] reference = expected.get(r);
+                if ((int) reference[0] == classification) agreeing++;
+                for (int c = 0; c < probabilities.length; c++) {
+                    maxDifference = Math.max(maxDifference, Math.abs(reference[c + 1] - probabilities[c]));
+                }
+            }
+        }
+
+        System.err.printf("%d rows, accuracy %.4f%n", rows.size(), correct / (double) rows.size());
+        if (expected != null) {
+            System.err.printf("agreement with reference predictions %d/%d, max probability difference %.2e%n",
+                    agreeing, rows.size(), maxDifference);
+            if (agreeing != rows.size() || maxDifference > tolerance) System.exit(1);
+        }
+    }
+
+    private static List<float[]> readCsv(File file, boolean header) throws IOException {
+        List<float[]> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            if (header) reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                String[] fields = line.split(",");
+                float[] row = new float[fields.length];
+                for (int i = 0; i < fields.length; i++) row[i] = Float.parseFloat(fields[i].trim());
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,395 @@
+package agh.sm.falldetector.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses {@code timestamp,value} lines straight from a memory-mapped file, with no {@code String}
+ * per line. A file is cut into ranges at line boundaries, so ranges can be parsed in parallel and
+ * files larger than one mapping are handled range by range.
+ * <p>
+ * Lines with exactly one comma, an integer before it and a number after it are delivered; any other
+ * line, such as a header or a feature dump row, is skipped, as are blanks around the fields and
+ * {@code \r} line ends. Numbers of up to 15 significant digits and a power of ten within 22 are
+ * computed directly; both the digits and the power are then exact doubles, so the single multiply or
+ * divide rounds exactly as {@link Double#parseDouble} would. Numbers of up to 18 digits, such as the
+ * 16 and 17 digit {@code Double.toString} output the app dumps, are rounded exactly by the
+ * Eisel-Lemire algorithm from a 128-bit table of powers of five. Only what neither covers, such as
+ * NaN, more digits, subnormals, or the rare product too close to a halfway point to round, goes
+ * through {@link Double#parseDouble}, so every value matches it.
+ */
+class MappedTraceParser {
+
+    // a range is mapped at once, well below the 2 GB a mapping may hold
+    static final long MAX_RANGE_SIZE = 1L << 30;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    // powers of ten beyond these overflow or underflow any 18 digit mantissa
+    private static final int MIN_POWER = -342;
+    private static final int MAX_POWER = 308;
+    // 5^q normalized to 128 bits, high and low word per power, truncated for q >= 0 and rounded up for q < 0
+    private static final long[] POWERS_OF_FIVE = new long[2 * (MAX_POWER - MIN_POWER + 1)];
+    private static final int MANTISSA_BITS = 52;
+    private static final long PRECISION_MASK = -1L >>> (MANTISSA_BITS + 3);
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+
+        BigInteger five = BigInteger.valueOf(5);
+        for (int q = MIN_POWER; q <= MAX_POWER; q++) {
+            BigInteger power = five.pow(Math.abs(q));
+            BigInteger normalized;
+            if (q >= 0) {
+                int shift = power.bitLength() - 128;
+                normalized = shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            } else {
+                int bits = power.bitLength();
+                normalized = BigInteger.ONE.shiftLeft(q >= -27 ? bits + 127 : 2 * bits + 128)
+                        .divide(power).add(BigInteger.ONE);
+                normalized = normalized.shiftRight(Math.max(0, normalized.bitLength() - 128));
+            }
+            POWERS_OF_FIVE[2 * (q - MIN_POWER)] = normalized.shiftRight(64).longValue();
+            POWERS_OF_FIVE[2 * (q - MIN_POWER) + 1] = normalized.longValue();
+        }
+    }
+
+    interface LineSink {
+        void accept(long timestamp, double value);
+    }
+
+    /**
+     * A byte range {@code [start, end)} of a file holding whole lines.
+     */
+    static class Range {
+        final File file;
+        final long start;
+        final long end;
+
+        Range(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Cuts the file into about {@code parts} ranges of whole lines, more if the file is larger than
+     * {@code parts} mappings.
+     */
+    static List<Range> split(File file, int parts) throws IOException {
+        List<Range> ranges = new ArrayList<>();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            long target = Math.max(1, Math.max((length + parts - 1) / parts, (length + MAX_RANGE_SIZE - 1) / MAX_RANGE_SIZE));
+            target = Math.min(target, MAX_RANGE_SIZE / 2);
+            long start = 0;
+            while (start < length) {
+                long end = start + target >= length ? length : nextLineStart(in, start + target, length);
+                ranges.add(new Range(file, start, end));
+                start = end;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return the number of lines delivered
+     */
+    static long parse(Range range, LineSink sink) throws IOException {
+        if (range.end - range.start > Integer.MAX_VALUE) throw new IOException("Range too large to map");
+        MappedByteBuffer bytes;
+        try (RandomAccessFile in = new RandomAccessFile(range.file, "r")) {
+            bytes = in.getChannel().map(FileChannel.MapMode.READ_ONLY, range.start, range.end - range.start);
+        }
+        return new MappedTraceParser(bytes).parseLines(sink);
+    }
+
+    private static long nextLineStart(RandomAccessFile in, long from, long length) throws IOException {
+        byte[] buffer = new byte[4096];
+        long position = from;
+        while (position < length) {
+            in.seek(position);
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+        return length;
+    }
+
+    private final MappedByteBuffer bytes;
+    private final int limit;
+    private int position;
+    // fields of the last parsed number
+    private long parsedLong;
+    private double parsedDouble;
+
+    private MappedTraceParser(MappedByteBuffer bytes) {
+        this.bytes = bytes;
+        this.limit = bytes.limit();
+    }
+
+    private long parseLines(LineSink sink) {
+        long lines = 0;
+        while (position < limit) {
+            int lineEnd = parsePlainLine(position);
+            if (lineEnd >= 0) {
+                sink.accept(parsedLong, parsedDouble);
+                lines++;
+            } else {
+                lineEnd = position;
+                while (lineEnd < limit && bytes.get(lineEnd) != '\n') lineEnd++;
+                if (parseLine(position, lineEnd)) {
+                    sink.accept(parsedLong, parsedDouble);
+                    lines++;
+                }
+            }
+            position = lineEnd + 1;
+        }
+        return lines;
+    }
+
+    /**
+     * Single pass over the usual {@code digits,digits.digits} line, up to 18 digits.
+     *
+     * @return index of the line's {@code \n} (or the end), -1 if the line needs the general parse
+     */
+    private int parsePlainLine(int start) {
+        int i = start;
+        long timestamp = 0;
+        byte b;
+        while (i < limit && (b = bytes.get(i)) >= '0' && b <= '9') {
+            timestamp = timestamp * 10 + (b - '0');
+            i++;
+        }
+        if (i == start || i - start > MAX_MANTISSA_DIGITS || i == limit || bytes.get(i) != ',') return -1;
+        int valueStart = ++i;
+        long mantissa = 0;
+        int fractionDigits = -1;
+        while (i < limit) {
+            b = bytes.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (fractionDigits >= 0) fractionDigits++;
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+            i++;
+        }
+        int digits = i - valueStart - (fractionDigits >= 0 ? 1 : 0);
+        if (digits == 0 || digits > MAX_MANTISSA_DIGITS) return -1;
+        if (i < limit && bytes.get(i) == '\r') i++;
+        if (i < limit && bytes.get(i) != '\n') return -1;
+        double value;
+        if (digits <= MAX_EXACT_DIGITS) {
+            value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        } else {
+            value = eiselLemire(mantissa, -Math.max(0, fractionDigits));
+            if (Double.isNaN(value)) return -1;
+        }
+        parsedLong = timestamp;
+        parsedDouble = value;
+        return i;
+    }
+
+    private boolean parseLine(int start, int end) {
+        int comma = -1;
+        for (int i = start; i < end; i++) {
+            if (bytes.get(i) == ',') {
+                if (comma != -1) return false;
+                comma = i;
+            }
+        }
+        if (comma <= start) return false;
+        long timestamp;
+        if (!parseLong(start, comma)) return false;
+        timestamp = parsedLong;
+        if (!parseDouble(comma + 1, end)) return false;
+        parsedLong = timestamp;
+        return true;
+    }
+
+    private boolean parseLong(int start, int end) {
+        start = skipBlanks(start, end);
+        end = trimBlanks(start, end);
+        if (start == end) return false;
+        boolean negative = false;
+        byte first = bytes.get(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++start == end) return false;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9) return false;
+            if (value < (Long.MIN_VALUE + digit) / 10) return false; // overflows
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE) return false;
+        parsedLong = negative ? value : -value;
+        return true;
+    }
+
+    private boolean parseDouble(int start, int end) {
+        start = skipBlanks(start, end);
+        end = trimBlanks(start, end);
+        if (start == end) return false;
+        int i = start;
+        boolean negative = false;
+        byte first = bytes.get(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int droppedDigits = 0;
+        int fractionDigits = 0;
+        boolean anyDigit = false;
+        boolean inFraction = false;
+        boolean truncated = false;
+        for (; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b >= '0' && b <= '9') {
+                anyDigit = true;
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    if (mantissa != 0 || b != '0') digits++;
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (inFraction) fractionDigits++;
+                } else {
+                    if (b != '0') truncated = true;
+                    if (!inFraction) droppedDigits++;
+                }
+            } else if (b == '.' && !inFraction) {
+                inFraction = true;
+            } else {
+                break;
+            }
+        }
+        int exponent = 0;
+        if (i < end && (bytes.get(i) == 'e' || bytes.get(i) == 'E')) {
+            if (!anyDigit || !parseLong(i + 1, end) || Math.abs(parsedLong) > 1000) return parseSlow(start, end);
+            exponent = (int) parsedLong;
+            i = end;
+        }
+        if (i != end || !anyDigit) return parseSlow(start, end);
+
+        int power = exponent + droppedDigits - fractionDigits;
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (truncated) {
+            // digits beyond the 18th were dropped, rounding the rest could be off by an ulp
+            return parseSlow(start, end);
+        } else if (digits > MAX_EXACT_DIGITS || Math.abs(power) >= POWERS_OF_TEN.length) {
+            // the mantissa or the power is not an exact double, a second rounding could be off by an ulp
+            value = eiselLemire(mantissa, power);
+            if (Double.isNaN(value)) return parseSlow(start, end);
+        } else if (power >= 0) {
+            value = mantissa * POWERS_OF_TEN[power];
+        } else {
+            value = mantissa / POWERS_OF_TEN[-power];
+        }
+        parsedDouble = negative ? -value : value;
+        return true;
+    }
+
+    /**
+     * Rounds {@code mantissa * 10^power} to the nearest double, ties to even, after Lemire, "Number
+     * Parsing at a Gigabyte per Second" (2021). The mantissa is multiplied by a 128-bit approximation
+     * of the power of five; the power of two goes straight into the exponent.
+     *
+     * @param mantissa a non-negative number
+     * @return the double, NaN if the approximation cannot tell the rounding or the result is
+     * subnormal, infinite or out of the table
+     */
+    static double eiselLemire(long mantissa, int power) {
+        if (mantissa == 0) return 0;
+        if (power < MIN_POWER || power > MAX_POWER) return Double.NaN;
+        int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+        long w = mantissa << leadingZeros;
+        int index = 2 * (power - MIN_POWER);
+
+        long high = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index]);
+        long low = w * POWERS_OF_FIVE[index];
+        if ((high & PRECISION_MASK) == PRECISION_MASK) {
+            // the truncated bits may carry into the ones kept, add the next 64 bits of the power
+            long next = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index + 1]);
+            long sum = low + next;
+            if (Long.compareUnsigned(sum, low) < 0) high++;
+            low = sum;
+            if ((high & PRECISION_MASK) == PRECISION_MASK && low == -1L) return Double.NaN;
+        }
+
+        int upperBit = (int) (high >>> 63);
+        int shift = upperBit + 64 - MANTISSA_BITS - 3;
+        long bits = high >>> shift;
+        int exponent = (((152170 + 65536) * power) >> 16) + 63 + upperBit - leadingZeros + 1023;
+        if (exponent <= 0) return Double.NaN;
+        // exactly halfway between two doubles, which only products of small powers can be: ties to even
+        if (Long.compareUnsigned(low, 1) <= 0 && power >= -4 && power <= 23 && (bits & 3) == 1
+                && bits << shift == high) {
+            bits &= ~1L;
+        }
+        bits += bits & 1;
+        bits >>>= 1;
+        if (bits >= 2L << MANTISSA_BITS) {
+            bits = 1L << MANTISSA_BITS;
+            exponent++;
+        }
+        if (exponent >= 0x7FF) return Double.NaN;
+        return Double.longBitsToDouble(bits & ~(1L << MANTISSA_BITS) | (long) exponent << MANTISSA_BITS);
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y) {
+        long x0 = x & 0xFFFFFFFFL, x1 = x >>> 32;
+        long y0 = y & 0xFFFFFFFFL, y1 = y >>> 32;
+        long p00 = x0 * y0;
+        long p01 = x0 * y1;
+        long p10 = x1 * y0;
+        long middle = (p00 >>> 32) + (p01 & 0xFFFFFFFFL) + (p10 & 0xFFFFFFFFL);
+        return x1 * y1 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    /**
+     * Numbers the fast paths do not cover, such as NaN, more than 18 digits or subnormals.
+     */
+    private boolean parseSlow(int start, int end) {
+        byte[] text = new byte[end - start];
+        for (int i = 0; i < text.length; i++) text[i] = bytes.get(start + i);
+        try {
+            parsedDouble = Double.parseDouble(new String(text, java.nio.charset.StandardCharsets.US_ASCII));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private int skipBlanks(int start, int end) {
+        while (start < end && isBlank(bytes.get(start))) start++;
+        return start;
+    }
+
+    private int trimBlanks(int start, int end) {
+        while (end > start && isBlank(bytes.get(end - 1))) end--;
+        return end;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
@@ -0,0 +1,251 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.DetectorConfig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static agh.sm.falldetector.core.DetectorConfig.GRAVITY_EARTH;
+
+/**
+ * Evaluates a grid of detector configurations against labelled traces, one task per
+ * configuration on a fork-join pool. Traces are loaded once and shared read-only; every task
+ * builds its own detectors, so tasks share no mutable state.
+ * <p>
+ * The labels file holds {@code trace,label} lines, label 0 marking a trace with a fall (as in
+ * training.csv) and anything else a trace without one. Relative trace paths are resolved
+ * against the labels file.
+ * <p>
+ * Usage: {@code ParameterSweep --labels FILE [--unit ms|ns] [--threads N] [--top N]
+ * [--threshold-g 2.5,3,3.5] [--post-peak-ms 1000] [--post-fall-ms 2000] [--pre-impact-ms 500]
+ * [--free-fall-g 0.7] [--band-g 0.8:1.2]}
+ */
+public class ParameterSweep {
+
+    private static final int FALL_LABEL = 0;
+
+    public static void main(String[] args) throws Exception {
+        File labels = null;
+        TimeUnit unit = TimeUnit.MILLISECONDS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int top = 20;
+        double[] thresholds = {3.0};
+        long[] postPeak = {1000};
+        long[] postFall = {2000};
+        long[] preImpact = {500};
+        double[] freeFall = {0.7};
+        double[][] bands = {{0.8, 1.2}};
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--labels":
+                    labels = new File(args[++i]);
+                    break;
+                case "--unit":
+                    unit = TraceReplay.parseUnit(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--top":
+                    top = Integer.parseInt(args[++i]);
+                    break;
+                case "--threshold-g":
+                    thresholds = parseDoubles(args[++i]);
+                    break;
+                case "--post-peak-ms":
+                    postPeak = parseLongs(args[++i]);
+                    break;
+                case "--post-fall-ms":
+                    postFall = parseLongs(args[++i]);
+                    break;
+                case "--pre-impact-ms":
+                    preImpact = parseLongs(args[++i]);
+                    break;
+                case "--free-fall-g":
+                    freeFall = parseDoubles(args[++i]);
+                    break;
+                case "--band-g":
+                    bands = parseBands(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (labels == null) {
+            System.err.println("usage: ParameterSweep --labels FILE [--unit ms|ns] [--threads N] [--top N] "
+                    + "[--threshold-g a,b] [--post-peak-ms a,b] [--post-fall-ms a,b] [--pre-impact-ms a,b] "
+                    + "[--free-fall-g a,b] [--band-g lo:hi,lo:hi]");
+            System.exit(1);
+        }
+
+        List<LabelledTrace> traces = loadLabelledTraces(labels, new TraceReader(unit));
+
+        List<DetectorConfig> configs = new ArrayList<>();
+        for (double threshold : thresholds)
+            for (long peak : postPeak)
+                for (long fall : postFall)
+                    for (long impact : preImpact)
+                        for (double dip : freeFall)
+                            for (double[] band : bands)
+                                configs.add(DetectorConfig.builder()
+                                        .detectionThreshold(threshold * GRAVITY_EARTH)
+                                        .postPeakTimeoutMs(peak)
+                                        .postFallTimeoutMs(fall)
+                                        .preImpactJustBeforeMs(impact)
+                                        .freeFallThreshold(dip * GRAVITY_EARTH)
+                                        .stillBand(band[0] * GRAVITY_EARTH, band[1] * GRAVITY_EARTH)
+                                        .build());
+
+        List<Callable<SweepResult>> tasks = new ArrayList<>();
+        for (DetectorConfig config : configs) tasks.add(new SweepTask(config, traces));
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<SweepResult> results = new ArrayList<>();
+        try {
+            for (Future<SweepResult> future : pool.invokeAll(tasks)) results.add(future.get());
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Collections.sort(results, RANKING);
+        System.out.printf("%-5s %-8s %-14s %-12s %s%n", "rank", "recall", "false/hour", "Msamples/s", "config");
+        for (int i = 0; i < Math.min(top, results.size()); i++) {
+            SweepResult result = results.get(i);
+            System.out.printf("%-5d %-8.3f %-14.3f %-12.2f %s%n", i + 1, result.recall,
+                    result.falseTriggersPerHour, result.samplesPerSecond / 1e6, result.config);
+        }
+        System.err.printf("%d configurations x %d traces in %.3f s (%d threads)%n",
+                configs.size(), traces.size(), seconds, threads);
+    }
+
+    /** Highest recall first, then fewest false triggers, then fastest. */
+    private static final Comparator<SweepResult> RANKING = new Comparator<SweepResult>() {
+        @Override
+        public int compare(SweepResult a, SweepResult b) {
+            int byRecall = Double.compare(b.recall, a.recall);
+            if (byRecall != 0) return byRecall;
+            int byFalseTriggers = Double.compare(a.falseTriggersPerHour, b.falseTriggersPerHour);
+            if (byFalseTriggers != 0) return byFalseTriggers;
+            return Double.compare(b.samplesPerSecond, a.samplesPerSecond);
+        }
+    };
+
+    static class LabelledTrace {
+        final TraceReader.Trace trace;
+        final boolean fall;
+
+        LabelledTrace(TraceReader.Trace trace, boolean fall) {
+            this.trace = trace;
+            this.fall = fall;
+        }
+    }
+
+    static class SweepResult {
+        final DetectorConfig config;
+        final double recall;
+        final double falseTriggersPerHour;
+        final double samplesPerSecond;
+
+        SweepResult(DetectorConfig config, double recall, double falseTriggersPerHour, double samplesPerSecond) {
+            this.config = config;
+            this.recall = recall;
+            this.falseTriggersPerHour = falseTriggersPerHour;
+            this.samplesPerSecond = samplesPerSecond;
+        }
+    }
+
+    /**
+     * Replays every trace with one configuration.
+     */
+    static class SweepTask implements Callable<SweepResult> {
+        private final DetectorConfig config;
+        private final List<LabelledTrace> traces;
+
+        SweepTask(DetectorConfig config, List<LabelledTrace> traces) {
+            this.config = config;
+            this.traces = traces;
+        }
+
+        @Override
+        public SweepResult call() {
+            int falls = 0;
+            int fallsDetected = 0;
+            int falseTriggers = 0;
+            long nonFallDurationNs = 0;
+            long samples = 0;
+
+            long start = System.nanoTime();
+            for (LabelledTrace labelled : traces) {
+                int events = TraceReplayer.replay(labelled.trace, config).size();
+                samples += labelled.trace.size;
+                if (labelled.fall) {
+                    falls++;
+                    if (events > 0) fallsDetected++;
+                } else {
+                    falseTriggers += events;
+                    nonFallDurationNs += labelled.trace.durationNs();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            double recall = falls == 0 ? 0 : fallsDetected / (double) falls;
+            double hours = nonFallDurationNs / 3.6e12;
+            double falseTriggersPerHour = hours == 0 ? 0 : falseTriggers / hours;
+            return new SweepResult(config, recall, falseTriggersPerHour, samples / (elapsed / 1e9));
+        }
+    }
+
+    private static List<LabelledTrace> loadLabelledTraces(File labels, TraceReader reader) throws IOException {
+        List<LabelledTrace> traces = new ArrayList<>();
+        File base = labels.getAbsoluteFile().getParentFile();
+        try (BufferedReader in = new BufferedReader(new FileReader(labels))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int comma = line.lastIndexOf(',');
+                if (comma <= 0) continue;
+                File file = new File(line.substring(0, comma).trim());
+                if (!file.isAbsolute()) file = new File(base, file.getPath());
+                int label = Integer.parseInt(line.substring(comma + 1).trim());
+                traces.add(new LabelledTrace(reader.load(file), label == FALL_LABEL));
+            }
+        }
+        return traces;
+    }
+
+    private static double[] parseDoubles(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Double.parseDouble(parts[i]);
+        return values;
+    }
+
+    private static long[] parseLongs(String list) {
+        String[] parts = list.split(",");
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Long.parseLong(parts[i]);
+        return values;
+    }
+
+    private static double[][] parseBands(String list) {
+        String[] parts = list.split(",");
+        double[][] bands = new double[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            String[] bounds = parts[i].split(":");
+            bands[i] = new double[]{Double.parseDouble(bounds[0]), Double.parseDouble(bounds[1])};
+        }
+        return bands;
+    }
+}
@@ -0,0 +1,22 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Outcome of replaying one trace file through the detector.
+ */
+class ReplayResult {
+
+    final File trace;
+    final long samples;
+    final List<ExtractedAccelerometerData> events;
+
+    ReplayResult(File trace, long samples, List<ExtractedAccelerometerData> events) {
+        this.trace = trace;
+        this.samples = samples;
+        this.events = events;
+    }
+}
@@ -0,0 +1,133 @@
+package agh.sm.falldetector.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads (timestamp, magnitude) CSV traces, parsed from memory-mapped bytes by
+ * {@link MappedTraceParser}. Lines that do not hold exactly two numbers, such as headers or feature
+ * dumps, are skipped. Timestamps are handed out in nanoseconds. Large traces are loaded by parsing
+ * line-aligned ranges in parallel.
+ */
+class TraceReader {
+
+    interface SampleSink {
+        void accept(long timestampNs, double magnitude);
+    }
+
+    /**
+     * A whole trace held in primitive arrays, for traces replayed more than once.
+     */
+    static class Trace implements SampleSink {
+        final File file;
+        long[] timestamps = new long[1024];
+        double[] magnitudes = new double[1024];
+        int size;
+
+        Trace(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void accept(long timestampNs, double magnitude) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                magnitudes = Arrays.copyOf(magnitudes, size * 2);
+            }
+            timestamps[size] = timestampNs;
+            magnitudes[size] = magnitude;
+            size++;
+        }
+
+        long durationNs() {
+            return size == 0 ? 0 : timestamps[size - 1] - timestamps[0];
+        }
+    }
+
+    // traces below this are parsed by the calling thread
+    private static final long PARALLEL_LOAD_MIN_BYTES = 8 << 20;
+    private static final int PARALLEL_LOAD_PARTS = Runtime.getRuntime().availableProcessors();
+
+    private final TimeUnit timestampUnit;
+
+    TraceReader(TimeUnit timestampUnit) {
+        this.timestampUnit = timestampUnit;
+    }
+
+    Trace load(File trace) throws IOException {
+        boolean parallel = trace.length() >= PARALLEL_LOAD_MIN_BYTES;
+        List<MappedTraceParser.Range> ranges = MappedTraceParser.split(trace, parallel ? PARALLEL_LOAD_PARTS : 1);
+        Trace loaded = new Trace(trace);
+        if (ranges.size() == 1 || !parallel) {
+            for (MappedTraceParser.Range range : ranges) parse(range, loaded);
+            return loaded;
+        }
+        // each range into its own arrays, on the caller's fork-join pool if there is one
+        Trace[] parts = new Trace[ranges.size()];
+        RangeLoad[] loads = new RangeLoad[ranges.size()];
+        for (int i = 0; i < loads.length; i++) {
+            parts[i] = new Trace(trace);
+            loads[i] = new RangeLoad(ranges.get(i), parts[i]);
+        }
+        try {
+            RecursiveAction.invokeAll(loads);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int size = 0;
+        for (Trace part : parts) size += part.size;
+        loaded.timestamps = new long[Math.max(1, size)];
+        loaded.magnitudes = new double[Math.max(1, size)];
+        for (Trace part : parts) {
+            System.arraycopy(part.timestamps, 0, loaded.timestamps, loaded.size, part.size);
+            System.arraycopy(part.magnitudes, 0, loaded.magnitudes, loaded.size, part.size);
+            loaded.size += part.size;
+        }
+        return loaded;
+    }
+
+    /**
+     * @return number of samples delivered to the sink
+     */
+    long read(File trace, SampleSink sink) throws IOException {
+        long samples = 0;
+        for (MappedTraceParser.Range range : MappedTraceParser.split(trace, 1)) samples += parse(range, sink);
+        return samples;
+    }
+
+    private long parse(MappedTraceParser.Range range, final SampleSink sink) throws IOException {
+        final long nanosPerUnit = timestampUnit.toNanos(1);
+        return MappedTraceParser.parse(range, new MappedTraceParser.LineSink() {
+            @Override
+            public void accept(long timestamp, double value) {
+                sink.accept(timestamp * nanosPerUnit, value);
+            }
+        });
+    }
+
+    private class RangeLoad extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MappedTraceParser.Range range;
+        private final Trace part;
+
+        RangeLoad(MappedTraceParser.Range range, Trace part) {
+            this.range = range;
+            this.part = part;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                parse(range, part);
+            } catch (IOException e) {
+                throw new UncheckedIOException(range.file.getPath(), e);
+            }
+        }
+    }
+}
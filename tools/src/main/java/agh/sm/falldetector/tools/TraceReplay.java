@@ -0,0 +1,140 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command-line replay of recorded accelerometer traces through the fall detector FSM.
+ * Trace files are replayed in parallel on a fork-join pool, one detector per file.
+ * <p>
+ * Usage: {@code TraceReplay [--unit ms|ns] [--threads N] <file or directory>...}
+ * <p>
+ * Detected events are written to stdout as
+ * {@code file,event,trigger_peak_ms,impact_duration,impact_violence,impact_average,post_impact_average};
+ * a throughput summary goes to stderr.
+ */
+public class TraceReplay {
+
+    public static void main(String[] args) throws Exception {
+        TimeUnit unit = TimeUnit.MILLISECONDS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> traces = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--unit":
+                    unit = parseUnit(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    collectTraces(new File(args[i]), traces);
+            }
+        }
+        if (traces.isEmpty()) {
+            System.err.println("usage: TraceReplay [--unit ms|ns] [--threads N] <file or directory>...");
+            System.exit(1);
+        }
+        Collections.sort(traces);
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<ReplayResult> results;
+        try {
+            results = pool.invoke(new ReplayTask(new TraceReplayer(new TraceReader(unit), DetectorConfig.DEFAULT),
+                    traces, 0, traces.size()));
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long samples = 0;
+        int events = 0;
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        out.println("file,event,trigger_peak_ms,impact_duration,impact_violence,impact_average,post_impact_average");
+        for (ReplayResult result : results) {
+            samples += result.samples;
+            for (int i = 0; i < result.events.size(); i++) {
+                ExtractedAccelerometerData features = result.events.get(i);
+                out.println(result.trace.getPath() + "," + i + "," + features.triggerPeakTime + ","
+                        + features.impactDuration + "," + features.impactViolence + ","
+                        + features.impactAverage + "," + features.postImpactAverage);
+                events++;
+            }
+        }
+        out.flush();
+
+        double seconds = elapsed / 1e9;
+        System.err.printf("%d files, %d samples, %d events in %.3f s (%.1f M samples/s, %d threads)%n",
+                results.size(), samples, events, seconds, samples / seconds / 1e6, threads);
+    }
+
+    static TimeUnit parseUnit(String unit) {
+        switch (unit) {
+            case "ms":
+                return TimeUnit.MILLISECONDS;
+            case "us":
+                return TimeUnit.MICROSECONDS;
+            case "ns":
+                return TimeUnit.NANOSECONDS;
+            default:
+                throw new IllegalArgumentException("Unknown timestamp unit: " + unit);
+        }
+    }
+
+    static void collectTraces(File path, List<File> traces) {
+        if (path.isDirectory()) {
+            File[] children = path.listFiles();
+            if (children == null) return;
+            for (File child : children) collectTraces(child, traces);
+        } else if (path.getName().endsWith(".csv")) {
+            traces.add(path);
+        }
+    }
+
+    /**
+     * Splits the trace list in halves until a single file is left, then replays it.
+     */
+    static class ReplayTask extends RecursiveTask<List<ReplayResult>> {
+        private static final long serialVersionUID = 1L;
+
+        private final TraceReplayer replayer;
+        private final List<File> traces;
+        private final int from;
+        private final int to;
+
+        ReplayTask(TraceReplayer replayer, List<File> traces, int from, int to) {
+            this.replayer = replayer;
+            this.traces = traces;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<ReplayResult> compute() {
+            if (to - from == 1) {
+                try {
+                    return Collections.singletonList(replayer.replay(traces.get(from)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(traces.get(from).getPath(), e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            ReplayTask left = new ReplayTask(replayer, traces, from, middle);
+            ReplayTask right = new ReplayTask(replayer, traces, middle, to);
+            left.fork();
+            List<ReplayResult> results = new ArrayList<>(right.compute());
+            results.addAll(0, left.join());
+            return results;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.PotentialFallDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams one trace through a fresh detector. An event still pending when the trace ends is
+ * reported too, as in the {@code windowNNN.csv} dumps, which end within the post-fall phase.
+ */
+class TraceReplayer {
+
+    private final TraceReader reader;
+    private final DetectorConfig config;
+
+    TraceReplayer(TraceReader reader, DetectorConfig config) {
+        this.reader = reader;
+        this.config = config;
+    }
+
+    ReplayResult replay(File trace) throws IOException {
+        final PotentialFallDetector detector = new PotentialFallDetector(config, null);
+        final List<ExtractedAccelerometerData> events = new ArrayList<>();
+        long samples = reader.read(trace, new TraceReader.SampleSink() {
+            @Override
+            public void accept(long timestampNs, double magnitude) {
+                ExtractedAccelerometerData features = detector.run(timestampNs, magnitude);
+                if (features != null) events.add(features);
+            }
+        });
+        ExtractedAccelerometerData last = detector.finish();
+        if (last != null) events.add(last);
+        return new ReplayResult(trace, samples, events);
+    }
+
+    static List<ExtractedAccelerometerData> replay(TraceReader.Trace trace, DetectorConfig config) {
+        PotentialFallDetector detector = new PotentialFallDetector(config, null);
+        List<ExtractedAccelerometerData> events = new ArrayList<>();
+        long[] timestamps = trace.timestamps;
+        double[] magnitudes = trace.magnitudes;
+        for (int i = 0; i < trace.size; i++) {
+            ExtractedAccelerometerData features = detector.run(timestamps[i], magnitudes[i]);
+            if (features != null) events.add(features);
+        }
+        ExtractedAccelerometerData last = detector.finish();
+        if (last != null) events.add(last);
+        return events;
+    }
+}
@@ -0,0 +1,360 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.AccelerometerDataWindow;
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.PotentialFallDetector;
+import agh.sm.falldetector.core.io.EventStoreReader;
+import agh.sm.falldetector.core.io.StoredEvent;
+import agh.sm.falldetector.core.io.TraceDecoder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the training and test CSVs of {@code machine_learning/training.py} from recordings. Every
+ * source is run through the on-device feature extraction on a thread pool, each event is joined
+ * with the label of its source and written to a training or test shard in the
+ * {@code load_csv_with_header} layout: a {@code rows,4,FALL,JUMP,WALK} header, then
+ * {@code impact_duration,impact_violence,impact_average,post_impact_average,label} rows.
+ * <p>
+ * The labels file holds {@code source,label} lines, sources resolved against the labels file:
+ * <ul>
+ * <li>a {@code timestamp,magnitude} CSV trace or a {@code .fdt} trace of {@code TraceEncoder}, run
+ * through a fresh detector; every event detected in it gets the label,</li>
+ * <li>an event store directory, whose stored windows are extracted again; {@code dir#id} labels a
+ * single event.</li>
+ * </ul>
+ * Whether an event goes to the test set and which shard it lands in is decided by a hash of its
+ * source and position in it, and results are written in the order of the labels file, so the same
+ * inputs and seed always give the same files, whatever the thread count.
+ * <p>
+ * Usage: {@code TrainingSetBuilder --labels FILE [--out DIR] [--unit ms|ns] [--threads N]
+ * [--shards N] [--test-percent 30] [--seed 0]}
+ */
+public class TrainingSetBuilder {
+
+    private static final String HEADER_SUFFIX = ",4,FALL,JUMP,WALK";
+    private static final int STORE_EVENTS_PER_TASK = 4096;
+    private static final int TASKS_IN_FLIGHT_PER_THREAD = 2;
+
+    public static void main(String[] args) throws Exception {
+        File labels = null;
+        File outDir = new File(".");
+        TimeUnit unit = TimeUnit.MILLISECONDS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int shards = 1;
+        int testPercent = 30;
+        long seed = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--labels":
+                    labels = new File(args[++i]);
+                    break;
+                case "--out":
+                    outDir = new File(args[++i]);
+                    break;
+                case "--unit":
+                    unit = TraceReplay.parseUnit(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--shards":
+                    shards = Integer.parseInt(args[++i]);
+                    break;
+                case "--test-percent":
+                    testPercent = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (labels == null || shards < 1 || testPercent < 0 || testPercent > 100) {
+            System.err.println("usage: TrainingSetBuilder --labels FILE [--out DIR] [--unit ms|ns] [--threads N] "
+                    + "[--shards N] [--test-percent 30] [--seed 0]");
+            System.exit(1);
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) throw new IOException("Cannot create " + outDir);
+
+        List<Source> sources = loadSources(labels);
+        DataSet training = new DataSet(outDir, "training", shards);
+        DataSet test = new DataSet(outDir, "test", shards);
+        long events = 0;
+        long skipped = 0;
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // results are taken in submission order, a bounded number of tasks ahead
+            Deque<Future<List<Row>>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            while (next < sources.size() || !inFlight.isEmpty()) {
+                while (next < sources.size() && inFlight.size() < threads * TASKS_IN_FLIGHT_PER_THREAD) {
+                    inFlight.add(pool.submit(new ExtractionTask(sources.get(next++), unit, DetectorConfig.DEFAULT)));
+                }
+                for (Row row : inFlight.remove().get()) {
+                    events++;
+                    if (!row.isFinite()) {
+                        skipped++;
+                        continue;
+                    }
+                    long hash = hash(row.key, seed) >>> 1;
+                    DataSet split = hash % 100 < testPercent ? test : training;
+                    split.write((int) (hash / 100 % shards), row);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        training.finish();
+        test.finish();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.err.printf("%d sources, %d events (%d skipped, features not finite): %d training, %d test rows "
+                        + "in %d shard(s), %.3f s (%.0f events/s, %d threads)%n",
+                sources.size(), events, skipped, training.rows, test.rows, shards, seconds, events / seconds,
+                threads);
+    }
+
+    /**
+     * Events of one source, or of a range of events in a store.
+     */
+    static class Source {
+        final String key;
+        final File file;
+        final int label;
+        // event ids [from, to) of an event store, unused for traces
+        final long from;
+        final long to;
+
+        Source(String key, File file, int label, long from, long to) {
+            this.key = key;
+            this.file = file;
+            this.label = label;
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean isEventStore() {
+            return file.isDirectory();
+        }
+    }
+
+    static class Row {
+        final String key;
+        final ExtractedAccelerometerData features;
+        final int label;
+
+        Row(String key, ExtractedAccelerometerData features, int label) {
+            this.key = key;
+            this.features = features;
+            this.label = label;
+        }
+
+        boolean isFinite() {
+            return isFinite(features.impactDuration) && isFinite(features.impactViolence)
+                    && isFinite(features.impactAverage) && isFinite(features.postImpactAverage);
+        }
+
+        private static boolean isFinite(double value) {
+            return !Double.isNaN(value) && !Double.isInfinite(value);
+        }
+    }
+
+    /**
+     * Extracts the features of the events of one source.
+     */
+    static class ExtractionTask implements Callable<List<Row>> {
+        private final Source source;
+        private final TimeUnit unit;
+        private final DetectorConfig config;
+
+        ExtractionTask(Source source, TimeUnit unit, DetectorConfig config) {
+            this.source = source;
+            this.unit = unit;
+            this.config = config;
+        }
+
+        @Override
+        public List<Row> call() throws IOException {
+            if (source.isEventStore()) return extractStored();
+            List<ExtractedAccelerometerData> events = source.file.getName().endsWith(".fdt")
+                    ? replayEncoded() : TraceReplayer.replay(new TraceReader(unit).load(source.file), config);
+            List<Row> rows = new ArrayList<>(events.size());
+            for (int i = 0; i < events.size(); i++) {
+                rows.add(new Row(source.key + "#" + i, events.get(i), source.label));
+            }
+            return rows;
+        }
+
+        private List<Row> extractStored() throws IOException {
+            List<Row> rows = new ArrayList<>((int) (source.to - source.from));
+            AccelerometerDataWindow window = null;
+            int windowCapacity = 0;
+            StoredEvent event = new StoredEvent();
+            try (EventStoreReader reader = EventStoreReader.open(source.file)) {
+                for (long id = source.from; id < source.to; id++) {
+                    reader.read(id, event);
+                    if (window == null || event.size > windowCapacity) {
+                        windowCapacity = Math.max(config.getWindowCapacity(), event.size);
+                        window = new AccelerometerDataWindow(windowCapacity,
+                                config.getStillBandLower(), config.getStillBandUpper());
+                    }
+                    window.load(event.timestamps, event.magnitudes, event.size);
+                    rows.add(new Row(source.key + "#" + id, new ExtractedAccelerometerData(window,
+                            event.triggerPeakTime, event.impactEnd, config), source.label));
+                }
+            }
+            return rows;
+        }
+
+        private List<ExtractedAccelerometerData> replayEncoded() throws IOException {
+            PotentialFallDetector detector = new PotentialFallDetector(config, null);
+            List<ExtractedAccelerometerData> events = new ArrayList<>();
+            long nanosPerUnit = unit.toNanos(1);
+            long[] timestamps = new long[1024];
+            try (TraceDecoder decoder = new TraceDecoder(new FileInputStream(source.file))) {
+                if (decoder.getChannels() == 1) {
+                    double[] magnitudes = new double[timestamps.length];
+                    int count;
+                    while ((count = decoder.read(timestamps, magnitudes, 0, timestamps.length)) > 0) {
+                        for (int i = 0; i < count; i++) {
+                            ExtractedAccelerometerData features =
+                                    detector.run(timestamps[i] * nanosPerUnit, magnitudes[i]);
+                            if (features != null) events.add(features);
+                        }
+                    }
+                } else {
+                    float[] xyz = new float[timestamps.length * 3];
+                    int count;
+                    while ((count = decoder.read(timestamps, xyz, 0, timestamps.length)) > 0) {
+                        for (int i = 0; i < count; i++) timestamps[i] *= nanosPerUnit;
+                        events.addAll(detector.runBatch(timestamps, xyz, 0, count));
+                    }
+                }
+            }
+            ExtractedAccelerometerData last = detector.finish();
+            if (last != null) events.add(last);
+            return events;
+        }
+    }
+
+    /**
+     * Training or test rows, spread over shards. Rows go to a body file per shard as they come;
+     * the header needs the row count, so it is written in front of the body at the end.
+     */
+    static class DataSet {
+        private final File[] files;
+        private final File[] bodies;
+        private final Writer[] writers;
+        private final long[] shardRows;
+        private final StringBuilder line = new StringBuilder(128);
+        long rows;
+
+        DataSet(File dir, String name, int shards) throws IOException {
+            files = new File[shards];
+            bodies = new File[shards];
+            writers = new Writer[shards];
+            shardRows = new long[shards];
+            for (int i = 0; i < shards; i++) {
+                files[i] = new File(dir, shards == 1 ? name + ".csv"
+                        : String.format("%s-%05d-of-%05d.csv", name, i, shards));
+                bodies[i] = new File(dir, files[i].getName() + ".rows");
+                writers[i] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(bodies[i]),
+                        StandardCharsets.US_ASCII), 1 << 16);
+            }
+        }
+
+        void write(int shard, Row row) throws IOException {
+            ExtractedAccelerometerData features = row.features;
+            line.setLength(0);
+            // durations are differences of ms timestamps, written as integers like the existing data
+            line.append((long) features.impactDuration).append(',').append(features.impactViolence)
+                    .append(',').append(features.impactAverage).append(',').append(features.postImpactAverage)
+                    .append(',').append(row.label).append('\n');
+            writers[shard].append(line);
+            shardRows[shard]++;
+            rows++;
+        }
+
+        void finish() throws IOException {
+            for (int i = 0; i < files.length; i++) {
+                writers[i].close();
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(files[i]))) {
+                    out.write((shardRows[i] + HEADER_SUFFIX + "\n").getBytes(StandardCharsets.US_ASCII));
+                    Files.copy(bodies[i].toPath(), out);
+                }
+                Files.delete(bodies[i].toPath());
+            }
+        }
+    }
+
+    private static List<Source> loadSources(File labels) throws IOException {
+        List<Source> sources = new ArrayList<>();
+        File base = labels.getAbsoluteFile().getParentFile();
+        try (BufferedReader in = new BufferedReader(new FileReader(labels))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int comma = line.lastIndexOf(',');
+                if (comma <= 0) continue;
+                String key = line.substring(0, comma).trim();
+                int label = Integer.parseInt(line.substring(comma + 1).trim());
+                long event = -1;
+                int hash = key.lastIndexOf('#');
+                String path = key;
+                if (hash > 0) {
+                    path = key.substring(0, hash);
+                    event = Long.parseLong(key.substring(hash + 1));
+                }
+                File file = new File(path);
+                if (!file.isAbsolute()) file = new File(base, file.getPath());
+                if (!file.isDirectory()) {
+                    sources.add(new Source(path, file, label, 0, 0));
+                } else if (event >= 0) {
+                    sources.add(new Source(path, file, label, event, event + 1));
+                } else {
+                    long count;
+                    try (EventStoreReader reader = EventStoreReader.open(file)) {
+                        count = reader.getEventCount();
+                    }
+                    for (long from = 0; from < count; from += STORE_EVENTS_PER_TASK) {
+                        sources.add(new Source(path, file, label, from, Math.min(count, from + STORE_EVENTS_PER_TASK)));
+                    }
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * FNV-1a of the key, seeded and mixed so that neighbouring keys split independently.
+     */
+    static long hash(String key, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,181 @@
+package agh.sm.falldetector.tools;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MappedTraceParserTest {
+
+    private static final int LINES = 200000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parsesDoubleToStringOutputExactly() throws IOException {
+        Random random = new Random(25);
+        double[] values = new double[LINES];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            // sensor-like magnitudes mostly, and any double now and then
+            values[i] = i % 10 == 0 ? randomDouble(random) : Math.abs(9.80665 + random.nextGaussian() * 5);
+            text.append(1000000L * i).append(',').append(values[i]).append('\n');
+        }
+
+        RecordingSink sink = parse(write(text));
+        assertEquals(LINES, sink.count);
+        for (int i = 0; i < LINES; i++) {
+            assertEquals(1000000L * i, sink.timestamps[i]);
+            assertEquals(Double.toString(values[i]), Double.doubleToLongBits(values[i]),
+                    Double.doubleToLongBits(sink.values[i]));
+        }
+    }
+
+    @Test
+    public void parsesLongDecimalsExactly() throws IOException {
+        Random random = new Random(26);
+        String[] numbers = new String[LINES];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            numbers[i] = randomDecimal(random);
+            text.append(i).append(',').append(numbers[i]).append('\n');
+        }
+
+        RecordingSink sink = parse(write(text));
+        assertEquals(LINES, sink.count);
+        for (int i = 0; i < LINES; i++) {
+            assertEquals(numbers[i], Double.doubleToLongBits(Double.parseDouble(numbers[i])),
+                    Double.doubleToLongBits(sink.values[i]));
+        }
+    }
+
+    @Test
+    public void roundsHalfwayCasesToEven() {
+        Random random = new Random(27);
+        for (int i = 0; i < 100000; i++) {
+            // odd multiples of half an ulp above 2^53 are halfway between two doubles
+            int scale = random.nextInt(10);
+            long mantissa = (1L << 53 + scale) + ((2L * random.nextInt(1 << 20) + 1) << scale);
+            if (mantissa >= 1000000000000000000L) continue;
+            assertEqualsParsed(mantissa, 0);
+            assertEqualsParsed(mantissa * 10, -1);
+        }
+    }
+
+    @Test
+    public void eiselLemireMatchesParseDouble() {
+        Random random = new Random(28);
+        for (int i = 0; i < 1000000; i++) {
+            long mantissa = 1 + (random.nextLong() >>> 1) % 999999999999999999L;
+            int power = random.nextInt(700) - 360;
+            double value = MappedTraceParser.eiselLemire(mantissa, power);
+            if (Double.isNaN(value)) continue; // subnormal, infinite or out of the table
+            assertEquals(mantissa + "e" + power, Double.doubleToLongBits(Double.parseDouble(mantissa + "e" + power)),
+                    Double.doubleToLongBits(value));
+        }
+    }
+
+    @Test
+    public void allocatesNothingPerLine() throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+
+        Random random = new Random(29);
+        StringBuilder text = new StringBuilder();
+        long timestamp = 0;
+        for (int i = 0; i < LINES; i++) {
+            timestamp += 5;
+            // as the app dumps its windows, up to 17 digits per magnitude
+            text.append(timestamp).append(',').append(Math.abs(9.80665 + random.nextGaussian() * 5)).append('\n');
+        }
+        File trace = write(text);
+        MappedTraceParser.Range range = new MappedTraceParser.Range(trace, 0, trace.length());
+        CountingSink sink = new CountingSink();
+        MappedTraceParser.parse(range, sink);
+
+        long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        MappedTraceParser.parse(range, sink);
+        long allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertEquals(2 * LINES, sink.count);
+        // the mapping and the parser, nothing that grows with the lines
+        assertTrue(allocated + " bytes allocated", allocated < 16 * 1024);
+    }
+
+    private static void assertEqualsParsed(long mantissa, int power) {
+        String text = mantissa + "e" + power;
+        assertEquals(text, Double.doubleToLongBits(Double.parseDouble(text)),
+                Double.doubleToLongBits(MappedTraceParser.eiselLemire(mantissa, power)));
+    }
+
+    private File write(CharSequence text) throws IOException {
+        File trace = folder.newFile();
+        Files.write(trace.toPath(), text.toString().getBytes(StandardCharsets.US_ASCII));
+        return trace;
+    }
+
+    private static RecordingSink parse(File trace) throws IOException {
+        RecordingSink sink = new RecordingSink();
+        MappedTraceParser.parse(new MappedTraceParser.Range(trace, 0, trace.length()), sink);
+        return sink;
+    }
+
+    private static double randomDouble(Random random) {
+        double value;
+        do {
+            value = Double.longBitsToDouble(random.nextLong());
+        } while (Double.isNaN(value) || Double.isInfinite(value));
+        return Math.abs(value);
+    }
+
+    /**
+     * 1 to 19 significant digits with the point anywhere, sometimes with an exponent.
+     */
+    private static String randomDecimal(Random random) {
+        int digits = 1 + random.nextInt(19);
+        String mantissa = new BigInteger(digits * 4, random).toString();
+        int point = random.nextInt(mantissa.length() + 1);
+        StringBuilder text = new StringBuilder();
+        text.append(point == 0 ? "0" : mantissa.substring(0, point)).append('.').append(mantissa.substring(point));
+        if (random.nextInt(4) == 0) text.append('E').append(random.nextInt(80) - 40);
+        return text.toString();
+    }
+
+    private static class RecordingSink implements MappedTraceParser.LineSink {
+        final long[] timestamps = new long[LINES];
+        final double[] values = new double[LINES];
+        int count;
+
+        @Override
+        public void accept(long timestamp, double value) {
+            timestamps[count] = timestamp;
+            values[count] = value;
+            count++;
+        }
+    }
+
+    private static class CountingSink implements MappedTraceParser.LineSink {
+        long count;
+        double sum;
+
+        @Override
+        public void accept(long timestamp, double value) {
+            count++;
+            sum += value;
+        }
+    }
+}
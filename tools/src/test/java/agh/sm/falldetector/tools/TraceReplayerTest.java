@@ -0,0 +1,102 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.AccelerometerDataWindow;
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.PotentialFallDetector;
+import agh.sm.falldetector.core.PotentialFallListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TraceReplayerTest {
+
+    private static final double G = DetectorConfig.GRAVITY_EARTH;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysDumpedWindowToItsEvent() throws IOException {
+        final List<String> dumps = new ArrayList<>();
+        final List<ExtractedAccelerometerData> detected = new ArrayList<>();
+        PotentialFallDetector detector = new PotentialFallDetector(new PotentialFallListener() {
+            @Override
+            public void onPotentialFall(AccelerometerDataWindow window, ExtractedAccelerometerData features) {
+                // as EventDumpWriter writes windowNNN.csv
+                StringBuilder text = new StringBuilder();
+                for (int i = 0; i < window.size(); i++) {
+                    text.append(window.getTimestamp(i)).append(',').append(window.getValue(i)).append('\n');
+                }
+                dumps.add(text.toString());
+                detected.add(features);
+            }
+        });
+        Random random = new Random(6);
+        long timestamp = 0;
+        for (int i = 0; i < 3 * 2000; i++) {
+            timestamp += 5;
+            detector.run(timestamp * 1000000L, magnitude(random, i % 2000));
+        }
+        assertEquals(3, dumps.size());
+
+        TraceReplayer replayer = new TraceReplayer(new TraceReader(TimeUnit.MILLISECONDS), DetectorConfig.DEFAULT);
+        for (int i = 0; i < dumps.size(); i++) {
+            File window = folder.newFile(String.format("window%03d.csv", i));
+            Files.write(window.toPath(), dumps.get(i).getBytes(StandardCharsets.US_ASCII));
+
+            ReplayResult result = replayer.replay(window);
+            assertEquals(1, result.events.size());
+            ExtractedAccelerometerData expected = detected.get(i);
+            ExtractedAccelerometerData replayed = result.events.get(0);
+            assertEquals(expected.triggerPeakTime, replayed.triggerPeakTime);
+            assertEquals(expected.impactEnd, replayed.impactEnd);
+            assertEquals(expected.impactDuration, replayed.impactDuration, 0);
+            assertEquals(expected.impactViolence, replayed.impactViolence, 0);
+            assertEquals(expected.impactAverage, replayed.impactAverage, 1e-9);
+            assertEquals(expected.postImpactAverage, replayed.postImpactAverage, 1e-9);
+        }
+    }
+
+    @Test
+    public void replaysLoadedTraceToTheSameEvents() throws IOException {
+        StringBuilder text = new StringBuilder("timestamp,magnitude\n");
+        Random random = new Random(7);
+        long timestamp = 0;
+        // the trace ends within the post-fall phase of its second fall
+        for (int i = 0; i < 3500; i++) {
+            timestamp += 5;
+            text.append(timestamp).append(',').append(magnitude(random, i % 2000)).append('\n');
+        }
+        File trace = folder.newFile("trace.csv");
+        Files.write(trace.toPath(), text.toString().getBytes(StandardCharsets.US_ASCII));
+
+        TraceReader reader = new TraceReader(TimeUnit.MILLISECONDS);
+        List<ExtractedAccelerometerData> loaded = TraceReplayer.replay(reader.load(trace), DetectorConfig.DEFAULT);
+        List<ExtractedAccelerometerData> streamed = new TraceReplayer(reader, DetectorConfig.DEFAULT).replay(trace).events;
+        assertEquals(2, loaded.size());
+        assertEquals(2, streamed.size());
+        for (int i = 0; i < 2; i++) assertEquals(loaded.get(i).triggerPeakTime, streamed.get(i).triggerPeakTime);
+    }
+
+    /**
+     * Lying still, then free fall, an impact and aftershocks, at 200 Hz.
+     */
+    static double magnitude(Random random, int step) {
+        if (step >= 1000 && step < 1060) return random.nextDouble() * 0.5 * G;
+        if (step >= 1060 && step < 1064) return (3.5 + random.nextDouble() * 2) * G;
+        if (step >= 1064 && step < 1100) return Math.abs(G + random.nextGaussian() * G);
+        return Math.abs(G + random.nextGaussian() * 0.3);
+    }
+}
@@ -0,0 +1,184 @@
+package agh.sm.falldetector.tools;
+
+import agh.sm.falldetector.core.AccelerometerDataWindow;
+import agh.sm.falldetector.core.DetectorConfig;
+import agh.sm.falldetector.core.ExtractedAccelerometerData;
+import agh.sm.falldetector.core.PotentialFallDetector;
+import agh.sm.falldetector.core.PotentialFallListener;
+import agh.sm.falldetector.core.io.EventStore;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrainingSetBuilderTest {
+
+    private static final double G = DetectorConfig.GRAVITY_EARTH;
+    private static final int TRACES = 6;
+    private static final int FALLS_PER_TRACE = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File labels;
+
+    @Before
+    public void writeRecordings() throws IOException {
+        File recordings = folder.newFolder("recordings");
+        Random random = new Random(24);
+        StringBuilder labelLines = new StringBuilder();
+        for (int i = 0; i < TRACES; i++) {
+            File trace = new File(recordings, "trace" + i + ".csv");
+            try (PrintWriter out = new PrintWriter(trace, "US-ASCII")) {
+                out.println("timestamp,magnitude");
+                writeFalls(random, out);
+            }
+            labelLines.append(trace.getName()).append(',').append(i % 3).append('\n');
+        }
+
+        final EventStore store = EventStore.open(new File(recordings, "events"));
+        PotentialFallDetector detector = new PotentialFallDetector(new PotentialFallListener() {
+            @Override
+            public void onPotentialFall(AccelerometerDataWindow window, ExtractedAccelerometerData features) {
+                try {
+                    store.append(window, features);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        long timestamp = 0;
+        for (int i = 0; i < 100 * 2000; i++) {
+            timestamp += 5;
+            detector.run(timestamp * 1000000L, magnitude(random, i % 2000));
+        }
+        store.close();
+        labelLines.append("events,1\n");
+
+        labels = new File(recordings, "labels.csv");
+        Files.write(labels.toPath(), labelLines.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void hashDependsOnKeyAndSeedOnly() {
+        String key = "walk/trace7.csv#3";
+        assertEquals(TrainingSetBuilder.hash(key, 0), TrainingSetBuilder.hash(new String(key.toCharArray()), 0));
+        assertNotEquals(TrainingSetBuilder.hash(key, 0), TrainingSetBuilder.hash(key, 1));
+        assertNotEquals(TrainingSetBuilder.hash(key, 0), TrainingSetBuilder.hash("walk/trace7.csv#4", 0));
+    }
+
+    @Test
+    public void hashSplitsNeighbouringKeysEvenly() {
+        int test = 0;
+        for (int i = 0; i < 100000; i++) {
+            if ((TrainingSetBuilder.hash("trace.csv#" + i, 0) >>> 1) % 100 < 30) test++;
+        }
+        assertEquals(30000, test, 1000);
+    }
+
+    @Test
+    public void sameFilesWhateverTheThreadCount() throws Exception {
+        File single = build(1, 3, 0);
+        File parallel = build(8, 3, 0);
+
+        String[] names = single.list();
+        Arrays.sort(names);
+        String[] parallelNames = parallel.list();
+        Arrays.sort(parallelNames);
+        assertArrayEquals(names, parallelNames);
+        assertEquals(6, names.length);
+        for (String name : names) {
+            assertArrayEquals(name, Files.readAllBytes(new File(single, name).toPath()),
+                    Files.readAllBytes(new File(parallel, name).toPath()));
+        }
+    }
+
+    @Test
+    public void sameSplitWhateverTheShardCount() throws Exception {
+        File one = build(4, 1, 0);
+        File many = build(4, 4, 0);
+
+        List<String> test = rows(new File(one, "test.csv"));
+        List<String> training = rows(new File(one, "training.csv"));
+        assertTrue(test.size() > 0);
+        assertTrue(training.size() > test.size());
+        assertEquals(TRACES * FALLS_PER_TRACE + 100, test.size() + training.size());
+
+        List<String> shardedTest = new ArrayList<>();
+        List<String> shardedTraining = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            shardedTest.addAll(rows(new File(many, String.format("test-%05d-of-00004.csv", i))));
+            shardedTraining.addAll(rows(new File(many, String.format("training-%05d-of-00004.csv", i))));
+        }
+        Collections.sort(test);
+        Collections.sort(training);
+        Collections.sort(shardedTest);
+        Collections.sort(shardedTraining);
+        assertEquals(test, shardedTest);
+        assertEquals(training, shardedTraining);
+    }
+
+    @Test
+    public void seedChangesSplit() throws Exception {
+        List<String> test = rows(new File(build(2, 1, 0), "test.csv"));
+        List<String> reseeded = rows(new File(build(2, 1, 1), "test.csv"));
+        Collections.sort(test);
+        Collections.sort(reseeded);
+        assertNotEquals(test, reseeded);
+    }
+
+    private File build(int threads, int shards, long seed) throws Exception {
+        File out = folder.newFolder();
+        TrainingSetBuilder.main(new String[]{"--labels", labels.getPath(), "--out", out.getPath(),
+                "--threads", String.valueOf(threads), "--shards", String.valueOf(shards),
+                "--seed", String.valueOf(seed)});
+        return out;
+    }
+
+    /**
+     * @return the rows of a data set file, checked against the row count of its header
+     */
+    private static List<String> rows(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(lines.get(0), Integer.parseInt(lines.get(0).split(",")[0]), lines.size() - 1);
+        return new ArrayList<>(lines.subList(1, lines.size()));
+    }
+
+    /**
+     * Falls 10 s apart at 200 Hz, timestamps in ms.
+     */
+    private static void writeFalls(Random random, PrintWriter out) {
+        long timestamp = 0;
+        for (int i = 0; i < FALLS_PER_TRACE * 2000; i++) {
+            timestamp += 5;
+            out.println(timestamp + "," + magnitude(random, i % 2000));
+        }
+    }
+
+    /**
+     * Lying still, then free fall, an impact and aftershocks.
+     */
+    private static double magnitude(Random random, int step) {
+        if (step >= 1000 && step < 1060) return random.nextDouble() * 0.5 * G;
+        if (step >= 1060 && step < 1064) return (3.5 + random.nextDouble() * 2) * G;
+        if (step >= 1064 && step < 1100) return Math.abs(G + random.nextGaussian() * G);
+        return Math.abs(G + random.nextGaussian() * 0.3);
+    }
+}